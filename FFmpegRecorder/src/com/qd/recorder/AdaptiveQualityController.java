@@ -0,0 +1,202 @@
+package com.qd.recorder;
+
+import com.jack.util.JLog;
+
+/**
+ * 录制中按编码的负载自动调整视频质量、码率和帧率
+ * 手机发热降频后编码变慢，固定的质量参数会让编码队列堆积、丢帧，画面一卡一卡的。
+ * 这里按窗口统计每帧的编码时间和编码落后于采集的时间：超出预算时马上降一级，
+ * 连续{@link #RECOVER_WINDOWS}个窗口都有余量时再升一级。
+ * 前{@link #QUALITY_STEPS}级只提高量化参数、降低码率，再往下降低帧率，所有取值都在录制参数给出的范围内
+ * 帧率由{@link FrameDropPolicy}在入队前按{@link #getFrameRate()}跳帧，所有方法都在编码线程中调用
+ * @author QD
+ *
+ */
+public class AdaptiveQualityController {
+
+	/**
+	 * 平均编码时间超过帧间隔的这个比例时降级
+	 */
+	public static final float HIGH_LOAD = 0.85f;
+
+	/**
+	 * 平均编码时间低于帧间隔的这个比例时才可以升级
+	 */
+	public static final float LOW_LOAD = 0.5f;
+
+	/**
+	 * 编码落后于采集超过几帧时降级
+	 */
+	public static final int MAX_LAG_FRAMES = 2;
+
+	/**
+	 * 连续几个窗口有余量才升级，避免在两级之间来回切换
+	 */
+	public static final int RECOVER_WINDOWS = 3;
+
+	/**
+	 * 质量和码率分几级调整
+	 */
+	public static final int QUALITY_STEPS = 4;
+
+	/**
+	 * 帧率分几级调整
+	 */
+	public static final int FRAME_RATE_STEPS = 2;
+
+	private final int baseQuality, maxQuality;
+	private final int baseBitrate, minBitrate;
+	private final int frameRate, minFrameRate;
+	private final long captureIntervalUs;
+	private final int maxLevel;
+	private final int windowFrames;
+
+	private int level = 0;
+	//当前窗口：编码的帧数、编码时间总和、最大落后时间
+	private int windowCount;
+	private long windowEncodeUs, windowMaxLagUs;
+	private int calmWindows;
+
+	//统计：调整次数、到达过的最低一级
+	private long decisionCount;
+	private int worstLevel;
+	private String lastDecision;
+
+	/**
+	 * @param parameters 录制参数，给出初始值和调整的范围
+	 */
+	public AdaptiveQualityController(RecorderParameters parameters) {
+		this(parameters.getVideoQuality(), parameters.getVideoQuality() + parameters.getAdaptiveQualityRange(),
+				parameters.getVideoBitrate(), parameters.getMinVideoBitrate(),
+				parameters.getVideoFrameRate(), parameters.getMinVideoFrameRate());
+	}
+
+	/**
+	 * @param baseQuality 初始的量化参数
+	 * @param maxQuality 量化参数最大调到多少
+	 * @param baseBitrate 初始的码率
+	 * @param minBitrate 码率最低调到多少
+	 * @param frameRate 采集的帧率
+	 * @param minFrameRate 帧率最低调到多少，不小于frameRate时不调整帧率
+	 */
+	public AdaptiveQualityController(int baseQuality, int maxQuality, int baseBitrate, int minBitrate,
+			int frameRate, int minFrameRate) {
+		if (frameRate <= 0)
+			throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+		this.baseQuality = baseQuality;
+		this.maxQuality = Math.max(baseQuality, maxQuality);
+		this.baseBitrate = baseBitrate;
+		this.minBitrate = Math.min(baseBitrate, Math.max(1, minBitrate));
+		this.frameRate = frameRate;
+		this.minFrameRate = Math.max(1, Math.min(frameRate, minFrameRate));
+		this.captureIntervalUs = 1000000L / frameRate;
+		this.maxLevel = QUALITY_STEPS + (this.minFrameRate < frameRate ? FRAME_RATE_STEPS : 0);
+		//每半秒评估一次
+		this.windowFrames = Math.max(1, frameRate / 2);
+	}
+
+	/**
+	 * 编码一帧之后调用
+	 * @param encodeUs 这一帧的处理时间（旋转+编码）
+	 * @param lagUs 编码完成时，这一帧比最新采集到的帧晚多少
+	 * @return 是否调整了质量、码率或帧率，为true时需要把新的值设置给编码器
+	 */
+	public boolean onFrameEncoded(long encodeUs, long lagUs) {
+		windowCount++;
+		windowEncodeUs += encodeUs;
+		windowMaxLagUs = Math.max(windowMaxLagUs, lagUs);
+		if (windowCount < windowFrames)
+			return false;
+
+		long meanUs = windowEncodeUs / windowCount;
+		long maxLagUs = windowMaxLagUs;
+		windowCount = 0;
+		windowEncodeUs = windowMaxLagUs = 0;
+
+		if (meanUs > getFrameIntervalUs(level) * HIGH_LOAD || maxLagUs > MAX_LAG_FRAMES * captureIntervalUs) {
+			calmWindows = 0;
+			if (level < maxLevel)
+				return changeLevel(level + 1, meanUs, maxLagUs);
+		} else if (level > 0 && meanUs < getFrameIntervalUs(level - 1) * LOW_LOAD && maxLagUs <= captureIntervalUs) {
+			//按升级后的帧间隔判断，升级后不会马上又超出预算
+			if (++calmWindows >= RECOVER_WINDOWS) {
+				calmWindows = 0;
+				return changeLevel(level - 1, meanUs, maxLagUs);
+			}
+		} else {
+			calmWindows = 0;
+		}
+		return false;
+	}
+
+	private boolean changeLevel(int newLevel, long meanUs, long maxLagUs) {
+		int oldLevel = level;
+		level = newLevel;
+		worstLevel = Math.max(worstLevel, level);
+		decisionCount++;
+		lastDecision = (newLevel > oldLevel ? "降级 " : "升级 ") + oldLevel + "->" + newLevel
+				+ " 平均编码" + meanUs + "us 最大落后" + maxLagUs + "us -> quality=" + getQuality()
+				+ " bitrate=" + getBitrate() + " fps=" + getFrameRate();
+		JLog.print("自适应质量 " + lastDecision);
+		return true;
+	}
+
+	/**
+	 * 当前的量化参数
+	 */
+	public int getQuality() {
+		int step = Math.min(level, QUALITY_STEPS);
+		return baseQuality + Math.round((maxQuality - baseQuality) * step / (float) QUALITY_STEPS);
+	}
+
+	/**
+	 * 当前的码率
+	 */
+	public int getBitrate() {
+		int step = Math.min(level, QUALITY_STEPS);
+		return baseBitrate - Math.round((baseBitrate - minBitrate) * step / (float) QUALITY_STEPS);
+	}
+
+	/**
+	 * 当前编码的帧率
+	 */
+	public int getFrameRate() {
+		return getFrameRate(level);
+	}
+
+	private int getFrameRate(int level) {
+		if (level <= QUALITY_STEPS)
+			return frameRate;
+		return frameRate - Math.round((frameRate - minFrameRate) * (level - QUALITY_STEPS) / (float) FRAME_RATE_STEPS);
+	}
+
+	private long getFrameIntervalUs(int level) {
+		return 1000000L / getFrameRate(level);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	public long getDecisionCount() {
+		return decisionCount;
+	}
+
+	/**
+	 * 最近一次调整的说明，没有调整过时为null
+	 */
+	public String getLastDecision() {
+		return lastDecision;
+	}
+
+	@Override
+	public String toString() {
+		return "level=" + level + "/" + maxLevel + " worst=" + worstLevel + " decisions=" + decisionCount
+				+ " quality=" + getQuality() + " bitrate=" + getBitrate()
+				+ " fps=" + getFrameRate();
+	}
+}
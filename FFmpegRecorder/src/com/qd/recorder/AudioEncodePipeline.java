@@ -0,0 +1,196 @@
+package com.qd.recorder;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 音频编码流水线
+ * 录音线程只把PCM采样写入{@link PcmRingBuffer}，由单独的编码线程读出后交给编码器，
+ * 重采样和AAC编码变慢时不会拖住AudioRecord.read，避免录音缓冲区溢出。
+ * 写入和读取都不加锁，编码线程没有数据时挂起，写入后被唤醒。
+ * 编码线程直接把环形缓冲区中的一段（direct buffer）交给编码器，不再拷贝到中间数组
+ * @author QD
+ *
+ */
+public class AudioEncodePipeline implements Runnable {
+
+	/**
+	 * 真正执行编码的回调，在编码线程中调用
+	 */
+	public interface SampleEncoder {
+		/**
+		 * @param samples 从position到limit是本次要编码的采样，是环形缓冲区的direct buffer视图，
+		 * 回调返回后这段内存会被重新写入，不能保存引用
+		 */
+		void encodeSamples(ShortBuffer samples) throws Exception;
+	}
+
+	private final PcmRingBuffer ringBuffer;
+	private final SampleEncoder encoder;
+	//编码线程每次最多取出的采样数
+	private final int chunkSize;
+	//编码之前把静音清零，为null时不检测
+	private volatile SilenceDetector silenceDetector;
+
+	private volatile Thread encodeThread;
+	private volatile boolean running = false;
+	private volatile boolean discardPending = false;
+
+	//统计：编码的采样数、编码次数、出错次数，只由编码线程修改
+	private volatile long encodedSamples, encodeCount, errorCount;
+	private volatile Exception lastError;
+
+	/**
+	 * @param capacity 环形缓冲区最少能缓存的采样数
+	 * @param chunkSize 每次交给编码器的最大采样数
+	 * @param encoder 编码回调
+	 */
+	public AudioEncodePipeline(int capacity, int chunkSize, SampleEncoder encoder) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		this.ringBuffer = new PcmRingBuffer(capacity);
+		this.encoder = encoder;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * 启动编码线程
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		discardPending = false;
+		Thread thread = new Thread(this, "AudioEncodeThread");
+		encodeThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * 停止编码线程并等待其退出，停止后写入的采样会被丢弃
+	 * @param discard true时丢弃还没编码的采样，false时先把缓冲区中的采样编码完
+	 */
+	public void stop(boolean discard) {
+		Thread thread;
+		synchronized (this) {
+			discardPending = discard;
+			running = false;
+			thread = encodeThread;
+		}
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			if (thread != Thread.currentThread()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		encodeThread = null;
+	}
+
+	/**
+	 * 录音线程调用，写入一段采样，缓冲区放不下的部分会被丢弃并计入溢出
+	 * @return 实际写入的采样数
+	 */
+	public int writeSamples(short[] samples, int offset, int len) {
+		if (!running)
+			return 0;
+		int written = ringBuffer.write(samples, offset, len);
+		Thread thread = encodeThread;
+		if (written > 0 && thread != null)
+			LockSupport.unpark(thread);
+		return written;
+	}
+
+	/**
+	 * 录音线程调用，让数据源直接把采样写进环形缓冲区
+	 * @param maxSamples 最多写入的采样数，2的幂时不会分配新对象
+	 * @return 实际写入的采样数，没有在编码时返回0
+	 */
+	public int writeSamples(PcmRingBuffer.PcmSource source, int maxSamples) {
+		if (!running)
+			return 0;
+		int written = ringBuffer.write(source, maxSamples);
+		Thread thread = encodeThread;
+		if (written > 0 && thread != null)
+			LockSupport.unpark(thread);
+		return written;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			if (!running && (discardPending || ringBuffer.available() == 0))
+				break;
+			ShortBuffer samples = ringBuffer.peek(chunkSize);
+			if (samples != null) {
+				int n = samples.remaining();
+				SilenceDetector detector = silenceDetector;
+				if (detector != null)
+					detector.process(samples);
+				try {
+					encoder.encodeSamples(samples);
+					encodedSamples += n;
+					encodeCount++;
+				} catch (Exception e) {
+					errorCount++;
+					lastError = e;
+				}
+				ringBuffer.commitRead(n);
+			} else {
+				//unpark先于park时不会丢失唤醒
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/**
+	 * 在编码线程中检测静音，start之前设置
+	 */
+	public void setSilenceDetector(SilenceDetector silenceDetector) {
+		this.silenceDetector = silenceDetector;
+	}
+
+	public SilenceDetector getSilenceDetector() {
+		return silenceDetector;
+	}
+
+	public PcmRingBuffer getRingBuffer() {
+		return ringBuffer;
+	}
+
+	public long getEncodedSamples() {
+		return encodedSamples;
+	}
+
+	public long getEncodeCount() {
+		return encodeCount;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	public long getOverrunCount() {
+		return ringBuffer.getOverrunCount();
+	}
+
+	public long getEmptyPollCount() {
+		return ringBuffer.getEmptyPollCount();
+	}
+
+	@Override
+	public String toString() {
+		return ringBuffer + " encoded=" + encodedSamples + " encodes=" + encodeCount + " errors=" + errorCount;
+	}
+}
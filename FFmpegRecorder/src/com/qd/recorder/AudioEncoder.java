@@ -0,0 +1,17 @@
+package com.qd.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 音频编码器，在音频编码线程中调用
+ * @author QD
+ *
+ */
+public interface AudioEncoder {
+
+	/**
+	 * 编码一段16位单声道PCM
+	 * @param samples 从position到limit的采样，返回后不再使用
+	 */
+	void encodeSamples(ShortBuffer samples) throws Exception;
+}
@@ -0,0 +1,176 @@
+package com.qd.recorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 重采样和音频编码之间的采样队列，作用和FFmpeg的AVAudioFifo相同
+ * 每次写入任意数量的采样，编码时按编码器的帧大小（AAC为1024）整帧取出，最后不足一帧的部分在结束时补静音。
+ * 每个平面（planar格式每个声道一个，交错格式只有一个）一个环形的direct buffer，按字节拷贝，
+ * 容量不够时才重新分配，正常录制中不会分配新对象。只能在一个线程中使用
+ * @author QD
+ *
+ */
+public class AudioSampleFifo {
+
+	private final int planes;
+	//一个平面中每个采样占多少字节（交错格式为声道数乘以采样深度）
+	private final int sampleSize;
+	private ByteBuffer[] storage;
+	//每个平面上写入和读出时使用的视图，避免每次duplicate
+	private ByteBuffer[] views;
+	private int capacity;
+	//第一个可读采样的位置和可读的采样数
+	private int head, size;
+
+	//统计：写入、读出的采样数，扩容次数
+	private long writtenSamples, readSamples;
+	private int growCount;
+
+	/**
+	 * @param planes 平面数
+	 * @param sampleSize 一个平面中每个采样的字节数
+	 * @param initialCapacity 初始能缓存的采样数，一般取编码帧大小的几倍
+	 */
+	public AudioSampleFifo(int planes, int sampleSize, int initialCapacity) {
+		if (planes <= 0 || sampleSize <= 0 || initialCapacity <= 0)
+			throw new IllegalArgumentException("Invalid fifo " + planes + "x" + sampleSize + "x" + initialCapacity);
+		this.planes = planes;
+		this.sampleSize = sampleSize;
+		allocate(initialCapacity);
+	}
+
+	private void allocate(int newCapacity) {
+		ByteBuffer[] newStorage = new ByteBuffer[planes];
+		ByteBuffer[] newViews = new ByteBuffer[planes];
+		for (int i = 0; i < planes; i++) {
+			newStorage[i] = ByteBuffer.allocateDirect(newCapacity * sampleSize).order(ByteOrder.nativeOrder());
+			newViews[i] = newStorage[i].duplicate();
+			if (storage != null) {
+				//按顺序搬到新缓冲区的开头
+				copyOut(i, newViews[i], 0, size);
+			}
+		}
+		storage = newStorage;
+		views = newViews;
+		capacity = newCapacity;
+		head = 0;
+	}
+
+	/**
+	 * 写入count个采样，容量不够时扩容
+	 * @param src 每个平面的数据从position开始，返回后position不变
+	 */
+	public void write(ByteBuffer[] src, int count) {
+		if (count <= 0)
+			return;
+		if (src.length < planes)
+			throw new IllegalArgumentException("Expected " + planes + " planes, got " + src.length);
+		if (size + count > capacity) {
+			int newCapacity = capacity;
+			while (newCapacity < size + count)
+				newCapacity <<= 1;
+			allocate(newCapacity);
+			growCount++;
+		}
+		int tail = (head + size) % capacity;
+		int first = Math.min(count, capacity - tail);
+		for (int i = 0; i < planes; i++) {
+			ByteBuffer in = src[i];
+			int position = in.position(), limit = in.limit();
+			ByteBuffer view = views[i];
+			view.limit((tail + first) * sampleSize).position(tail * sampleSize);
+			in.limit(position + first * sampleSize);
+			view.put(in);
+			if (count > first) {
+				view.limit((count - first) * sampleSize).position(0);
+				in.limit(position + count * sampleSize);
+				view.put(in);
+			}
+			in.limit(limit).position(position);
+		}
+		size += count;
+		writtenSamples += count;
+	}
+
+	/**
+	 * 读出最多count个采样
+	 * @param dst 每个平面从position开始写入，返回后position移到写入的数据之后
+	 * @return 实际读出的采样数
+	 */
+	public int read(ByteBuffer[] dst, int count) {
+		int n = Math.min(count, size);
+		if (n <= 0)
+			return 0;
+		if (dst.length < planes)
+			throw new IllegalArgumentException("Expected " + planes + " planes, got " + dst.length);
+		for (int i = 0; i < planes; i++)
+			copyOut(i, dst[i], head, n);
+		drain(n);
+		return n;
+	}
+
+	//从start开始的n个采样拷贝到dst，不改变队列
+	private void copyOut(int plane, ByteBuffer dst, int start, int n) {
+		if (n <= 0)
+			return;
+		ByteBuffer view = views[plane];
+		int first = Math.min(n, capacity - start);
+		view.limit((start + first) * sampleSize).position(start * sampleSize);
+		dst.put(view);
+		if (n > first) {
+			view.limit((n - first) * sampleSize).position(0);
+			dst.put(view);
+		}
+	}
+
+	/**
+	 * 丢掉最前面的count个采样
+	 */
+	public void drain(int count) {
+		int n = Math.min(count, size);
+		head = (head + n) % capacity;
+		size -= n;
+		readSamples += n;
+	}
+
+	public void reset() {
+		head = size = 0;
+	}
+
+	/**
+	 * 可以读出的采样数
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getPlanes() {
+		return planes;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public long getWrittenSamples() {
+		return writtenSamples;
+	}
+
+	public long getReadSamples() {
+		return readSamples;
+	}
+
+	public int getGrowCount() {
+		return growCount;
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size + "/" + capacity + " written=" + writtenSamples + " read=" + readSamples + " grow=" + growCount;
+	}
+}
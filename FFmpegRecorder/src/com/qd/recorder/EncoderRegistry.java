@@ -0,0 +1,152 @@
+package com.qd.recorder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * 编码器的注册和选择
+ * 录制参数给出按优先级排列的视频编码器id，依次查找支持它的实现，
+ * 之前录制时统计到的平均编码时间超过一帧时长（乘以{@link #BUDGET_RATIO}）的组合会被跳过，
+ * 编码时间保存在{@link #setPreferences(SharedPreferences)}设置的SharedPreferences中，进程重启后仍然有效，
+ * 这样可以在不同设备上对比mpeg4和x264等编码器，而不用再复制一份录制类。
+ * 都跟不上时可以改为录制后再编码，见{@link SpoolMediaEncoder}
+ * @author QD
+ *
+ */
+public class EncoderRegistry {
+
+	/**
+	 * 编码一帧最多可以用掉帧间隔的多少，留出时间给旋转和音频编码
+	 */
+	public static final float BUDGET_RATIO = 0.8f;
+
+	/**
+	 * 保存编码耗时的SharedPreferences的名称
+	 */
+	public static final String PREFERENCES_NAME = "encoder_costs";
+
+	private static final List<MediaEncoder.Provider> providers = new ArrayList<MediaEncoder.Provider>();
+	//实现名称+编码器id -> 最近一次录制的平均编码时间（微秒）
+	private static final HashMap<String, Long> costs = new HashMap<String, Long>();
+	//保存编码耗时，为null时只在当前进程中有效
+	private static SharedPreferences preferences;
+	private static boolean costsLoaded;
+
+	static {
+		providers.add(FFmpegMediaEncoder.PROVIDER);
+		providers.add(RawMediaEncoder.PROVIDER);
+	}
+
+	/**
+	 * 注册新的实现，优先于已有的实现
+	 */
+	public static synchronized void register(MediaEncoder.Provider provider) {
+		providers.remove(provider);
+		providers.add(0, provider);
+	}
+
+	/**
+	 * 设置保存编码耗时的SharedPreferences，下次选择编码器时读出之前保存的耗时
+	 * @param preferences 例如Context.getSharedPreferences({@link #PREFERENCES_NAME}, Context.MODE_PRIVATE)
+	 */
+	public static synchronized void setPreferences(SharedPreferences preferences) {
+		EncoderRegistry.preferences = preferences;
+		costsLoaded = false;
+	}
+
+	/**
+	 * 按录制参数创建编码器
+	 * @param path 输出文件
+	 * @return 选中的编码器，还没有开始录制
+	 */
+	public static MediaEncoder create(String path, RecorderParameters parameters) throws Exception {
+		MediaEncoder.Provider provider = null, fastest = null;
+		int videoCodec = -1, fastestCodec = -1;
+		synchronized (EncoderRegistry.class) {
+			loadCosts();
+			long budget = (long) (1000000L / parameters.getVideoFrameRate() * BUDGET_RATIO);
+			long fastestCost = Long.MAX_VALUE;
+			int[] candidates = parameters.getVideoCodecCandidates();
+			for (int i = 0; i < candidates.length && provider == null; i++) {
+				for (int j = 0; j < providers.size(); j++) {
+					MediaEncoder.Provider candidate = providers.get(j);
+					if (!candidate.supports(candidates[i]))
+						continue;
+					Long cost = costs.get(key(candidate.getName(), candidates[i]));
+					if (cost == null || cost <= budget) {
+						provider = candidate;
+						videoCodec = candidates[i];
+						break;
+					}
+					if (cost < fastestCost) {
+						fastestCost = cost;
+						fastest = candidate;
+						fastestCodec = candidates[i];
+					}
+				}
+			}
+		}
+		//都太慢时用最快的一个
+		boolean tooSlow = false;
+		if (provider == null) {
+			provider = fastest;
+			videoCodec = fastestCodec;
+			tooSlow = true;
+		}
+		if (provider == null)
+			throw new Exception("No encoder supports video codecs " + codecsToString(parameters.getVideoCodecCandidates()));
+		MediaEncoder encoder = provider.create(path, parameters, videoCodec);
+		boolean deferred = parameters.isDeferredEncoding() || (tooSlow && parameters.isAutoDeferredEncoding());
+		if (deferred && SpoolMediaEncoder.hasSpace(path, parameters, parameters.getSpoolPreallocation()))
+			return new SpoolMediaEncoder(path, parameters, encoder);
+		return encoder;
+	}
+
+	/**
+	 * 一次录制结束后记录编码耗时，下次录制时用来选择编码器
+	 */
+	public static synchronized void reportCost(MediaEncoder encoder) {
+		long cost = encoder.getMeanEncodeMicros();
+		if (cost < 0)
+			return;
+		String key = key(encoder.getName(), encoder.getVideoCodec());
+		costs.put(key, cost);
+		if (preferences != null)
+			preferences.edit().putLong(key, cost).apply();
+	}
+
+	/**
+	 * 记录的编码耗时，没有记录时为-1
+	 */
+	public static synchronized long getCost(String providerName, int videoCodec) {
+		loadCosts();
+		Long cost = costs.get(key(providerName, videoCodec));
+		return cost == null ? -1 : cost;
+	}
+
+	//读出之前保存的耗时，当前进程中已经统计到的更新，不覆盖
+	private static void loadCosts() {
+		if (costsLoaded || preferences == null)
+			return;
+		for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+			if (entry.getValue() instanceof Long && !costs.containsKey(entry.getKey()))
+				costs.put(entry.getKey(), (Long) entry.getValue());
+		}
+		costsLoaded = true;
+	}
+
+	private static String key(String providerName, int videoCodec) {
+		return providerName + "/" + videoCodec;
+	}
+
+	private static String codecsToString(int[] codecs) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < codecs.length; i++)
+			builder.append(i == 0 ? "" : ",").append(codecs[i]);
+		return builder.toString();
+	}
+}
@@ -0,0 +1,158 @@
+package com.qd.recorder;
+
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avformat.*;
+
+import java.nio.Buffer;
+import java.nio.ShortBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 用libavcodec编码、libavformat封装的编码器，录制使用的默认实现
+ * @author QD
+ *
+ */
+public class FFmpegMediaEncoder extends MediaEncoder {
+
+	public static final String NAME = "ffmpeg";
+
+	static {
+		//avcodec的类初始化只加载本地库，不注册编码器，PROVIDER.supports之前必须注册
+		av_register_all();
+	}
+
+	/**
+	 * 支持本地库中编译进去的所有视频编码器
+	 */
+	public static final Provider PROVIDER = new Provider() {
+		@Override
+		public String getName() {
+			return NAME;
+		}
+
+		@Override
+		public boolean supports(int videoCodec) {
+			return videoCodec != AV_CODEC_ID_RAWVIDEO && avcodec_find_encoder(videoCodec) != null;
+		}
+
+		@Override
+		public MediaEncoder create(String path, RecorderParameters parameters, int videoCodec) {
+			return new FFmpegMediaEncoder(path, parameters, videoCodec);
+		}
+	};
+
+	private final NewFFmpegFrameRecorder recorder;
+	private final Buffer[] samplesHolder = new Buffer[1];
+
+	public FFmpegMediaEncoder(String path, RecorderParameters parameters, int videoCodec) {
+		super(NAME, videoCodec);
+		recorder = new NewFFmpegFrameRecorder(path, parameters.getVidioWidth(), parameters.getVidioHeight(), 1);
+		recorder.setFormat(parameters.getVideoOutputFormat());				//视频格式  mp4
+		recorder.setSampleRate(parameters.getAudioSamplingRate());			//采样频率
+		recorder.setFrameRate(parameters.getVideoFrameRate());				//视频流频率
+		recorder.setVideoCodec(videoCodec);									//编码器
+		recorder.setPixelFormat(parameters.getVideoPixelFormat());			//编码器的像素格式
+		recorder.setVideoQuality(parameters.getVideoQuality()); 			//视频质量
+		recorder.setAudioQuality(parameters.getVideoQuality());				//音频质量
+		recorder.setAudioCodec(parameters.getAudioCodec());					//音频解码器
+		recorder.setVideoBitrate(parameters.getVideoBitrate());				//比特率
+		recorder.setAudioBitrate(parameters.getAudioBitrate());
+		recorder.setAllocationCounting(parameters.isAllocationCounting());
+		recorder.setVideoThreading(parameters.getVideoThreadMode(), parameters.getVideoThreadCount());
+		if (videoCodec == AV_CODEC_ID_H264) {
+			//x264默认的preset在手机上太慢，zerolatency去掉帧级线程和B帧带来的延迟
+			if (parameters.getX264Preset() != null)
+				recorder.setVideoOption("preset", parameters.getX264Preset());
+			if (parameters.getX264Tune() != null)
+				recorder.setVideoOption("tune", parameters.getX264Tune());
+		}
+		if (parameters.isFragmentedMp4()) {
+			//文件头只写空的moov，之后每个关键帧一个moof+mdat分片，muxer不再保存所有帧的索引
+			recorder.setFormatOption("movflags", "frag_keyframe+empty_moov");
+			if (parameters.getFragmentDuration() > 0)
+				recorder.setFormatOption("min_frag_duration", String.valueOf(parameters.getFragmentDuration() * 1000L));
+		} else if (parameters.isCrashJournal()) {
+			//普通mp4停止录制时才写索引，中途被杀要靠日志恢复
+			recorder.setJournalPath(path + RecordingJournal.EXTENSION);
+		}
+	}
+
+	@Override
+	public void setImageSize(int width, int height) {
+		recorder.setImageWidth(width);
+		recorder.setImageHeight(height);
+	}
+
+	@Override
+	public void start() throws Exception {
+		recorder.start();
+	}
+
+	@Override
+	protected boolean onEncodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception {
+		recorder.setTimestamp(timeStampUs);
+		recorder.record(image, pixelFormat);
+		return recorder.getLastPacketTimestamp() >= 0 && recorder.isLastKeyPacket();
+	}
+
+	@Override
+	public void encodeSamples(ShortBuffer samples) throws Exception {
+		samplesHolder[0] = samples;
+		recorder.record(0, samplesHolder);
+	}
+
+	@Override
+	public void forceKeyFrame() {
+		recorder.forceKeyFrame();
+	}
+
+	@Override
+	public void setRateControl(int quality, int bitrate) {
+		recorder.setVideoRateControl(quality, bitrate);
+	}
+
+	@Override
+	public boolean isLastKeyFrame() {
+		return recorder.isLastKeyPacket();
+	}
+
+	@Override
+	public long getLastPacketTimeStamp() {
+		return recorder.getLastPacketTimestamp();
+	}
+
+	@Override
+	public long getOutputPosition() {
+		return recorder.getOutputPosition();
+	}
+
+	@Override
+	public void stop() throws Exception {
+		recorder.stop();
+	}
+
+	@Override
+	public void release() {
+		try {
+			recorder.release();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public NewFFmpegFrameRecorder getRecorder() {
+		return recorder;
+	}
+
+	@Override
+	public String toString() {
+		String stats = super.toString() + " delay=" + recorder.getVideoDelayFrames();
+		if (!recorder.isAllocationCounting())
+			return stats;
+		return stats + " records=" + recorder.getCountedRecords()
+				+ " allocating=" + recorder.getAllocatingRecords()
+				+ " objects=" + recorder.getAllocationCount()
+				+ " lastAllocating=" + recorder.getLastAllocatingRecord();
+	}
+}
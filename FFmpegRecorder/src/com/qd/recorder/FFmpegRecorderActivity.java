@@ -2,12 +2,9 @@ package com.qd.recorder;
 
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.Collections;
 import java.util.List;
@@ -17,12 +14,7 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
@@ -58,7 +50,7 @@ import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-import com.googlecode.javacv.FrameRecorder;
+import com.googlecode.javacv.cpp.avutil;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.qd.recorder.ProgressView.State;
 import com.qd.videorecorder.R;
@@ -89,12 +81,14 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	//Ƿ
 	boolean isFlashOn = false;
 	TextView txtTimer, txtRecordingSize;
-	//ֱΪưťȡťһťתͷť
-	Button flashIcon = null,cancelBtn,nextBtn,switchCameraIcon = null;
+	//ֱΪưťȡťһťתͷťɾť
+	Button flashIcon = null,cancelBtn,nextBtn,switchCameraIcon = null,deleteBtn;
 	boolean nextEnabled = false;
 	
-	//¼ƵͱƵ
-	private volatile NewFFmpegFrameRecorder videoRecorder;
+	//¼ƵͱƵı
+	private volatile MediaEncoder videoRecorder;
+	//Ƶˮߣͷֻ߳ӣڵ߳н
+	private volatile VideoEncodePipeline encodePipeline;
 	
 	//жǷǰͷ
 	private boolean isPreviewOn = false;
@@ -113,6 +107,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	//¼Ƶ߳
 	private AudioRecordRunnable audioRecordRunnable;
 	private Thread audioThread;
+	//Ƶ̣߳¼ֻ߳ѲдĻλ
+	private volatile AudioEncodePipeline audioPipeline;
 	//ֹͣ¼Ƶı
 	volatile boolean runAudioThread = true;
 
@@ -122,6 +118,19 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	Parameters cameraParameters = null;
 	//IplImage,ڴ洢ͷصbyte[]ԼͼƬĿߣdepthchannel
 	private IplImage yuvIplImage = null;
+	//yuvIplImageݻתüͼֱд
+	private ByteBuffer yuvIplBuffer = null;
+	//ͷݵתüǰͷ
+	private YuvRotator yuvRotator = null;
+	//¼ƵĿߺͱظʽrecorderParameters
+	private int videoWidth = 480, videoHeight = 480;
+	private int videoPixelFormat = avutil.AV_PIX_FMT_YUV420P;
+	//yuvIplImageͼظʽͱһʱҪswscale
+	private int yuvIplFormat = avutil.AV_PIX_FMT_NV21;
+	//гȣrecorderParameters
+	private int encodeQueueSize = 3;
+	//ԤصĻأͷѭʹЩÿһ֡µbyte[]
+	private volatile PreviewBufferPool previewBufferPool = null;
 	//ֱΪ ĬͷãĬϵͷķֱʡѡͷǰûߺã
 	int defaultCameraId = -1, defaultScreenResolution = -1 , cameraSelection = 0;
 
@@ -167,25 +176,38 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	//ֻͬ־ûʵ
 	private final int[] mVideoRecordLock = new int[0];
 	private final int[] mAudioRecordLock = new int[0];
-	private long mLastAudioTimestamp = 0L;
-	private volatile long mAudioTimeRecorded;
+	//Ƶͳһʱӣ¼Ĳ
+	private volatile MediaClock mediaClock;
 	private long frameTime = 0L;
-	//ÿһݽṹ
-	private SavedFrames lastSavedframe = new SavedFrames(null,0L);
+	//ʱԶʺ֡ʣֻڱ߳ʹãʱΪnull
+	private AdaptiveQualityController qualityController;
+	//ͷÿһ֡Ƿȥ
+	private volatile FrameDropPolicy frameDropPolicy;
+	//ֹ⣬ֻڱ߳ʹ
+	private StaticSceneDetector staticSceneDetector;
 	//Ƶʱ
-	private long mVideoTimestamp = 0L;
+	private volatile long mVideoTimestamp = 0L;
+	//ֶ¼Ƶɾʱֻ޸ֹͣ¼ƺȥɾĶ
+	private final SegmentIndex segmentIndex = new SegmentIndex();
+	//ɾ¼ʱ䣨룩¼̵߳ʱҪⲿ
+	private volatile long droppedTime = 0;
 	//ʱ򱣴Ƶļ
 	private boolean isRecordingSaved = false;
 	private boolean isFinalizing = false;
 	
 	//
 	private ProgressView progressView;
-	//ĵһͼƬ
+	//ĵһ֡ͼƬ
 	private String imagePath = null;
 	private RecorderState currentRecorderState = RecorderState.PRESS;
 	private ImageView stateImageView;
 	
 	private byte[] firstData = null;
+	//һ֡ɵķ
+	private volatile ThumbnailGenerator thumbnailGenerator = null;
+	private int thumbnailWidth, thumbnailHeight, thumbnailQuality;
+	//ֹͣ¼ʱȴ೤ʱ䣨룩
+	private static final long THUMBNAIL_TIMEOUT = 3000;
 	
 	private Handler mHandler;
 	private void initHandler(){
@@ -225,6 +247,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 						totalPauseTime = stopPauseTime - startPauseTime - ((long) (1.0/(double)frameRate)*1000);
 						pausedTime += totalPauseTime;
 					}
+					segmentIndex.startSegment();
+					deleteBtn.setVisibility(View.GONE);
 					rec = true;
 					//ʼ
 					progressView.setCurrentState(State.START);
@@ -236,6 +260,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 					//ͣʱӵĶ
 					progressView.putProgressList((int) totalTime);
 					rec = false;
+					segmentIndex.endSegment();
+					deleteBtn.setVisibility(View.VISIBLE);
 					startPauseTime = System.currentTimeMillis();
 					if(totalTime >= recordingMinimumTime){
 						currentRecorderState = RecorderState.SUCCESS;
@@ -282,6 +308,11 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		
 		initHandler();
 		
+		//ڴµƵļ֮ǰ
+		Util.recoverInterruptedVideos(this);
+		//֮ǰ¼ͳƵıʱѡ
+		EncoderRegistry.setPreferences(getSharedPreferences(EncoderRegistry.PREFERENCES_NAME, Context.MODE_PRIVATE));
+		
 		initLayout();
 	}
 	
@@ -350,6 +381,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		progressView = (ProgressView) findViewById(R.id.recorder_progress);
 		cancelBtn = (Button) findViewById(R.id.recorder_cancel);
 		cancelBtn.setOnClickListener(this);
+		deleteBtn = (Button) findViewById(R.id.recorder_delete);
+		deleteBtn.setOnClickListener(this);
 		nextBtn = (Button) findViewById(R.id.recorder_next);
 		nextBtn.setOnClickListener(this);
 		//txtTimer = (TextView)findViewById(R.id.txtTimer);
@@ -466,32 +499,143 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		RecorderParameters recorderParameters = Util.getRecorderParameter(currentResolution);					//ȡǰƵƵȼĲ
 		sampleRate = recorderParameters.getAudioSamplingRate();
 		frameRate = recorderParameters.getVideoFrameRate();
+		videoWidth = recorderParameters.getVidioWidth();
+		videoHeight = recorderParameters.getVidioHeight();
+		encodeQueueSize = recorderParameters.getEncodeQueueSize();
+		videoPixelFormat = recorderParameters.getVideoPixelFormat();
+		thumbnailWidth = recorderParameters.getThumbnailWidth();
+		thumbnailHeight = recorderParameters.getThumbnailHeight();
+		thumbnailQuality = recorderParameters.getThumbnailQuality();
 		frameTime = (1000000L / frameRate);
+		mediaClock = new MediaClock(sampleRate, frameRate);
+		segmentIndex.setTimeStampTolerance(frameTime / 2);
+		qualityController = recorderParameters.isAdaptiveQuality() ? new AdaptiveQualityController(recorderParameters) : null;
+		frameDropPolicy = new FrameDropPolicy(frameRate);
+		staticSceneDetector = new StaticSceneDetector(recorderParameters);
 		
 		fileVideoPath = new File(strVideoPath); 					//strVideoPath  һʱ.mp4ʽļ
-		videoRecorder = new NewFFmpegFrameRecorder(strVideoPath, 480, 480, 1);
-		videoRecorder = new NewFFmpegFrameRecorder(strVideoPath, recorderParameters.getVidioWidth(), recorderParameters.getVidioHeight(), 1);
-		videoRecorder.setFormat(recorderParameters.getVideoOutputFormat());				//Ƶʽ  mp4
-		videoRecorder.setSampleRate(recorderParameters.getAudioSamplingRate());		//Ƶ
-		videoRecorder.setFrameRate(recorderParameters.getVideoFrameRate());				//ƵƵ
-		videoRecorder.setVideoCodec(recorderParameters.getVideoCodec());						//
-		videoRecorder.setVideoQuality(recorderParameters.getVideoQuality()); 					//Ƶ
-		videoRecorder.setAudioQuality(recorderParameters.getVideoQuality());					//Ƶ
-		videoRecorder.setAudioCodec(recorderParameters.getAudioCodec());						//Ƶ
-		videoRecorder.setVideoBitrate(recorderParameters.getVideoBitrate());						//
-		videoRecorder.setAudioBitrate(recorderParameters.getAudioBitrate());
+		try {
+			//¼Ʋеıid֮ǰıʱѡ
+			videoRecorder = EncoderRegistry.create(strVideoPath, recorderParameters);
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "ûпõı", e);
+			videoRecorder = new FFmpegMediaEncoder(strVideoPath, recorderParameters, recorderParameters.getVideoCodec());
+		}
+		Log.i(LOG_TAG, " " + videoRecorder.getName() + " codec=" + videoRecorder.getVideoCodec());
+		//Ӻʱ¼ֻǿݣҪΪ˸֡ʽ
+		if (videoRecorder instanceof SpoolMediaEncoder)
+			qualityController = null;
 		
-		audioRecordRunnable = new AudioRecordRunnable();
+		encodePipeline = new VideoEncodePipeline(recorderParameters.getEncodeQueueSize(),
+				recorderParameters.getFrameDropPolicy(), frameEncoder);
+		encodePipeline.setFrameReleaseListener(frameReleaseListener);
+		
+		audioRecordRunnable = new AudioRecordRunnable(recorderParameters.getAudioChunkSamples());
 		audioThread = new Thread(audioRecordRunnable);
+		//1Ĳ߳żҲ
+		audioPipeline = new AudioEncodePipeline(Math.max(sampleRate, audioRecordRunnable.chunkSamples * 4),
+				audioRecordRunnable.chunkSamples, sampleEncoder);
+		audioPipeline.setSilenceDetector(new SilenceDetector(recorderParameters));
+	}
+
+	/**
+	 * Ƶִ߳УزһPCM
+	 */
+	private final AudioEncodePipeline.SampleEncoder sampleEncoder = new AudioEncodePipeline.SampleEncoder() {
+		@Override
+		public void encodeSamples(ShortBuffer samples) throws Exception {
+			synchronized (mAudioRecordLock) {
+				if (videoRecorder == null)
+					return;
+				videoRecorder.encodeSamples(samples);
+			}
+		}
+	};
+
+	/**
+	 * ڱִ߳УתüһɣֱдyuvIplImage󽻸videoRecorder
+	 */
+	private final VideoEncodePipeline.FrameEncoder frameEncoder = new VideoEncodePipeline.FrameEncoder() {
+		@Override
+		public void encodeFrame(SavedFrames frame) throws Exception {
+			synchronized (mVideoRecordLock) {
+				if (videoRecorder == null || yuvIplImage == null)
+					return;
+				AdaptiveQualityController controller = qualityController;
+				long start = System.nanoTime();
+				//ÿһεĵһ֡ɹؼ֡ɾʱֱӴп
+				boolean keyFrameRequest = segmentIndex.takeKeyFrameRequest(frame.getTimeStamp());
+				//ûб仯ʱתظyuvIplImageһתͼ
+				int scene = staticSceneDetector.check(yuvRotator, frame.getFrameBytesData(), frame.getTimeStamp(), keyFrameRequest);
+				if (scene == StaticSceneDetector.SKIP)
+					return;
+				if (scene == StaticSceneDetector.ENCODE) {
+					yuvIplBuffer.clear();
+					yuvRotator.rotate(frame.getFrameBytesData(), yuvIplBuffer);
+				}
+				if (keyFrameRequest)
+					videoRecorder.forceKeyFrame();
+				boolean keyFrame = videoRecorder.encodeFrame(yuvIplImage, yuvIplFormat, frame.getTimeStamp());
+				//̱߳ʱİ֡ʵдİ¼
+				long packetTimeStamp = videoRecorder.getLastPacketTimeStamp();
+				if (packetTimeStamp >= 0)
+					segmentIndex.onVideoFrame(packetTimeStamp, keyFrame, videoRecorder.getOutputPosition());
+				if (controller != null) {
+					//һ֡ʱͷµһ֡
+					MediaClock clock = mediaClock;
+					long lag = clock == null ? 0 : Math.max(0, clock.getLastVideoTimeUs() - frame.getTimeStamp());
+					if (controller.onFrameEncoded((System.nanoTime() - start) / 1000, lag)) {
+						videoRecorder.setRateControl(controller.getQuality(), controller.getBitrate());
+						FrameDropPolicy policy = frameDropPolicy;
+						if (policy != null)
+							policy.setTargetFrameRate(controller.getFrameRate());
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * ɻ򱻶֡ѻͷ
+	 */
+	private final VideoEncodePipeline.FrameReleaseListener frameReleaseListener = new VideoEncodePipeline.FrameReleaseListener() {
+		@Override
+		public void onFrameReleased(byte[] data) {
+			PreviewBufferPool bufferPool = previewBufferPool;
+			if (bufferPool != null)
+				bufferPool.release(data);
+		}
+	};
+
+	/**
+	 * ͨaddCallbackBufferԤͷ
+	 */
+	private static class CameraFrameSource implements PreviewBufferPool.FrameSource {
+		private final Camera camera;
+
+		CameraFrameSource(Camera camera) {
+			this.camera = camera;
+		}
+
+		@Override
+		public void addCallbackBuffer(byte[] buffer) {
+			try {
+				camera.addCallbackBuffer(buffer);
+			} catch (RuntimeException e) {
+				//ͷѾͷ
+			}
+		}
 	}
 
 	public void startRecording() {
 
 		try {
 			videoRecorder.start();
+			encodePipeline.start();
+			audioPipeline.start();
 			audioThread.start();
 
-		} catch (NewFFmpegFrameRecorder.Exception e) {
+		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
@@ -537,80 +681,97 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 			bar.setProgress(values[0]);
 		}
 		
-		/**
-		 * byte[]ݺϳһbitmap
-		 * س480*480ת90Ⱥ󣬱浽ļ
-		 * @param data
-		 */
-		private void getFirstCapture(byte[] data){
-			
-			publishProgress(10);
-			
-			String captureBitmapPath = CONSTANTS.CAMERA_FOLDER_PATH;
-			
-			captureBitmapPath = Util.createImagePath(FFmpegRecorderActivity.this);
-			YuvImage localYuvImage = new YuvImage(data, 17, previewWidth,previewHeight, null);
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			FileOutputStream outStream = null;
-			
-			publishProgress(50);
-			
-			try {
-				File file = new File(captureBitmapPath);
-				if(!file.exists())
-					file.createNewFile();
-				localYuvImage.compressToJpeg(new Rect(0, 0, previewWidth, previewHeight),100, bos);
-				Bitmap localBitmap1 = BitmapFactory.decodeByteArray(bos.toByteArray(),
-						0,bos.toByteArray().length);
-				
-				bos.close();
-				
-				Matrix localMatrix = new Matrix();
-				if (cameraSelection == 0)
-					localMatrix.setRotate(90.0F);
-				else
-					localMatrix.setRotate(270.0F);
-				
-				Bitmap	localBitmap2 = Bitmap.createBitmap(localBitmap1, 0, 0,
-									localBitmap1.getHeight(),
-									localBitmap1.getHeight(),
-									localMatrix, true);
-				
-				publishProgress(70);
-				
-				ByteArrayOutputStream bos2 = new ByteArrayOutputStream();
-				localBitmap2.compress(Bitmap.CompressFormat.JPEG, 100, bos2);
-					 
-				outStream = new FileOutputStream(captureBitmapPath);
-				outStream.write(bos2.toByteArray());
-				outStream.close();
-				
-				localBitmap1.recycle();
-				localBitmap2.recycle();
-				
-				publishProgress(90);
-				
-				isFirstFrame = false;
-				imagePath = captureBitmapPath;
-			} catch (FileNotFoundException e) {
-				isFirstFrame = true;
-				e.printStackTrace();
-			} catch (IOException e) {
-				isFirstFrame = true;
-				e.printStackTrace();
-			}        
-		}
-			
-		
 		@Override
 		protected Void doInBackground(Void... params) {
-			if(firstData != null)
-				getFirstCapture(firstData);
 			isFinalizing = false;
+			//桢ƵƵſջͬʱУдļβҪ·꣬ǼǵýҪļ
+			FinalizationPipeline finalization = new FinalizationPipeline();
+			final ThumbnailGenerator thumbnail = thumbnailGenerator;
+			if (thumbnail != null) {
+				finalization.addOptionalStep("thumbnail", 1, new FinalizationPipeline.Step() {
+					@Override
+					public void run() {
+						thumbnail.await(THUMBNAIL_TIMEOUT);
+					}
+				}, null);
+			}
+			String lastStep = null;
 			if (videoRecorder != null && recording) {
 				recording = false;
-				releaseResources();
+				isRecordingSaved = true;
+				final AudioEncodePipeline audio = audioPipeline;
+				final VideoEncodePipeline video = encodePipeline;
+				final int audioPending = audio == null ? 0 : audio.getRingBuffer().available();
+				final int videoPending = video == null ? 0 : video.getPendingCount();
+				finalization.addStep("audio", 1, new FinalizationPipeline.Step() {
+					@Override
+					public void run() {
+						stopAudioEncoding();
+					}
+				}, new FinalizationPipeline.ProgressSource() {
+					@Override
+					public float getProgress() {
+						return audioPending == 0 ? 0 : 1 - (float) audio.getRingBuffer().available() / audioPending;
+					}
+				});
+				//ʣµ֡
+				finalization.addStep("video", 5, new FinalizationPipeline.Step() {
+					@Override
+					public void run() {
+						stopVideoEncoding();
+					}
+				}, new FinalizationPipeline.ProgressSource() {
+					@Override
+					public float getProgress() {
+						return videoPending == 0 ? 0 : 1 - (float) video.getPendingCount() / videoPending;
+					}
+				});
+				//Ӻʱֹͣ¼Ʋſʼ룬ݴݱ
+				final SpoolMediaEncoder spool = videoRecorder instanceof SpoolMediaEncoder ? (SpoolMediaEncoder) videoRecorder : null;
+				finalization.addStep("trailer", spool == null ? 2 : 20, new FinalizationPipeline.Step() {
+					@Override
+					public void run() {
+						closeVideoRecorder();
+					}
+				}, spool == null ? null : new FinalizationPipeline.ProgressSource() {
+					@Override
+					public float getProgress() {
+						return spool.getReplayProgress();
+					}
+				}, "audio", "video");
+				finalization.addStep("segments", 1, new FinalizationPipeline.Step() {
+					@Override
+					public void run() {
+						removeDroppedSegments();
+					}
+				}, null, "trailer");
+				lastStep = "segments";
 			}
+			FinalizationPipeline.Step register = new FinalizationPipeline.Step() {
+				@Override
+				public void run() {
+					registerVideo();
+				}
+			};
+			if (lastStep != null)
+				finalization.addStep("register", 1, register, null, lastStep);
+			else
+				finalization.addStep("register", 1, register, null);
+			try {
+				finalization.run(THUMBNAIL_TIMEOUT, new FinalizationPipeline.ProgressListener() {
+					@Override
+					public void onProgress(int percent) {
+						publishProgress(percent);
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Log.i(LOG_TAG, "ֹͣ¼ " + finalization);
+			//ʱٵȴ棬ûʱΪnull
+			imagePath = thumbnail == null ? null : thumbnail.await(0);
+			//ֹͣˢ½
+			progressView.setCurrentState(State.PAUSE);
 			publishProgress(100);
 			return null;
 		}
@@ -618,7 +779,6 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		@Override
 		protected void onPostExecute(Void result) {
 			creatingProgress.dismiss();
-			registerVideo();
 			returnToCaller(true);
 			videoRecorder = null;
 		}
@@ -651,58 +811,56 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	 * @author QD
 	 *
 	 */
-	class AudioRecordRunnable implements Runnable {
+	class AudioRecordRunnable implements Runnable, PcmRingBuffer.PcmSource {
 		
 		int bufferSize;
+		//¼ʱ
 		short[] audioData;
+		//ÿζλĲǱ֡СΪ2ʱÿζдڶĲ
+		final int chunkSamples;
 		int bufferReadResult;
 		private final AudioRecord audioRecord;
 		public volatile boolean isInitialized;
-		private int mCount =0;
-		private AudioRecordRunnable()
+		/**
+		 * @param chunkSamples ÿζĲ0ʾAudioRecordС
+		 */
+		private AudioRecordRunnable(int chunkSamples)
 		{
-			bufferSize = AudioRecord.getMinBufferSize(sampleRate, 
+			//getMinBufferSizeصֽ
+			int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, 
 					AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+			if (chunkSamples <= 0)
+				chunkSamples = Integer.highestOneBit(minBufferSize / 2);
+			this.chunkSamples = chunkSamples;
+			//ܷζȡĲòʱҲ
+			bufferSize = Math.max(minBufferSize, chunkSamples * 2 * 2);
 			audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, 
 					AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,bufferSize);
-			audioData = new short[bufferSize];
+			audioData = new short[chunkSamples];
 		}
 
 		/**
-		 * shortBufferƵݺʼλ
-		 * @param shortBuffer
+		 * λصAudioRecordֱӰݶnativeڴ
 		 */
-		private void record(ShortBuffer shortBuffer)
+		@Override
+		public int read(ByteBuffer buffer, int sizeInBytes)
 		{
-			try
-			{
-				synchronized (mAudioRecordLock)
-				{
-					if (videoRecorder != null)
-					{
-						this.mCount += shortBuffer.limit();
-						videoRecorder.record(0,new Buffer[] {shortBuffer});
-					}
-					return;
-				}
-			}
-			catch (FrameRecorder.Exception localException){}
+			return audioRecord.read(buffer, sizeInBytes);
 		}
-		
+
 		/**
-		 * Ƶʱ
+		 * һ¼ֱӶƵ̵߳Ļλʵʽ뻺Ĳƽʱ
+		 * @return Ĳ
 		 */
-		private void updateTimestamp()
+		private int record()
 		{
-			if (videoRecorder != null)
-			{
-				int i = Util.getTimeStampInNsFromSampleCounted(this.mCount);
-				if (mAudioTimestamp != i)
-				{
-					mAudioTimestamp = i;
-					mAudioTimeRecorded =  System.nanoTime();
-				}
-			}
+			AudioEncodePipeline pipeline = audioPipeline;
+			MediaClock clock = mediaClock;
+			if (pipeline == null || clock == null || !pipeline.isRunning())
+				return this.audioRecord.read(audioData, 0, audioData.length);
+			int written = pipeline.writeSamples(this, chunkSamples);
+			mAudioTimestamp = clock.onAudioSamples(written, System.nanoTime());
+			return written;
 		}
 
 		public void run()
@@ -724,12 +882,12 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 				}
 				this.isInitialized = true;
 				this.audioRecord.startRecording();
-				while (((runAudioThread) || (mVideoTimestamp > mAudioTimestamp)) && (mAudioTimestamp < (1000 * recordingTime)))
+				while (((runAudioThread) || (mVideoTimestamp > mAudioTimestamp)) && (mAudioTimestamp < (1000 * (recordingTime + droppedTime))))
 				{
-					updateTimestamp();
-					bufferReadResult = this.audioRecord.read(audioData, 0, audioData.length);
-					if ((bufferReadResult > 0) && ((recording && rec) || (mVideoTimestamp > mAudioTimestamp)))
-						record(ShortBuffer.wrap(audioData, 0, bufferReadResult));
+					if ((recording && rec) || (mVideoTimestamp > mAudioTimestamp))
+						bufferReadResult = record();
+					else
+						bufferReadResult = this.audioRecord.read(audioData, 0, audioData.length);
 				}
 				this.audioRecord.stop();
 				this.audioRecord.release();
@@ -737,7 +895,7 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		}
 	}
 	
-	//ȡһͼƬ
+	//ȡһ֡ͼƬ
 	private boolean isFirstFrame = true;
 	
 		
@@ -758,7 +916,7 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 			mHolder = getHolder();
 			mHolder.addCallback(CameraView.this);
 			mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
-			mCamera.setPreviewCallback(CameraView.this);
+			mCamera.setPreviewCallbackWithBuffer(CameraView.this);
 		}
 
 		@Override
@@ -803,205 +961,65 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 				mCamera.stopPreview();
 			}
 		}
-	private byte[] rotateYUV420Degree90(byte[] data, int imageWidth, int imageHeight) 
-	{
-		
-		byte [] yuv = new byte[imageWidth*imageHeight*3/2];
-	    // Rotate the Y luma
-	    int i = 0;
-	    for(int x = 0;x < imageWidth;x++)
-	    {
-	        for(int y = imageHeight-1;y >= 0;y--)                               
-	        {
-	            yuv[i] = data[y*imageWidth+x];
-	            i++;
-	        }
-
-	    }
-	    // Rotate the U and V color components 
-	    i = imageWidth*imageHeight*3/2-1;
-	    for(int x = imageWidth-1;x > 0;x=x-2)
-	    {
-	        for(int y = 0;y < imageHeight/2;y++)                                
-	        {
-	            yuv[i] = data[(imageWidth*imageHeight)+(y*imageWidth)+x];
-	            i--;
-	            yuv[i] = data[(imageWidth*imageHeight)+(y*imageWidth)+(x-1)];
-	            i--;
-	        }
-	    }
-	    return yuv;
-	}
-	
-	private byte[] rotateYUV420Degree180(byte[] data, int imageWidth, int imageHeight) 
-	{
-		byte [] yuv = new byte[imageWidth*imageHeight*3/2];
-		int i = 0;
-		int count = 0;
-
-		for (i = imageWidth * imageHeight - 1; i >= 0; i--) {
-			yuv[count] = data[i];
-			count++;
-		}
 
-		i = imageWidth * imageHeight * 3 / 2 - 1;
-		for (i = imageWidth * imageHeight * 3 / 2 - 1; i >= imageWidth
-				* imageHeight; i -= 2) {
-			yuv[count++] = data[i - 1];
-			yuv[count++] = data[i];
-		}
-		return yuv;
-	}
-	
-	private byte[] rotateYUV420Degree270(byte[] data, int imageWidth, int imageHeight) 
-	{
-	    byte [] yuv = new byte[imageWidth*imageHeight*3/2];
-	    int nWidth = 0, nHeight = 0;
-	    int wh = 0;
-	    int uvHeight = 0;
-	    if(imageWidth != nWidth || imageHeight != nHeight)
-	    {
-	        nWidth = imageWidth;
-	        nHeight = imageHeight;
-	        wh = imageWidth * imageHeight;
-	        uvHeight = imageHeight >> 1;//uvHeight = height / 2
-	    }
-
-	    //תY
-	    int k = 0;
-	    for(int i = 0; i < imageWidth; i++) {
-	        int nPos = 0;
-	        for(int j = 0; j < imageHeight; j++) {
-	        	yuv[k] = data[nPos + i];
-	            k++;
-	            nPos += imageWidth;
-	        }
-	    }
-
-	    for(int i = 0; i < imageWidth; i+=2){
-	        int nPos = wh;
-	        for(int j = 0; j < uvHeight; j++) {
-	        	yuv[k] = data[nPos + i];
-	        	yuv[k + 1] = data[nPos + i + 1];
-	            k += 2;
-	            nPos += imageWidth;
-	        }
-	    }
-	    //һֱֿת270ȣͼɫ
-//	    // Rotate the Y luma
-//	    int i = 0;
-//	    for(int x = imageWidth-1;x >= 0;x--)
-//	    {
-//	        for(int y = 0;y < imageHeight;y++)                                 
-//	        {
-//	            yuv[i] = data[y*imageWidth+x];
-//	            i++;
-//	        }
-//
-//	    }
-//	    // Rotate the U and V color components 
-//		i = imageWidth*imageHeight;
-//	    for(int x = imageWidth-1;x > 0;x=x-2)
-//	    {
-//	        for(int y = 0;y < imageHeight/2;y++)                                
-//	        {
-//	            yuv[i] = data[(imageWidth*imageHeight)+(y*imageWidth)+x];
-//	            i++;
-//	            yuv[i] = data[(imageWidth*imageHeight)+(y*imageWidth)+(x-1)];
-//	            i++;
-//	        }
-//	    }
-	    return rotateYUV420Degree180(yuv,imageWidth,imageHeight);
-	}
-	
-	public byte[] cropYUV420(byte[] data,int imageW,int imageH,int newImageH){
-		int cropH;
-		int i,j,count,tmp;
-		byte[] yuv = new byte[imageW*newImageH*3/2];
- 
-		cropH = (imageH - newImageH)/2;
- 
-		count = 0;
-		for(j=cropH;j<cropH+newImageH;j++){
-			for(i=0;i<imageW;i++){
-				yuv[count++] = data[j*imageW+i];
-			}
-		}
- 
-		//Cr Cb
-		tmp = imageH+cropH/2;
-		for(j=tmp;j<tmp + newImageH/2;j++){
-			for(i=0;i<imageW;i++){
-				yuv[count++] = data[j*imageW+i];
-			}
-		}
- 
-		return yuv;
-	}
-									 
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
-		//ʱ
-		long frameTimeStamp = 0L;
-		if(mAudioTimestamp == 0L && firstTime > 0L)
-			frameTimeStamp = 1000L * (System.currentTimeMillis() -firstTime);
-		else if (mLastAudioTimestamp == mAudioTimestamp)
-			frameTimeStamp = mAudioTimestamp + frameTime;
-		else
-		{
-			long l2 = (System.nanoTime() - mAudioTimeRecorded) / 1000L;
-			frameTimeStamp = l2 + mAudioTimestamp;
-			mLastAudioTimestamp = mAudioTimestamp;
-		}
+		PreviewBufferPool bufferPool = previewBufferPool;
+		if (bufferPool != null)
+			bufferPool.onBufferFilled(data);
 		
-		//¼Ƶ
-		synchronized (mVideoRecordLock) {
-			if (recording && rec && lastSavedframe != null && lastSavedframe.getFrameBytesData() != null && yuvIplImage != null) 
-			{
-				//ĳһͼƬ
-				if(isFirstFrame){
-					isFirstFrame = false;
-					firstData = data;
-					/*Message msg = mHandler.obtainMessage(1);
-					msg.obj = data;
-					msg.what = 1;
-					mHandler.sendMessage(msg);*/
-					
-				}
-				//ʱʱһťɵ
-				totalTime = System.currentTimeMillis() - firstTime - pausedTime - ((long) (1.0/(double)frameRate)*1000);
-				if(!nextEnabled && totalTime >= recordingChangeTime){
-					nextEnabled = true;
-					nextBtn.setEnabled(true);
-				}
-				
-				if(nextEnabled && totalTime >= recordingMinimumTime){
-					mHandler.sendEmptyMessage(5);
-				}
-				
-				if(currentRecorderState == RecorderState.PRESS && totalTime >= recordingChangeTime){
-					currentRecorderState = RecorderState.LOOSEN;
-					mHandler.sendEmptyMessage(2);
+		//¼ƵֻݷУͷ߳б룬ɺ󻺳ỹͷ
+		VideoEncodePipeline pipeline = encodePipeline;
+		MediaClock clock = mediaClock;
+		FrameDropPolicy policy = frameDropPolicy;
+		if (recording && rec && pipeline != null && clock != null && policy != null) 
+		{
+			//ʱ
+			long frameTimeStamp = clock.stampVideoFrame(System.nanoTime());
+			segmentIndex.stampFrame(frameTimeStamp);
+			//ĳһ֡ͼƬ
+			if(isFirstFrame){
+				isFirstFrame = false;
+				//ԤᱻͷظʹãҪһݣں̨ɷ
+				firstData = data.clone();
+				if(yuvRotator != null){
+					thumbnailGenerator = new ThumbnailGenerator(yuvRotator, thumbnailWidth, thumbnailHeight,
+							thumbnailQuality, Util.createImagePath(FFmpegRecorderActivity.this));
+					thumbnailGenerator.start(firstData);
 				}
+				/*Message msg = mHandler.obtainMessage(1);
+				msg.obj = data;
+				msg.what = 1;
+				mHandler.sendMessage(msg);*/
 				
-				mVideoTimestamp += frameTime;
-				if(lastSavedframe.getTimeStamp() > mVideoTimestamp)
-				mVideoTimestamp = lastSavedframe.getTimeStamp();
-				try {
-						yuvIplImage.getByteBuffer().put(lastSavedframe.getFrameBytesData());
-						videoRecorder.setTimestamp(lastSavedframe.getTimeStamp());
-						videoRecorder.record(yuvIplImage);
-					} catch (com.googlecode.javacv.FrameRecorder.Exception e) {
-						Log.i("recorder", "¼ƴ"+e.getMessage());
-						e.printStackTrace();
-					}
-				}
-				byte[] tempData = rotateYUV420Degree90(data, previewWidth, previewHeight);
-				if(cameraSelection == 1)
-					tempData = rotateYUV420Degree270(data, previewWidth, previewHeight);
-				lastSavedframe = new SavedFrames(tempData,frameTimeStamp);
+			}
+			//ʱʱһťɵ
+			totalTime = System.currentTimeMillis() - firstTime - pausedTime - ((long) (1.0/(double)frameRate)*1000);
+			if(!nextEnabled && totalTime >= recordingChangeTime){
+				nextEnabled = true;
+				nextBtn.setEnabled(true);
+			}
+			
+			if(nextEnabled && totalTime >= recordingMinimumTime){
+				mHandler.sendEmptyMessage(5);
+			}
+			
+			if(currentRecorderState == RecorderState.PRESS && totalTime >= recordingChangeTime){
+				currentRecorderState = RecorderState.LOOSEN;
+				mHandler.sendEmptyMessage(2);
+			}
+			
+			//Ŀ֡ʺͱеǷһֱ֡֡ӻͷ
+			if (policy.accept(frameTimeStamp, pipeline.getPendingCount(), pipeline.getCapacity())) {
+				mVideoTimestamp = policy.getLastTimeStamp();
+				pipeline.queueFrame(data, frameTimeStamp);
+			} else if (bufferPool != null) {
+				bufferPool.release(data);
 			}
 		}
+		else if (bufferPool != null)
+			bufferPool.release(data);
+	}
 	}
 
 	@Override
@@ -1086,8 +1104,7 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 				cameraParameters.setPreviewSize(previewWidth, previewHeight);
 				if(videoRecorder != null)
 				{
-					videoRecorder.setImageWidth(previewWidth);
-					videoRecorder.setImageHeight(previewHeight);
+					videoRecorder.setImageSize(previewWidth, previewHeight);
 				}
 
 			}
@@ -1096,7 +1113,27 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 		cameraParameters.setPreviewFrameRate(frameRate);
 		//һIplImage¼Ƶ
 		//opencvеcvCreateImageһ
-		yuvIplImage = IplImage.create(previewHeight, previewWidth,IPL_DEPTH_8U, 2);
+		//ͷ˳ʱת90ȣǰͷת270Ȳ
+		//תӶüƵСΣͽ¶ȡһ
+		boolean isFrontCamera = cameraSelection == CameraInfo.CAMERA_FACING_FRONT;
+		int side = Math.min(Math.min(videoWidth, videoHeight), Math.min(previewWidth, previewHeight));
+		synchronized (mVideoRecordLock) {
+			yuvRotator = YuvRotator.createCentered(previewWidth, previewHeight, isFrontCamera ? 270 : 90, isFrontCamera,
+					side, side, true);
+			//üĴСƵһʱֱתɱظʽʡswscaleNV21swscale
+			yuvIplFormat = avutil.AV_PIX_FMT_NV21;
+			if (yuvRotator.getOutWidth() == videoWidth && yuvRotator.getOutHeight() == videoHeight) {
+				if (videoPixelFormat == avutil.AV_PIX_FMT_YUV420P) {
+					yuvRotator.setOutputFormat(YuvRotator.FORMAT_YUV420P);
+					yuvIplFormat = videoPixelFormat;
+				} else if (videoPixelFormat == avutil.AV_PIX_FMT_NV12) {
+					yuvRotator.setOutputFormat(YuvRotator.FORMAT_NV12);
+					yuvIplFormat = videoPixelFormat;
+				}
+			}
+			yuvIplImage = IplImage.create(yuvRotator.getOutWidth(), yuvRotator.getOutHeight(),IPL_DEPTH_8U, 2);
+			yuvIplBuffer = yuvIplImage.getByteBuffer();
+		}
 
 		//ϵͳ汾Ϊ8һµĲֶ֧Խ
 		if(Build.VERSION.SDK_INT >  Build.VERSION_CODES.FROYO)
@@ -1120,6 +1157,13 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 			mCamera.setDisplayOrientation(90);
 		mCamera.setParameters(cameraParameters);
 
+		//ԤԤصĻе֡ + ڱһ֡ + ͷһ֡
+		int bufferSize = previewWidth * previewHeight * 3 / 2;
+		if(previewBufferPool == null || previewBufferPool.getBufferSize() != bufferSize
+				|| ((CameraFrameSource) previewBufferPool.getFrameSource()).camera != mCamera){
+			previewBufferPool = new PreviewBufferPool(new CameraFrameSource(mCamera), bufferSize, encodeQueueSize + 2);
+		}
+		previewBufferPool.attach();
 	}
 	@Override
 	public void onClick(View v) {
@@ -1161,6 +1205,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 					mCamera.setParameters(cameraParameters);
 				}
 			}
+		}else if(v.getId() == R.id.recorder_delete){
+			deleteLastSegment();
 		}else if(v.getId() == R.id.recorder_cancel){
 			if (recording) 
 				showCancellDialog();
@@ -1170,6 +1216,67 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	}
 
 	
+	/**
+	 * ɾһΣֻͣʱ
+	 * Ѿдļݲֻбɾ¼ʱͽ˻صһνλ
+	 */
+	private void deleteLastSegment()
+	{
+		if(!isRecordingStarted || rec || recordFinish || isFinalizing)
+			return;
+		SegmentIndex.Segment segment = segmentIndex.dropLastSegment();
+		if(segment == null)
+			return;
+		long previousTime = progressView.removeLastProgress();
+		long removed = Math.max(0, totalTime - previousTime);
+		droppedTime += removed;
+		pausedTime += removed;
+		totalTime = previousTime;
+		Log.i(LOG_TAG, "ɾ " + segment + " ʱ" + removed + "ms");
+
+		if(totalTime < recordingChangeTime){
+			nextEnabled = false;
+			nextBtn.setEnabled(false);
+			currentRecorderState = RecorderState.PRESS;
+		}else if(totalTime < recordingMinimumTime){
+			currentRecorderState = RecorderState.CHANGE;
+		}
+		mHandler.sendEmptyMessage(2);
+		if(segmentIndex.getKeptCount() == 0)
+			deleteBtn.setVisibility(View.GONE);
+	}
+
+	/**
+	 * ֹͣ¼ƺ󣬰ѻɾĶδƵļȥֻѹݣ±
+	 */
+	private void removeDroppedSegments()
+	{
+		if(!segmentIndex.hasDroppedSegments() || strVideoPath == null)
+			return;
+		//ʱ֡ȡܱȼ¼֡еǰư֤֡ÿεĹؼ֡ȷһ
+		long halfFrame = 500000L / frameRate;
+		List<long[]> ranges = segmentIndex.getDroppedRanges();
+		for(long[] range : ranges){
+			range[0] = Math.max(0, range[0] - halfFrame);
+			if(range[1] != Long.MAX_VALUE)
+				range[1] -= halfFrame;
+		}
+		File source = new File(strVideoPath);
+		int dot = strVideoPath.lastIndexOf('.');
+		File edited = new File(dot > 0 ? strVideoPath.substring(0, dot) + "_edit" + strVideoPath.substring(dot)
+				: strVideoPath + "_edit");
+		SegmentConcatenator concatenator = new SegmentConcatenator(edited.getAbsolutePath());
+		try {
+			concatenator.setExcludedRanges(ranges);
+			concatenator.concatenate(Collections.singletonList(source.getAbsolutePath()));
+			if(source.delete() && edited.renameTo(source))
+				Log.i(LOG_TAG, "ȥɾĶ " + concatenator);
+		} catch (Exception e) {
+			e.printStackTrace();
+			edited.delete();
+		}
+	}
+
 	/**
 	 * ¼
 	 * @param isSuccess
@@ -1267,24 +1374,76 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	 */
 	private void releaseResources(){
 		isRecordingSaved = true;
-		try {
-			if(videoRecorder != null)
-			{
-			videoRecorder.stop();
-			videoRecorder.release();
-			}
-		} catch (com.googlecode.javacv.FrameRecorder.Exception e) {
-			e.printStackTrace();
-		}
-		
-		yuvIplImage = null;
-		videoRecorder = null;
-		lastSavedframe = null;
+		stopAudioEncoding();
+		stopVideoEncoding();
+		closeVideoRecorder();
 		
 		//progressView.putProgressList((int) totalTime);
 		//ֹͣˢ½
 		progressView.setCurrentState(State.PAUSE);
 	}
+
+	/**
+	 * ȰѻʣµĲֹ꣬ͣƵ߳
+	 */
+	private void stopAudioEncoding(){
+		AudioEncodePipeline audio = audioPipeline;
+		audioPipeline = null;
+		if(audio != null){
+			audio.stop(false);
+			Log.i(LOG_TAG, "Ƶͳ " + audio);
+			SilenceDetector silence = audio.getSilenceDetector();
+			if (silence != null) {
+				silence.finish();
+				Log.i(LOG_TAG, " " + silence);
+			}
+		}
+	}
+
+	/**
+	 * ȰѶʣµֹ֡꣬ͣƵ߳
+	 */
+	private void stopVideoEncoding(){
+		VideoEncodePipeline pipeline = encodePipeline;
+		encodePipeline = null;
+		if(pipeline != null){
+			pipeline.stop(false);
+			Log.i(LOG_TAG, "Ƶͳ " + pipeline);
+		}
+		if(frameDropPolicy != null)
+			Log.i(LOG_TAG, "֡ͳ " + frameDropPolicy);
+		if(staticSceneDetector != null)
+			Log.i(LOG_TAG, "ֹ " + staticSceneDetector);
+	}
+
+	/**
+	 * Ƶ֮л֡дļβͷű
+	 */
+	private void closeVideoRecorder(){
+		if(mediaClock != null)
+			Log.i(LOG_TAG, "Ƶʱ " + mediaClock);
+		synchronized (mVideoRecordLock) {
+			try {
+				if(videoRecorder != null)
+				{
+				Log.i(LOG_TAG, "ͳ " + videoRecorder);
+				if(qualityController != null)
+					Log.i(LOG_TAG, "Ӧ " + qualityController);
+				EncoderRegistry.reportCost(videoRecorder);
+				videoRecorder.stop();
+				if(videoRecorder instanceof SpoolMediaEncoder)
+					Log.i(LOG_TAG, "Ӻ " + videoRecorder);
+				videoRecorder.release();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			
+			yuvIplImage = null;
+			yuvIplBuffer = null;
+			videoRecorder = null;
+		}
+	}
 	
 	/**
 	 * һΰʱʼ¼
@@ -1294,6 +1453,8 @@ public class FFmpegRecorderActivity extends Activity implements OnClickListener,
 	{
 		isRecordingStarted = true;
 		firstTime = System.currentTimeMillis();
+		if(mediaClock != null)
+			mediaClock.start(System.nanoTime());
 	
 		recording = true;
 		totalPauseTime = 0;
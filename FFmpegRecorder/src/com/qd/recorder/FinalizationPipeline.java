@@ -0,0 +1,255 @@
+package com.qd.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 停止录制后的收尾步骤
+ * 每个步骤在自己的线程中执行，只等待它依赖的步骤，互不依赖的步骤（生成封面、排空编码队列等）同时进行。
+ * 总进度按各步骤的权重和各自报告的完成比例计算，例如排空编码队列按剩下的帧数；
+ * 可选的步骤超过时限后不再等待，不会拖慢收尾。每个步骤的开始、结束时间都会记录下来，
+ * 用来统计从停止录制到视频可以播放花了多长时间
+ * @author QD
+ *
+ */
+public class FinalizationPipeline {
+
+	/**
+	 * 一个收尾步骤
+	 */
+	public interface Step {
+		void run() throws Exception;
+	}
+
+	/**
+	 * 步骤的完成比例，在等待的线程中轮询
+	 */
+	public interface ProgressSource {
+		/**
+		 * @return 0~1
+		 */
+		float getProgress();
+	}
+
+	/**
+	 * 总进度变化时回调，在调用{@link FinalizationPipeline#run}的线程中执行
+	 */
+	public interface ProgressListener {
+		void onProgress(int percent);
+	}
+
+	/**
+	 * 轮询进度的间隔（毫秒）
+	 */
+	public static final long POLL_INTERVAL = 50;
+
+	private class Task implements Runnable {
+		final String name;
+		final int weight;
+		final Step step;
+		final ProgressSource progressSource;
+		final boolean optional;
+		final Task[] dependencies;
+		//相对于run开始的时间（毫秒），-1表示还没有开始/结束
+		long startMs = -1, endMs = -1;
+		boolean finished;
+		Exception error;
+
+		Task(String name, int weight, Step step, ProgressSource progressSource, boolean optional, Task[] dependencies) {
+			this.name = name;
+			this.weight = weight;
+			this.step = step;
+			this.progressSource = progressSource;
+			this.optional = optional;
+			this.dependencies = dependencies;
+		}
+
+		@Override
+		public void run() {
+			Exception failure = null;
+			try {
+				for (int i = 0; i < dependencies.length; i++)
+					dependencies[i].await();
+				synchronized (FinalizationPipeline.this) {
+					startMs = elapsedMs();
+				}
+				step.run();
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				//即使抛出Error也要标记结束，否则依赖它的步骤和run会一直等待
+				synchronized (FinalizationPipeline.this) {
+					error = failure;
+					endMs = elapsedMs();
+					finished = true;
+					FinalizationPipeline.this.notifyAll();
+				}
+			}
+		}
+
+		//等待这个步骤结束，依赖的步骤失败时仍然继续
+		void await() throws InterruptedException {
+			synchronized (FinalizationPipeline.this) {
+				while (!finished)
+					FinalizationPipeline.this.wait();
+			}
+		}
+
+		float getProgress() {
+			if (finished)
+				return 1;
+			if (startMs < 0 || progressSource == null)
+				return 0;
+			return Math.max(0, Math.min(1, progressSource.getProgress()));
+		}
+	}
+
+	private final List<Task> tasks = new ArrayList<Task>();
+	private long startNanos;
+	private long totalMs = -1;
+
+	/**
+	 * 添加一个必须完成的步骤
+	 * @param name 步骤名称，用于依赖和统计
+	 * @param weight 占总进度的权重
+	 * @param step 步骤
+	 * @param progressSource 完成比例，为null时只在结束时计入
+	 * @param dependencies 必须在这些步骤结束之后执行
+	 */
+	public synchronized FinalizationPipeline addStep(String name, int weight, Step step,
+			ProgressSource progressSource, String... dependencies) {
+		return add(name, weight, step, progressSource, false, dependencies);
+	}
+
+	/**
+	 * 添加一个可选的步骤，超过{@link #run}的时限时不再等待它
+	 */
+	public synchronized FinalizationPipeline addOptionalStep(String name, int weight, Step step,
+			ProgressSource progressSource, String... dependencies) {
+		return add(name, weight, step, progressSource, true, dependencies);
+	}
+
+	private FinalizationPipeline add(String name, int weight, Step step, ProgressSource progressSource,
+			boolean optional, String[] dependencies) {
+		if (find(name) != null)
+			throw new IllegalArgumentException("Duplicate step " + name);
+		Task[] depends = new Task[dependencies.length];
+		for (int i = 0; i < dependencies.length; i++) {
+			//只能依赖之前添加的步骤，不会出现循环依赖
+			depends[i] = find(dependencies[i]);
+			if (depends[i] == null)
+				throw new IllegalArgumentException("Unknown step " + dependencies[i] + " for " + name);
+		}
+		tasks.add(new Task(name, Math.max(0, weight), step, progressSource, optional, depends));
+		return this;
+	}
+
+	private Task find(String name) {
+		for (int i = 0; i < tasks.size(); i++) {
+			if (tasks.get(i).name.equals(name))
+				return tasks.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * 执行所有步骤，等到必须的步骤都结束
+	 * @param optionalTimeoutMs 从开始算起，最多等待可选的步骤多长时间
+	 * @param listener 进度回调，可以为null
+	 * @return 所有步骤是否都成功完成
+	 */
+	public boolean run(long optionalTimeoutMs, ProgressListener listener) throws InterruptedException {
+		List<Task> all;
+		synchronized (this) {
+			startNanos = System.nanoTime();
+			all = new ArrayList<Task>(tasks);
+		}
+		for (int i = 0; i < all.size(); i++)
+			new Thread(all.get(i), "Finalize-" + all.get(i).name).start();
+
+		int lastPercent = -1;
+		synchronized (this) {
+			while (true) {
+				boolean done = true;
+				for (int i = 0; i < all.size(); i++) {
+					Task task = all.get(i);
+					if (!task.finished && (!task.optional || elapsedMs() < optionalTimeoutMs))
+						done = false;
+				}
+				int percent = getProgressLocked(all);
+				if (percent != lastPercent && listener != null) {
+					lastPercent = percent;
+					//回调只是把进度转发到界面线程，不会等待步骤，持有锁调用没有问题
+					listener.onProgress(percent);
+				}
+				if (done)
+					break;
+				wait(POLL_INTERVAL);
+			}
+			totalMs = elapsedMs();
+			for (int i = 0; i < all.size(); i++) {
+				if (!all.get(i).finished || all.get(i).error != null)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private int getProgressLocked(List<Task> all) {
+		float done = 0;
+		int total = 0;
+		for (int i = 0; i < all.size(); i++) {
+			Task task = all.get(i);
+			done += task.weight * task.getProgress();
+			total += task.weight;
+		}
+		return total == 0 ? 100 : (int) (done * 100 / total);
+	}
+
+	private long elapsedMs() {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+
+	/**
+	 * 步骤花费的时间（毫秒），还没有结束时为-1
+	 */
+	public synchronized long getStepMs(String name) {
+		Task task = find(name);
+		return task == null || task.endMs < 0 || task.startMs < 0 ? -1 : task.endMs - task.startMs;
+	}
+
+	/**
+	 * 步骤执行时抛出的异常，没有时为null
+	 */
+	public synchronized Exception getStepError(String name) {
+		Task task = find(name);
+		return task == null ? null : task.error;
+	}
+
+	/**
+	 * 从开始到必须的步骤都结束花费的时间（毫秒）
+	 */
+	public synchronized long getTotalMs() {
+		return totalMs;
+	}
+
+	/**
+	 * 每个步骤的开始、结束时间，相对于run开始的时间
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("total=").append(totalMs).append("ms");
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			builder.append(' ').append(task.name).append('=');
+			if (task.finished)
+				builder.append(task.startMs).append('-').append(task.endMs).append("ms");
+			else
+				builder.append("unfinished");
+			if (task.error != null)
+				builder.append("(failed)");
+		}
+		return builder.toString();
+	}
+}
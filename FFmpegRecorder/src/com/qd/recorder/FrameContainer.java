@@ -0,0 +1,490 @@
+package com.qd.recorder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 未编码视频帧的二进制容器
+ * 文件头{@link #FILE_HEADER_SIZE}字节（标识、版本、标记、完整帧间隔），之后每一帧是{@link #RECORD_HEADER_SIZE}字节的帧头
+ * （数据长度、类型、宽高、像素格式、解码后的大小、时间戳、CRC32）加上数据。
+ * 开启差分时，除每隔keyInterval帧的完整帧外，只保存和上一帧不同的字节段：
+ * 每段是“跳过的字节数、段长、段中的新数据”，静止的画面只剩很少的数据，差分比完整帧还大时仍然保存完整帧。
+ * 读取时完整帧的数据是容器缓冲区（可以是mmap）上的视图，不拷贝；差分帧直接在保存着上一帧的缓冲区上原地更新。
+ * 用{@link Writer}和{@link StreamReader}按流写入、读取，用{@link Reader}读取整个映射到内存的文件
+ * @author QD
+ *
+ */
+public class FrameContainer {
+
+	public static final int MAGIC = 0x51444643;				//"QDFC"
+	public static final int VERSION = 1;
+
+	public static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * 帧头：数据长度(4) 类型(1) 保留(3) 宽(4) 高(4) 像素格式(4) 解码后的大小(4) 时间戳(8) CRC32(4) 保留(4)
+	 */
+	public static final int RECORD_HEADER_SIZE = 40;
+
+	//文件头的标记
+	public static final int FLAG_DELTA = 1;					//可能包含差分帧
+
+	//帧的类型
+	public static final int TYPE_FULL = 0;
+	public static final int TYPE_DELTA = 1;
+
+	/**
+	 * 两个不同的字节段之间相同的字节少于这个数时合并成一段，每段有8字节的开销
+	 */
+	public static final int MIN_GAP = 16;
+
+	/**
+	 * 默认每隔多少帧保存一个完整帧
+	 */
+	public static final int DEFAULT_KEY_INTERVAL = 30;
+
+	/**
+	 * 读出的一帧，读取下一帧后内容会改变
+	 */
+	public static class Frame {
+		private int type, width, height, pixelFormat, frameSize, crc;
+		private int storedLength;
+		private long timeStampUs;
+		private ByteBuffer payload;
+		private CRC32 checksum;
+		private byte[] scratch;
+
+		private void readHeader(ByteBuffer header) throws IOException {
+			int length = header.getInt();
+			type = header.get();
+			header.position(header.position() + 3);
+			width = header.getInt();
+			height = header.getInt();
+			pixelFormat = header.getInt();
+			frameSize = header.getInt();
+			timeStampUs = header.getLong();
+			crc = header.getInt();
+			header.getInt();
+			if ((type != TYPE_FULL && type != TYPE_DELTA) || length < 0 || frameSize < 0
+					|| (type == TYPE_FULL && length != frameSize))
+				throw new IOException("Corrupt frame header");
+			payload = null;
+			storedLength = length;
+		}
+
+		public boolean isDelta() {
+			return type == TYPE_DELTA;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getPixelFormat() {
+			return pixelFormat;
+		}
+
+		/**
+		 * 解码后一帧的字节数
+		 */
+		public int getFrameSize() {
+			return frameSize;
+		}
+
+		public long getTimeStamp() {
+			return timeStampUs;
+		}
+
+		/**
+		 * 保存的数据，完整帧就是图像本身。是容器缓冲区上的视图，没有拷贝
+		 */
+		public ByteBuffer getPayload() {
+			return payload;
+		}
+
+		/**
+		 * 保存的数据是否和CRC一致
+		 */
+		public boolean verify() {
+			if (checksum == null) {
+				checksum = new CRC32();
+				scratch = new byte[8192];
+			}
+			return crc32(payload, checksum, scratch) == crc;
+		}
+
+		/**
+		 * 解码到dst的0~frameSize，差分帧要求dst中是上一帧解码后的图像
+		 */
+		public void decodeInto(ByteBuffer dst) throws IOException {
+			if (dst.capacity() < frameSize)
+				throw new IOException("Buffer of " + dst.capacity() + " bytes is smaller than frame of " + frameSize);
+			ByteBuffer out = dst.duplicate();
+			if (type == TYPE_FULL) {
+				out.clear();
+				out.put(payload.duplicate());
+				return;
+			}
+			applyDelta(payload.duplicate(), out, frameSize);
+		}
+	}
+
+	//按段更新上一帧
+	private static void applyDelta(ByteBuffer delta, ByteBuffer out, int frameSize) throws IOException {
+		int position = 0;
+		while (delta.hasRemaining()) {
+			if (delta.remaining() < 8)
+				throw new IOException("Corrupt delta frame");
+			position += delta.getInt();
+			int length = delta.getInt();
+			if (position < 0 || length < 0 || length > delta.remaining() || position + length > frameSize)
+				throw new IOException("Corrupt delta frame");
+			ByteBuffer run = delta.duplicate();
+			run.limit(run.position() + length);
+			out.clear();
+			out.position(position);
+			out.put(run);
+			delta.position(delta.position() + length);
+			position += length;
+		}
+	}
+
+	private static int crc32(ByteBuffer data, CRC32 checksum, byte[] scratch) {
+		checksum.reset();
+		if (data.hasArray()) {
+			checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			//直接缓冲区（mmap）没有数组，分段拷贝
+			ByteBuffer in = data.duplicate();
+			while (in.hasRemaining()) {
+				int count = Math.min(in.remaining(), scratch.length);
+				in.get(scratch, 0, count);
+				checksum.update(scratch, 0, count);
+			}
+		}
+		return (int) checksum.getValue();
+	}
+
+	private static void readFileHeader(ByteBuffer header, int[] info) throws IOException {
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a frame container");
+		int version = header.getShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported frame container version " + version);
+		info[0] = header.getShort();
+		info[1] = header.getInt();
+		header.getInt();
+	}
+
+	/**
+	 * 按流写入
+	 */
+	public static class Writer {
+		private final WritableByteChannel channel;
+		private final boolean delta;
+		private final int keyInterval;
+		private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		private final CRC32 checksum = new CRC32();
+
+		//上一帧和差分数据，开启差分时使用
+		private byte[] previous, deltaData;
+		private int previousSize = -1, previousWidth, previousHeight, previousFormat;
+		//距离上一个完整帧的帧数
+		private int sinceKey;
+
+		//统计：帧数、差分帧数、原始字节数、实际写入的字节数
+		private long frameCount, deltaCount, rawBytes, storedBytes;
+
+		/**
+		 * @param channel 输出，例如FileOutputStream的channel
+		 * @param delta 是否保存差分帧
+		 * @param keyInterval 开启差分时每隔多少帧保存一个完整帧
+		 */
+		public Writer(WritableByteChannel channel, boolean delta, int keyInterval) throws IOException {
+			this.channel = channel;
+			this.delta = delta;
+			this.keyInterval = Math.max(1, keyInterval);
+			this.sinceKey = this.keyInterval;
+			ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			fileHeader.putInt(MAGIC);
+			fileHeader.putShort((short) VERSION);
+			fileHeader.putShort((short) (delta ? FLAG_DELTA : 0));
+			fileHeader.putInt(this.keyInterval);
+			fileHeader.putInt(0);
+			fileHeader.flip();
+			write(fileHeader);
+			storedBytes = FILE_HEADER_SIZE;
+		}
+
+		/**
+		 * 写入一帧
+		 * @param data 图像数据，返回后可以修改
+		 */
+		public void write(byte[] data, int offset, int length, int width, int height, int pixelFormat, long timeStampUs)
+				throws IOException {
+			int type = TYPE_FULL;
+			int storedLength = length;
+			if (delta) {
+				boolean key = sinceKey >= keyInterval || length != previousSize || width != previousWidth
+						|| height != previousHeight || pixelFormat != previousFormat;
+				if (!key) {
+					int deltaLength = encodeDelta(data, offset, length);
+					if (deltaLength >= 0) {
+						type = TYPE_DELTA;
+						storedLength = deltaLength;
+					}
+				}
+				if (previous == null || previous.length < length) {
+					previous = new byte[length];
+					deltaData = new byte[length];
+				}
+				System.arraycopy(data, offset, previous, 0, length);
+				previousSize = length;
+				previousWidth = width;
+				previousHeight = height;
+				previousFormat = pixelFormat;
+				sinceKey = type == TYPE_FULL ? 1 : sinceKey + 1;
+			}
+			byte[] stored = type == TYPE_DELTA ? deltaData : data;
+			int storedOffset = type == TYPE_DELTA ? 0 : offset;
+			checksum.reset();
+			checksum.update(stored, storedOffset, storedLength);
+
+			header.clear();
+			header.putInt(storedLength);
+			header.put((byte) type);
+			header.put((byte) 0).put((byte) 0).put((byte) 0);
+			header.putInt(width);
+			header.putInt(height);
+			header.putInt(pixelFormat);
+			header.putInt(length);
+			header.putLong(timeStampUs);
+			header.putInt((int) checksum.getValue());
+			header.putInt(0);
+			header.flip();
+			write(header);
+			write(ByteBuffer.wrap(stored, storedOffset, storedLength));
+
+			frameCount++;
+			if (type == TYPE_DELTA)
+				deltaCount++;
+			rawBytes += length;
+			storedBytes += RECORD_HEADER_SIZE + storedLength;
+		}
+
+		/**
+		 * 和上一帧比较，写入deltaData
+		 * @return 差分数据的长度，不比完整帧小时为-1
+		 */
+		private int encodeDelta(byte[] data, int offset, int length) {
+			byte[] prev = previous, out = deltaData;
+			int size = 0, last = 0, i = 0;
+			while (i < length) {
+				if (data[offset + i] == prev[i]) {
+					i++;
+					continue;
+				}
+				//找到这一段的结尾：之后连续MIN_GAP个字节都相同
+				int start = i, end = i + 1, same = 0;
+				for (int j = end; j < length && same < MIN_GAP; j++) {
+					if (data[offset + j] == prev[j]) {
+						same++;
+					} else {
+						same = 0;
+						end = j + 1;
+					}
+				}
+				int runLength = end - start;
+				if (size + 8 + runLength >= length)
+					return -1;
+				putInt(out, size, start - last);
+				putInt(out, size + 4, runLength);
+				System.arraycopy(data, offset + start, out, size + 8, runLength);
+				size += 8 + runLength;
+				last = end;
+				i = end;
+			}
+			return size;
+		}
+
+		private static void putInt(byte[] out, int index, int value) {
+			out[index] = (byte) (value >>> 24);
+			out[index + 1] = (byte) (value >>> 16);
+			out[index + 2] = (byte) (value >>> 8);
+			out[index + 3] = (byte) value;
+		}
+
+		private void write(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		public void close() throws IOException {
+			channel.close();
+			previous = deltaData = null;
+		}
+
+		public long getFrameCount() {
+			return frameCount;
+		}
+
+		public long getDeltaCount() {
+			return deltaCount;
+		}
+
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		/**
+		 * 写入的总字节数，包括文件头和帧头
+		 */
+		public long getStoredBytes() {
+			return storedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "frames=" + frameCount + " delta=" + deltaCount + " raw=" + (rawBytes >> 10) + "KB stored="
+					+ (storedBytes >> 10) + "KB ratio=" + (rawBytes == 0 ? 0 : Math.round(storedBytes * 1000.0 / rawBytes) / 10.0) + "%";
+		}
+	}
+
+	/**
+	 * 读取整个在内存中的容器，例如{@link #map(File)}的结果，帧数据都是它上面的视图
+	 */
+	public static class Reader {
+		private final ByteBuffer buffer;
+		private final int flags, keyInterval;
+		private final Frame frame = new Frame();
+
+		public Reader(ByteBuffer buffer) throws IOException {
+			this.buffer = buffer.duplicate();
+			this.buffer.order(ByteOrder.BIG_ENDIAN);
+			int[] info = new int[2];
+			try {
+				readFileHeader(this.buffer, info);
+			} catch (BufferUnderflowException e) {
+				throw new EOFException("Truncated frame container");
+			}
+			flags = info[0];
+			keyInterval = info[1];
+		}
+
+		/**
+		 * @return 下一帧，没有更多的帧（或者最后一帧不完整）时为null
+		 */
+		public Frame next() throws IOException {
+			if (buffer.remaining() < RECORD_HEADER_SIZE)
+				return null;
+			frame.readHeader(buffer);
+			if (frame.storedLength > buffer.remaining())
+				return null;
+			ByteBuffer payload = buffer.duplicate();
+			payload.limit(payload.position() + frame.storedLength);
+			frame.payload = payload.slice();
+			buffer.position(buffer.position() + frame.storedLength);
+			return frame;
+		}
+
+		public boolean hasDelta() {
+			return (flags & FLAG_DELTA) != 0;
+		}
+
+		public int getKeyInterval() {
+			return keyInterval;
+		}
+	}
+
+	/**
+	 * 按流读取，数据读进一个循环使用的缓冲区
+	 */
+	public static class StreamReader {
+		private final ReadableByteChannel channel;
+		private final int flags, keyInterval;
+		private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		private ByteBuffer data = ByteBuffer.allocate(0);
+		private final Frame frame = new Frame();
+
+		public StreamReader(ReadableByteChannel channel) throws IOException {
+			this.channel = channel;
+			ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			if (!readFully(fileHeader))
+				throw new EOFException("Truncated frame container");
+			fileHeader.flip();
+			int[] info = new int[2];
+			readFileHeader(fileHeader, info);
+			flags = info[0];
+			keyInterval = info[1];
+		}
+
+		/**
+		 * @return 下一帧，没有更多的帧（或者最后一帧不完整）时为null
+		 */
+		public Frame next() throws IOException {
+			header.clear();
+			if (!readFully(header))
+				return null;
+			header.flip();
+			frame.readHeader(header);
+			if (data.capacity() < frame.storedLength)
+				data = ByteBuffer.allocate(frame.storedLength);
+			data.clear();
+			data.limit(frame.storedLength);
+			if (!readFully(data))
+				return null;
+			data.flip();
+			frame.payload = data;
+			return frame;
+		}
+
+		//读满buffer，读到一半遇到结尾时返回false
+		private boolean readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					return false;
+			}
+			return true;
+		}
+
+		public boolean hasDelta() {
+			return (flags & FLAG_DELTA) != 0;
+		}
+
+		public int getKeyInterval() {
+			return keyInterval;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * 把容器文件只读映射到内存，交给{@link Reader}读取
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			//映射在关闭文件后仍然有效
+			in.close();
+		}
+	}
+}
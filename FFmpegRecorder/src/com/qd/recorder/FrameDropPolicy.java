@@ -0,0 +1,151 @@
+package com.qd.recorder;
+
+/**
+ * 决定摄像头的每一帧是否送去编码
+ * 摄像头的帧率不稳定，编码又可能跟不上，以前由编码队列满时随机丢掉一帧，画面时快时慢。
+ * 这里在入队之前把时间轴按目标帧率分成等长的格子，每个格子最多编码一帧，多出来的帧均匀地跳过；
+ * 编码队列已满时放弃当前的格子，后面的帧仍然落在原来的格子上，间隔不会挤在一起。
+ * 送去编码的帧的时间戳严格递增，并且换算成编码器的帧序号后不会重复。
+ * 只依赖传入的时间戳和队列长度，不读取系统时间，同样的输入总是得到同样的结果
+ * @author QD
+ *
+ */
+public class FrameDropPolicy {
+
+	private final int frameRate;
+	private int targetFrameRate;
+
+	//按目标帧率划分格子的起点，和最后一个被占用（编码或因为队列满放弃）的格子，-1表示还没有
+	private long originUs = 0, lastSlot = -1;
+	//上一个送去编码的帧的时间戳和帧序号
+	private long lastTimeStampUs = -1, lastFrameNumber = -1;
+	private long firstTimeStampUs = -1;
+
+	//统计：收到的帧、送去编码的帧、按帧率跳过的、编码队列满丢掉的、帧序号重复丢掉的
+	private long offeredCount, acceptedCount, rateDroppedCount, backlogDroppedCount, duplicateDroppedCount;
+
+	/**
+	 * @param frameRate 编码器的帧率，时间戳按它换算成帧序号
+	 */
+	public FrameDropPolicy(int frameRate) {
+		if (frameRate <= 0)
+			throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+		this.frameRate = frameRate;
+		this.targetFrameRate = frameRate;
+	}
+
+	/**
+	 * 设置目标帧率，不能超过编码器的帧率，下一帧开始生效
+	 */
+	public synchronized void setTargetFrameRate(int targetFrameRate) {
+		targetFrameRate = Math.max(1, Math.min(frameRate, targetFrameRate));
+		if (targetFrameRate == this.targetFrameRate)
+			return;
+		this.targetFrameRate = targetFrameRate;
+		if (targetFrameRate == frameRate) {
+			//回到编码器帧率时格子重新对齐帧序号，否则格子和帧序号错开，一部分帧会因为帧序号重复被丢掉
+			originUs = 0;
+			lastSlot = lastFrameNumber;
+		} else if (lastTimeStampUs >= 0) {
+			//从最后编码的一帧开始重新划分格子
+			originUs = lastTimeStampUs;
+			lastSlot = 0;
+		}
+	}
+
+	public synchronized int getTargetFrameRate() {
+		return targetFrameRate;
+	}
+
+	/**
+	 * 摄像头线程中对每一帧调用
+	 * @param timeStampUs 这一帧的时间戳
+	 * @param pendingFrames 编码队列中等待的帧数
+	 * @param capacity 编码队列的容量
+	 * @return 这一帧是否送去编码，为false时直接归还缓冲区
+	 */
+	public synchronized boolean accept(long timeStampUs, int pendingFrames, int capacity) {
+		offeredCount++;
+		//和编码器的帧序号一样四舍五入，目标帧率等于编码器帧率时格子就是帧序号
+		long slot = ((timeStampUs - originUs) * targetFrameRate + 500000L) / 1000000L;
+		if (slot <= lastSlot) {
+			//这个格子已经有一帧了
+			rateDroppedCount++;
+			return false;
+		}
+		long frameNumber = toFrameNumber(timeStampUs);
+		if (lastFrameNumber >= 0 && frameNumber <= lastFrameNumber) {
+			//和上一帧落在同一个帧序号上，编码器会报pts不递增
+			duplicateDroppedCount++;
+			return false;
+		}
+		lastSlot = slot;
+
+		if (pendingFrames >= capacity) {
+			//编码跟不上，放弃这个格子
+			backlogDroppedCount++;
+			return false;
+		}
+
+		acceptedCount++;
+		lastTimeStampUs = timeStampUs;
+		lastFrameNumber = frameNumber;
+		if (firstTimeStampUs < 0)
+			firstTimeStampUs = timeStampUs;
+		return true;
+	}
+
+	private long toFrameNumber(long timeStampUs) {
+		return (timeStampUs * frameRate + 500000L) / 1000000L;
+	}
+
+	/**
+	 * 最后一个送去编码的帧的时间戳，单调递增，还没有时为-1
+	 */
+	public synchronized long getLastTimeStamp() {
+		return lastTimeStampUs;
+	}
+
+	/**
+	 * 实际送去编码的平均帧率，少于两帧时为0
+	 */
+	public synchronized double getAchievedFrameRate() {
+		if (acceptedCount < 2 || lastTimeStampUs <= firstTimeStampUs)
+			return 0;
+		return (acceptedCount - 1) * 1000000.0 / (lastTimeStampUs - firstTimeStampUs);
+	}
+
+	public synchronized long getOfferedCount() {
+		return offeredCount;
+	}
+
+	public synchronized long getAcceptedCount() {
+		return acceptedCount;
+	}
+
+	public synchronized long getRateDroppedCount() {
+		return rateDroppedCount;
+	}
+
+	public synchronized long getBacklogDroppedCount() {
+		return backlogDroppedCount;
+	}
+
+	public synchronized long getDuplicateDroppedCount() {
+		return duplicateDroppedCount;
+	}
+
+	/**
+	 * 丢掉的总帧数
+	 */
+	public synchronized long getDroppedCount() {
+		return rateDroppedCount + backlogDroppedCount + duplicateDroppedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "target=" + targetFrameRate + "fps achieved=" + Math.round(getAchievedFrameRate() * 10) / 10.0
+				+ "fps offered=" + offeredCount + " accepted=" + acceptedCount + " rateDropped=" + rateDroppedCount
+				+ " backlogDropped=" + backlogDroppedCount + " duplicateDropped=" + duplicateDroppedCount;
+	}
+}
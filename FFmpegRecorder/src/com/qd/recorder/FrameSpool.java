@@ -0,0 +1,351 @@
+package com.qd.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 录制时暂存未编码数据的文件
+ * 旋转后的图像和PCM按到达顺序追加成定长的记录：{@link #HEADER_SIZE}字节的头加上按类型固定大小的数据槽，
+ * 写入时把文件的一段映射到内存（每次{@link #WINDOW_SIZE}），追加只是一次内存拷贝，不经过write系统调用。
+ * 文件在打开时预先分配，写满后再按窗口扩展，结束后截掉没有用到的部分。
+ * 读取时按顺序取出记录交给真正的编码器，见{@link SpoolMediaEncoder}
+ * @author QD
+ *
+ */
+public class FrameSpool {
+
+	/**
+	 * 记录头：类型(4) 标记(4) 数据长度(4) 宽(4) 高(4) 格式(4) 时间戳(8)
+	 */
+	public static final int HEADER_SIZE = 32;
+
+	//记录的类型
+	public static final int TYPE_VIDEO = 1;
+	public static final int TYPE_AUDIO = 2;
+
+	//记录的标记
+	public static final int FLAG_KEY_FRAME = 1;			//编码时强制成关键帧
+
+	/**
+	 * 每次映射的长度
+	 */
+	public static final int WINDOW_SIZE = 8 << 20;
+
+	private final File file;
+	private final int videoRecordSize, audioRecordSize;
+	private final int audioSlotSamples;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer window;
+	private long windowStart;
+	//写到的位置，也就是已经用掉的字节数
+	private long position;
+	private long allocatedBytes;
+
+	//统计：视频记录数、音频记录数、数据字节数、追加花费的时间
+	private long videoCount, audioCount, payloadBytes, writeNanos;
+
+	/**
+	 * @param path 暂存文件
+	 * @param videoSlotBytes 一帧图像最多多少字节
+	 * @param audioSlotSamples 一条音频记录最多多少个采样，更长的一段会拆成几条
+	 */
+	public FrameSpool(String path, int videoSlotBytes, int audioSlotSamples) {
+		this.file = new File(path);
+		this.videoRecordSize = align(HEADER_SIZE + videoSlotBytes);
+		this.audioRecordSize = align(HEADER_SIZE + audioSlotSamples * 2);
+		this.audioSlotSamples = audioSlotSamples;
+	}
+
+	//记录按8字节对齐，时间戳不会跨越对齐边界
+	private static int align(int size) {
+		return (size + 7) & ~7;
+	}
+
+	/**
+	 * 创建文件并预先分配
+	 * @param preallocateBytes 预计会用到的字节数，不够时自动扩展
+	 */
+	public synchronized void open(long preallocateBytes) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		allocatedBytes = Math.max(preallocateBytes, WINDOW_SIZE);
+		raf.setLength(allocatedBytes);
+		position = 0;
+		videoCount = audioCount = payloadBytes = writeNanos = 0;
+		map(0);
+	}
+
+	private void map(long start) throws IOException {
+		long size = Math.max(WINDOW_SIZE, Math.max(videoRecordSize, audioRecordSize));
+		if (start + size > allocatedBytes) {
+			//按窗口扩展，map超出文件长度时也会扩展，这里先设置好便于统计
+			allocatedBytes = start + size;
+			raf.setLength(allocatedBytes);
+		}
+		window = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		window.order(ByteOrder.nativeOrder());
+		windowStart = start;
+	}
+
+	private void ensureWindow(int recordSize) throws IOException {
+		if (channel == null)
+			throw new IOException("Spool is not open: " + file);
+		if (window.remaining() < recordSize)
+			map(position);
+	}
+
+	private void putHeader(int type, int flags, int length, int width, int height, int format, long timeStampUs) {
+		window.putInt(type);
+		window.putInt(flags);
+		window.putInt(length);
+		window.putInt(width);
+		window.putInt(height);
+		window.putInt(format);
+		window.putLong(timeStampUs);
+	}
+
+	//跳到下一条记录的开始
+	private void endRecord(long recordStart, int recordSize) {
+		position = recordStart + recordSize;
+		window.position((int) (position - windowStart));
+	}
+
+	/**
+	 * 追加一帧图像
+	 * @param data 从position到limit的图像数据，不能超过槽的大小，返回后position不变
+	 * @param flags 例如{@link #FLAG_KEY_FRAME}
+	 */
+	public synchronized void appendVideo(ByteBuffer data, int width, int height, int format, int flags, long timeStampUs)
+			throws IOException {
+		long start = System.nanoTime();
+		int length = data.remaining();
+		if (length > videoRecordSize - HEADER_SIZE)
+			throw new IOException("Frame of " + length + " bytes exceeds the video slot");
+		ensureWindow(videoRecordSize);
+		long recordStart = position;
+		putHeader(TYPE_VIDEO, flags, length, width, height, format, timeStampUs);
+		int dataPosition = data.position();
+		window.put(data);
+		data.position(dataPosition);
+		endRecord(recordStart, videoRecordSize);
+		videoCount++;
+		payloadBytes += length;
+		writeNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * 追加一段16位PCM，超过槽的大小时拆成几条记录
+	 * @param samples 从position到limit的采样，返回后position不变
+	 */
+	public synchronized void appendAudio(ShortBuffer samples) throws IOException {
+		long start = System.nanoTime();
+		int from = samples.position(), to = samples.limit();
+		while (from < to) {
+			int count = Math.min(to - from, audioSlotSamples);
+			ensureWindow(audioRecordSize);
+			long recordStart = position;
+			putHeader(TYPE_AUDIO, 0, count * 2, 0, 0, 0, -1L);
+			for (int i = from; i < from + count; i++)
+				window.putShort(samples.get(i));
+			endRecord(recordStart, audioRecordSize);
+			from += count;
+			audioCount++;
+			payloadBytes += count * 2;
+		}
+		writeNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * 结束写入，截掉预先分配但没有用到的部分，之后可以用{@link #openReader()}读取
+	 */
+	public synchronized void finish() throws IOException {
+		if (channel == null)
+			return;
+		window = null;
+		try {
+			raf.setLength(position);
+		} catch (IOException e) {
+			//部分系统在映射还没有回收时不能截断，只影响统计的占用空间
+		}
+		allocatedBytes = position;
+		raf.close();
+		raf = null;
+		channel = null;
+	}
+
+	/**
+	 * 结束并删除文件
+	 */
+	public synchronized void delete() {
+		try {
+			finish();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	/**
+	 * 按写入的顺序读取记录，finish之后调用
+	 */
+	public synchronized Reader openReader() throws IOException {
+		return new Reader(file, position, videoRecordSize, audioRecordSize);
+	}
+
+	/**
+	 * 顺序读取记录，数据直接读进调用者的缓冲区
+	 */
+	public static class Reader {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final long end;
+		private final int videoRecordSize, audioRecordSize;
+		private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
+		private long position, next;
+
+		//当前记录
+		private int type, flags, length, width, height, format;
+		private long timeStampUs;
+
+		Reader(File file, long end, int videoRecordSize, int audioRecordSize) throws IOException {
+			this.raf = new RandomAccessFile(file, "r");
+			this.channel = raf.getChannel();
+			this.end = end;
+			this.videoRecordSize = videoRecordSize;
+			this.audioRecordSize = audioRecordSize;
+		}
+
+		/**
+		 * 读取下一条记录的头
+		 * @return 没有更多记录时为false
+		 */
+		public boolean next() throws IOException {
+			position = next;
+			if (position + HEADER_SIZE > end)
+				return false;
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			type = header.getInt();
+			flags = header.getInt();
+			length = header.getInt();
+			width = header.getInt();
+			height = header.getInt();
+			format = header.getInt();
+			timeStampUs = header.getLong();
+			if (type != TYPE_VIDEO && type != TYPE_AUDIO)
+				throw new IOException("Corrupt spool record at " + position);
+			next = position + (type == TYPE_VIDEO ? videoRecordSize : audioRecordSize);
+			return true;
+		}
+
+		/**
+		 * 把当前记录的数据读进dst，从dst的position开始
+		 */
+		public void readPayload(ByteBuffer dst) throws IOException {
+			int limit = dst.limit();
+			dst.limit(dst.position() + length);
+			try {
+				readFully(dst, position + HEADER_SIZE);
+			} finally {
+				dst.limit(limit);
+			}
+		}
+
+		private void readFully(ByteBuffer dst, long offset) throws IOException {
+			while (dst.hasRemaining()) {
+				int read = channel.read(dst, offset);
+				if (read < 0)
+					throw new IOException("Unexpected end of spool at " + offset);
+				offset += read;
+			}
+		}
+
+		/**
+		 * 读到的比例，0~1
+		 */
+		public float getProgress() {
+			return end == 0 ? 1 : Math.min(1, (float) position / end);
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getFormat() {
+			return format;
+		}
+
+		public long getTimeStamp() {
+			return timeStampUs;
+		}
+
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getVideoCount() {
+		return videoCount;
+	}
+
+	public synchronized long getAudioCount() {
+		return audioCount;
+	}
+
+	/**
+	 * 已经用掉的字节数（包括记录头和槽中没有用到的部分）
+	 */
+	public synchronized long getUsedBytes() {
+		return position;
+	}
+
+	/**
+	 * 文件在磁盘上占用的长度
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * 追加的吞吐量，MB/s，只算花在追加上的时间
+	 */
+	public synchronized double getThroughput() {
+		return writeNanos == 0 ? 0 : payloadBytes * 1000.0 / writeNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "video=" + videoCount + " audio=" + audioCount + " used=" + (position >> 10) + "KB allocated="
+				+ (allocatedBytes >> 10) + "KB payload=" + (payloadBytes >> 10) + "KB throughput="
+				+ Math.round(getThroughput() * 10) / 10.0 + "MB/s";
+	}
+}
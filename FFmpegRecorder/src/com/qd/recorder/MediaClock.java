@@ -0,0 +1,190 @@
+package com.qd.recorder;
+
+/**
+ * 音视频统一的时钟，单位微秒
+ * 以录音的采样数为准：音频时间 = 采样数 / 采样率，支持任意采样率，全部使用64位运算。
+ * 视频帧的时间戳 = 最近一次音频时间 + 从那之后经过的系统时间，外推的时间不超过一段录音的时长，
+ * 每收到一段录音就重新对齐一次，系统时钟和声卡时钟之间的漂移不会累积；
+ * 暂停期间没有新的录音，恢复后的第一帧也不会因为暂停的时长而跳变。
+ * 调用者传入当前时间（System.nanoTime()），方便在测试中模拟
+ * @author QD
+ *
+ */
+public class MediaClock {
+
+	private final int sampleRate;
+	private final long frameIntervalUs;			//一帧的标准时长
+
+	//音频：累计采样数、对应的时间、最近一次对齐时的系统时间
+	private long sampleCount = 0L;
+	private volatile long audioTimeUs = 0L;
+	private long anchorNanos = -1L;
+	private long lastChunkUs = 0L;				//最近一段录音的时长
+
+	//还没有录音数据时，用系统时间计算视频时间戳
+	private long startNanos = -1L;
+
+	//视频：上一帧的时间戳
+	private volatile long lastVideoTimeUs = -1L;
+
+	//统计：帧数、帧间隔总和、平滑抖动、最大偏差、被校正（时间戳回退）的次数、最大外推时间
+	private long videoFrameCount, intervalSumUs;
+	private double jitterUs;
+	private long maxDeviationUs, correctionCount, maxExtrapolationUs;
+
+	/**
+	 * @param sampleRate 音频采样率
+	 * @param frameRate 视频帧率
+	 */
+	public MediaClock(int sampleRate, int frameRate) {
+		if (sampleRate <= 0 || frameRate <= 0)
+			throw new IllegalArgumentException("Invalid clock " + sampleRate + "Hz " + frameRate + "fps");
+		this.sampleRate = sampleRate;
+		this.frameIntervalUs = 1000000L / frameRate;
+	}
+
+	/**
+	 * 采样数换算成微秒
+	 */
+	public static long samplesToMicros(long samples, int sampleRate) {
+		return samples * 1000000L / sampleRate;
+	}
+
+	/**
+	 * 开始录制时调用，在收到第一段录音之前视频时间戳从这里开始计算
+	 */
+	public synchronized void start(long nowNanos) {
+		startNanos = nowNanos;
+	}
+
+	/**
+	 * 录音线程调用，一段采样录制完成
+	 * @param count 这一段的采样数
+	 * @param nowNanos 读到这一段的系统时间，即这一段最后一个采样对应的时间
+	 * @return 当前的音频时间
+	 */
+	public synchronized long onAudioSamples(int count, long nowNanos) {
+		if (count <= 0)
+			return audioTimeUs;
+		long before = audioTimeUs;
+		sampleCount += count;
+		audioTimeUs = samplesToMicros(sampleCount, sampleRate);
+		lastChunkUs = audioTimeUs - before;
+		anchorNanos = nowNanos;
+		return audioTimeUs;
+	}
+
+	/**
+	 * 摄像头线程调用，计算当前这一帧的时间戳，保证严格递增
+	 */
+	public synchronized long stampVideoFrame(long nowNanos) {
+		long stamp;
+		if (anchorNanos < 0) {
+			stamp = startNanos < 0 ? 0L : Math.max(0L, (nowNanos - startNanos) / 1000L);
+		} else {
+			long elapsed = Math.max(0L, (nowNanos - anchorNanos) / 1000L);
+			//新的录音没到之前最多外推一段录音的时长加一帧，暂停恢复后不会跳过暂停的时间
+			long limit = Math.max(lastChunkUs, frameIntervalUs) + frameIntervalUs;
+			if (elapsed > limit)
+				elapsed = limit;
+			if (elapsed > maxExtrapolationUs)
+				maxExtrapolationUs = elapsed;
+			stamp = audioTimeUs + elapsed;
+		}
+
+		long last = lastVideoTimeUs;
+		if (last >= 0) {
+			if (stamp <= last) {
+				//系统时钟比声卡时钟走得快，对齐后时间戳回退了，向后微调
+				stamp = last + 1;
+				correctionCount++;
+			}
+			updateJitter(stamp - last);
+		}
+		videoFrameCount++;
+		lastVideoTimeUs = stamp;
+		return stamp;
+	}
+
+	//帧间隔相对平均间隔的偏差，抖动按RFC 3550的方式平滑
+	private void updateJitter(long intervalUs) {
+		intervalSumUs += intervalUs;
+		long intervals = videoFrameCount;
+		long mean = intervalSumUs / intervals;
+		long deviation = Math.abs(intervalUs - mean);
+		if (intervals > 1) {
+			jitterUs += (deviation - jitterUs) / 16.0;
+			if (deviation > maxDeviationUs)
+				maxDeviationUs = deviation;
+		}
+	}
+
+	/**
+	 * 当前的音频时间，微秒
+	 */
+	public long getAudioTimeUs() {
+		return audioTimeUs;
+	}
+
+	/**
+	 * 最后一帧视频的时间戳，微秒，还没有视频帧时为-1
+	 */
+	public long getLastVideoTimeUs() {
+		return lastVideoTimeUs;
+	}
+
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public synchronized long getVideoFrameCount() {
+		return videoFrameCount;
+	}
+
+	/**
+	 * 平均帧间隔，微秒
+	 */
+	public synchronized long getMeanFrameIntervalUs() {
+		return videoFrameCount > 1 ? intervalSumUs / (videoFrameCount - 1) : frameIntervalUs;
+	}
+
+	/**
+	 * 平滑后的帧间隔抖动，微秒
+	 */
+	public synchronized long getJitterUs() {
+		return Math.round(jitterUs);
+	}
+
+	/**
+	 * 帧间隔相对平均间隔的最大偏差，微秒
+	 */
+	public synchronized long getMaxDeviationUs() {
+		return maxDeviationUs;
+	}
+
+	/**
+	 * 时间戳回退后被校正的次数
+	 */
+	public synchronized long getCorrectionCount() {
+		return correctionCount;
+	}
+
+	/**
+	 * 相对音频时间最多外推了多少，微秒
+	 */
+	public synchronized long getMaxExtrapolationUs() {
+		return maxExtrapolationUs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "audio=" + audioTimeUs + "us samples=" + sampleCount + " video=" + lastVideoTimeUs
+				+ "us frames=" + videoFrameCount + " interval=" + getMeanFrameIntervalUs()
+				+ "us jitter=" + getJitterUs() + "us maxDeviation=" + maxDeviationUs
+				+ "us corrections=" + correctionCount + " maxExtrapolation=" + maxExtrapolationUs + "us";
+	}
+}
@@ -0,0 +1,120 @@
+package com.qd.recorder;
+
+import com.googlecode.javacv.cpp.avutil;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 一次录制使用的编码器，同时编码视频和音频并写入同一个输出
+ * 不同的实现（libavcodec、直接输出原始数据等）通过{@link Provider}注册到{@link EncoderRegistry}，
+ * 录制时按编码器id和之前统计的编码耗时选择
+ * @author QD
+ *
+ */
+public abstract class MediaEncoder implements VideoEncoder, AudioEncoder {
+
+	/**
+	 * 创建编码器的工厂
+	 */
+	public interface Provider {
+		/**
+		 * 名称，用于日志和统计编码耗时
+		 */
+		String getName();
+
+		/**
+		 * 是否支持这种视频编码器
+		 * @param videoCodec 例如AV_CODEC_ID_MPEG4
+		 */
+		boolean supports(int videoCodec);
+
+		/**
+		 * 创建编码器，还没有开始录制
+		 * @param path 输出文件
+		 * @param parameters 录制参数
+		 * @param videoCodec 使用的视频编码器，是{@link #supports(int)}返回true的一种
+		 */
+		MediaEncoder create(String path, RecorderParameters parameters, int videoCodec) throws Exception;
+	}
+
+	private final String name;
+	private final int videoCodec;
+	//统计：编码的帧数、编码花费的总时间
+	private long encodedFrames, encodeNanos;
+
+	protected MediaEncoder(String name, int videoCodec) {
+		this.name = name;
+		this.videoCodec = videoCodec;
+	}
+
+	/**
+	 * 打开编码器和输出文件
+	 */
+	public abstract void start() throws Exception;
+
+	/**
+	 * 编码完剩下的数据并结束输出文件
+	 */
+	public abstract void stop() throws Exception;
+
+	/**
+	 * 释放资源，stop之后或者出错时调用
+	 */
+	public abstract void release();
+
+	@Override
+	public final boolean encodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return onEncodeFrame(image, pixelFormat, timeStampUs);
+		} finally {
+			encodeNanos += System.nanoTime() - start;
+			encodedFrames++;
+		}
+	}
+
+	/**
+	 * 编码一帧，见{@link VideoEncoder#encodeFrame}
+	 */
+	protected abstract boolean onEncodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception;
+
+	/**
+	 * 一帧图像中像素格式实际用到的字节数，yuvIplImage按2通道分配，比NV21、YUV420P大
+	 */
+	protected static int getImageBytes(IplImage image, int pixelFormat) {
+		if (pixelFormat == avutil.AV_PIX_FMT_NV21 || pixelFormat == avutil.AV_PIX_FMT_NV12
+				|| pixelFormat == avutil.AV_PIX_FMT_YUV420P)
+			return image.width() * image.height() * 3 / 2;
+		return image.imageSize();
+	}
+
+	/**
+	 * 输出文件当前写到的位置（字节），不知道时为-1
+	 */
+	public long getOutputPosition() {
+		return -1;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getVideoCodec() {
+		return videoCodec;
+	}
+
+	public long getEncodedFrames() {
+		return encodedFrames;
+	}
+
+	/**
+	 * 平均每帧的编码时间，单位微秒，还没有编码时为-1
+	 */
+	public long getMeanEncodeMicros() {
+		return encodedFrames == 0 ? -1 : encodeNanos / encodedFrames / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return name + " codec=" + videoCodec + " frames=" + encodedFrames + " meanEncode=" + getMeanEncodeMicros() + "us";
+	}
+}
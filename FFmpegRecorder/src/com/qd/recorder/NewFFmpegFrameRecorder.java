@@ -48,6 +48,7 @@
 
 package com.qd.recorder;
 
+import android.os.Debug;
 import android.util.Log;
 
 import com.googlecode.javacpp.BytePointer;
@@ -64,6 +65,7 @@ import com.googlecode.javacv.cpp.opencv_imgproc;
 import com.jack.util.JLog;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -71,6 +73,9 @@ import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
 import static com.googlecode.javacv.cpp.avcodec.*;
@@ -86,6 +91,19 @@ import static com.googlecode.javacv.cpp.swscale.*;
  * @author Samuel Audet
  */
 public class NewFFmpegFrameRecorder extends FrameRecorder {
+    /**
+     * 视频编码器的多线程方式
+     */
+    public static enum ThreadMode {
+        SINGLE,         //单线程
+        SLICE,          //一帧分成多个slice并行编码，不增加延迟
+        FRAME,          //多帧并行编码，每多一个线程输出晚一帧
+        AUTO            //编码器支持slice时用SLICE，否则支持帧级线程时用FRAME
+    }
+
+    //自动选择线程数时最多用几个核，再多对480x480的编码没有明显提升
+    public static final int MAX_AUTO_THREADS = 4;
+
     public static NewFFmpegFrameRecorder createDefault(File f, int w, int h)   throws Exception { return new NewFFmpegFrameRecorder(f, w, h); }
     public static NewFFmpegFrameRecorder createDefault(String f, int w, int h) throws Exception { return new NewFFmpegFrameRecorder(f, w, h); }
 
@@ -178,6 +196,28 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             avcodec_free_frame(tmp_picture);
             tmp_picture = null;
         }
+        picture_fill = tmp_picture_fill = null;
+        picture_data = tmp_picture_data = null;
+        picture_linesize = tmp_picture_linesize = null;
+        picture_raw = null;
+        cached_image = null;
+        cached_image_data = null;
+        convert_width = convert_height = convert_format = -1;
+        video_c_time_base = video_st_time_base = audio_c_time_base = null;
+        fragmented = false;
+        if (journal != null) {
+            //没有正常写完文件尾，保留日志用于恢复
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+        force_key_frame = last_key_packet = false;
+        last_packet_timestamp = -1;
+        video_delay_frames = 0;
+        micros_time_base = null;
         if (video_outbuf != null) {
             av_free(video_outbuf);
             video_outbuf = null;
@@ -192,6 +232,9 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             }
             samples_out = null;
         }
+        samples_out_buffers = null;
+        freeConvertBuffers();
+        samples_fifo = null;
         if (audio_outbuf != null) {
             av_free(audio_outbuf);
             audio_outbuf = null;
@@ -239,7 +282,14 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
     private int video_outbuf_size;
     private AVFrame frame;
     private Pointer[] samples_in;
+    private Buffer[] samples_in_buffers;						//samples_in直接包装的direct buffer，为null时samples_in是自己分配的内存
     private BytePointer[] samples_out;
+    private ByteBuffer[] samples_out_buffers;					//samples_out的视图，从samples_fifo中读出一帧
+    private BytePointer[] samples_conv;						//swr_convert的输出，容量不够时才重新分配
+    private ByteBuffer[] samples_conv_buffers;
+    private int samples_conv_capacity;
+    private AudioSampleFifo samples_fifo;					//重采样后的采样，按audio_input_frame_size整帧取出编码
+    private int samples_in_rate;
     private PointerPointer samples_in_ptr;
     private PointerPointer samples_out_ptr;
     private BytePointer audio_outbuf;
@@ -255,6 +305,61 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
     private AVPacket video_pkt, audio_pkt;
     private int[] got_video_packet, got_audio_packet;
 
+    //每一帧都会用到的JavaCPP包装对象，start时创建一次，避免每帧new出带finalizer的对象
+    private AVPicture picture_fill, tmp_picture_fill;
+    private PointerPointer picture_data, tmp_picture_data;
+    private IntPointer picture_linesize, tmp_picture_linesize;
+    private BytePointer picture_raw;
+    private IplImage cached_image;						//上一次编码的图像和它的imageData
+    private BytePointer cached_image_data;
+    private int convert_width = -1, convert_height = -1, convert_format = -1;		//img_convert_ctx对应的源图像
+    private AVRational video_c_time_base, video_st_time_base, audio_c_time_base;
+
+    //封装格式的参数，写文件头时传给muxer，例如mp4的movflags
+    private final HashMap<String, String> formatOptions = new HashMap<String, String>();
+    private boolean fragmented = false;					//分片mp4，每个关键帧后把已经写好的分片刷到磁盘
+    private volatile boolean force_key_frame = false;		//下一帧强制编码成关键帧
+    private boolean last_key_packet = false;				//最后写入的视频包是否是关键帧
+    private long last_packet_timestamp = -1;				//这次record写入的视频包的时间戳（微秒），没有写入时为-1
+
+    //视频编码的线程方式、线程数（0表示按CPU核数），以及由此带来的输出延迟（帧）
+    private ThreadMode video_thread_mode = ThreadMode.SINGLE;
+    private int video_thread_count = 0;
+    private int video_delay_frames = 0;
+    private AVRational micros_time_base;
+
+    //崩溃恢复日志，为null时不记录
+    private String journal_path;
+    private RecordingJournal journal;
+
+    //调试用：统计每次record在当前线程中分配的Java对象个数，稳定录制时应该为0
+    private boolean allocationCounting = false;
+    private long countedRecords, allocatingRecords, allocationCount;
+    private int lastAllocatingRecord = -1;
+
+    //按设置的线程方式和CPU核数设置thread_count和thread_type，在avcodec_open2之前调用
+    private void configureThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int count = video_thread_count > 0 ? video_thread_count : Math.min(cores, MAX_AUTO_THREADS);
+        ThreadMode mode = video_thread_mode;
+        if (mode == ThreadMode.AUTO) {
+            int capabilities = video_codec.capabilities();
+            if ((capabilities & (CODEC_CAP_SLICE_THREADS | CODEC_CAP_AUTO_THREADS)) != 0) {
+                mode = ThreadMode.SLICE;
+            } else if ((capabilities & CODEC_CAP_FRAME_THREADS) != 0) {
+                mode = ThreadMode.FRAME;
+            } else {
+                mode = ThreadMode.SINGLE;
+            }
+        }
+        if (mode == ThreadMode.SINGLE || count <= 1) {
+            video_c.thread_count(1);
+            return;
+        }
+        video_c.thread_count(count);
+        video_c.thread_type(mode == ThreadMode.FRAME ? AVCodecContext.FF_THREAD_FRAME : AVCodecContext.FF_THREAD_SLICE);
+    }
+
     @Override public int getFrameNumber() {
         return picture == null ? super.getFrameNumber() : (int)picture.pts();
     }
@@ -524,6 +629,7 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             for (Entry<String, String> e : videoOptions.entrySet()) {
                 av_dict_set(options, e.getKey(), e.getValue(), 0);
             }
+            configureThreads();
             JLog.print("打开视频编码器");
             //打开编码器
             /* open the codec */
@@ -531,6 +637,12 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
                 release();
                 throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
             }
+            //帧级多线程时编码器会缓存thread_count-1帧，输出的包比输入的帧晚这么多帧
+            video_delay_frames = (video_c.active_thread_type() & AVCodecContext.FF_THREAD_FRAME) != 0
+                    ? Math.max(0, video_c.thread_count() - 1) : 0;
+            video_delay_frames += video_c.has_b_frames();
+            JLog.print("视频编码线程 thread_count=" + video_c.thread_count() + " active_thread_type="
+                    + video_c.active_thread_type() + " delay=" + video_delay_frames);
             //释放附加参数
             av_dict_free(options);
 
@@ -566,6 +678,15 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
                 release();
                 throw new Exception("avcodec_alloc_frame() error: Could not allocate temporary picture.");
             }
+
+            //AVFrame的地址不会再变，这些包装对象可以一直复用
+            picture_fill = new AVPicture(picture);
+            tmp_picture_fill = new AVPicture(tmp_picture);
+            picture_data = new PointerPointer(picture);
+            tmp_picture_data = new PointerPointer(tmp_picture);
+            picture_linesize = picture.linesize();
+            tmp_picture_linesize = tmp_picture.linesize();
+            picture_raw = new BytePointer(picture);
         }
 
         if (audio_st != null) {
@@ -610,10 +731,16 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             int data_size = av_samples_get_buffer_size((IntPointer)null, audio_c.channels(),													//av_samples_get_buffer_size 采样的音频占用的i字节数 = 通道数 × 采样频率 × 采样位数
                     audio_input_frame_size, audio_c.sample_fmt(), 1) / planes;
             samples_out = new BytePointer[planes];
+            samples_out_buffers = new ByteBuffer[planes];
             for (int i = 0; i < samples_out.length; i++) {
                 samples_out[i] = new BytePointer(av_malloc(data_size)).capacity(data_size);						//capacity 设置Pointer里面的capacity变量
+                samples_out_buffers[i] = samples_out[i].asByteBuffer().order(ByteOrder.nativeOrder());
             }
+            //一个平面中每个采样的字节数，交错格式包含所有声道
+            samples_fifo = new AudioSampleFifo(planes, data_size / audio_input_frame_size, audio_input_frame_size * 4);
+            samples_in_rate = 0;
             samples_in = new Pointer[AVFrame.AV_NUM_DATA_POINTERS];												//数组
+            samples_in_buffers = new Buffer[AVFrame.AV_NUM_DATA_POINTERS];
             samples_in_ptr  = new PointerPointer(AVFrame.AV_NUM_DATA_POINTERS);						//native层去分配数组
             samples_out_ptr = new PointerPointer(AVFrame.AV_NUM_DATA_POINTERS);
 
@@ -637,7 +764,113 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         }
 
         /* write the stream header, if any */
-        avformat_write_header(oc, (PointerPointer)null);
+        AVDictionary formatDict = new AVDictionary(null);
+        for (Entry<String, String> e : formatOptions.entrySet()) {
+            av_dict_set(formatDict, e.getKey(), e.getValue(), 0);
+        }
+        if ((ret = avformat_write_header(oc, formatDict)) < 0) {
+            av_dict_free(formatDict);
+            release();
+            throw new Exception("avformat_write_header() error " + ret + ": Could not write header to '" + filename + "'");
+        }
+        //muxer用掉的参数会从字典中删除，剩下的是不支持的
+        AVDictionaryEntry unused = null;
+        while ((unused = av_dict_get(formatDict, "", unused, AV_DICT_IGNORE_SUFFIX)) != null) {
+            JLog.print("muxer不支持的参数 " + unused.key().getString() + "=" + unused.value().getString());
+        }
+        av_dict_free(formatDict);
+        String movflags = formatOptions.get("movflags");
+        fragmented = movflags != null && (movflags.contains("frag_") || movflags.contains("empty_moov"));
+
+        //time_base()按值返回，每次调用都会分配一个AVRational，写完文件头后流的time_base不再变化
+        if (video_st != null) {
+            video_c_time_base = video_c.time_base();
+            video_st_time_base = video_st.time_base();
+            micros_time_base = new AVRational().num(1).den(1000000);
+        }
+        if (audio_st != null) {
+            audio_c_time_base = audio_c.time_base();
+        }
+        openJournal();
+    }
+
+    //分片mp4已经可以直接播放，不需要日志
+    private void openJournal() {
+        if (journal_path == null || fragmented || (oformat.flags() & AVFMT_NOFILE) != 0) {
+            return;
+        }
+        List<RecordingJournal.Stream> streams = new ArrayList<RecordingJournal.Stream>();
+        if (video_st != null) {
+            RecordingJournal.Stream st = journalStream(video_st, video_c, video_c_time_base, video_st_time_base);
+            st.width = video_c.width();
+            st.height = video_c.height();
+            st.pixelFormat = video_c.pix_fmt();
+            streams.add(st);
+        }
+        if (audio_st != null) {
+            RecordingJournal.Stream st = journalStream(audio_st, audio_c, audio_c_time_base, audio_c_time_base);
+            st.sampleRate = audio_c.sample_rate();
+            st.channels = audio_c.channels();
+            st.sampleFormat = audio_c.sample_fmt();
+            st.frameSize = audio_c.frame_size();
+            streams.add(st);
+        }
+        journal = new RecordingJournal(journal_path);
+        try {
+            journal.open(streams);
+        } catch (IOException e) {
+            //日志写不了不影响录制，只是不能恢复
+            JLog.print("创建录制日志失败 " + e);
+            journal.delete();
+            journal = null;
+        }
+    }
+
+    private RecordingJournal.Stream journalStream(AVStream avStream, AVCodecContext c,
+            AVRational codec_time_base, AVRational packet_time_base) {
+        RecordingJournal.Stream st = new RecordingJournal.Stream();
+        st.index = avStream.index();
+        st.codecType = c.codec_type();
+        st.codecId = c.codec_id();
+        st.codecTimeBaseNum = codec_time_base.num();
+        st.codecTimeBaseDen = codec_time_base.den();
+        st.timeBaseNum = packet_time_base.num();
+        st.timeBaseDen = packet_time_base.den();
+        st.bitrate = c.bit_rate();
+        if (c.extradata() != null && !c.extradata().isNull() && c.extradata_size() > 0) {
+            st.extradata = new byte[c.extradata_size()];
+            c.extradata().get(st.extradata, 0, st.extradata.length);
+        }
+        return st;
+    }
+
+    /**
+     * 记录日志时不交错，每个包直接写进文件，写入前后的位置就是这个包在文件中的范围
+     * 交错写入时包会在muxer的队列里等待，写入的时机和位置都无法知道
+     */
+    private void writeJournaled(AVPacket pkt, boolean key) throws Exception {
+        int stream = pkt.stream_index();
+        //av_write_frame可能改写时间戳，先保存原始值
+        long pts = pkt.pts(), dts = pkt.dts();
+        int duration = pkt.duration();
+        long offset = avio_tell(oc.pb());
+        int ret;
+        if ((ret = av_write_frame(oc, pkt)) < 0) {
+            throw new Exception("av_write_frame() error " + ret + " while writing journaled frame.");
+        }
+        int size = (int)(avio_tell(oc.pb()) - offset);
+        try {
+            journal.append(stream, key, offset, size, pts, dts, duration);
+            if (key && video_st != null && stream == video_st.index()) {
+                //每个GOP把数据和日志都写到系统缓存，进程被杀时最多丢失最后一个GOP
+                avio_flush(oc.pb());
+                journal.flush();
+            }
+        } catch (IOException e) {
+            JLog.print("录制日志写入失败 " + e);
+            journal.delete();
+            journal = null;
+        }
     }
 
     public void stop() throws Exception {
@@ -645,16 +878,23 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             try {
                 /* flush all the buffers */
                 while (video_st != null && record((IplImage)null, AV_PIX_FMT_NONE));
+                if (audio_st != null) {
+                    flushSamples();
+                }
                 while (audio_st != null && record((AVFrame)null));
 
-                if (interleaved && video_st != null && audio_st != null) {
+                if (interleaved && journal == null && video_st != null && audio_st != null) {
                     av_interleaved_write_frame(oc, null);
                 } else {
                     av_write_frame(oc, null);
                 }
 
                 /* write the trailer, if any */
-                av_write_trailer(oc);
+                if (av_write_trailer(oc) >= 0 && journal != null) {
+                    //文件已经完整，不再需要日志
+                    journal.delete();
+                    journal = null;
+                }
             } finally {
                 release();
             }
@@ -716,10 +956,23 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         return record(image, AV_PIX_FMT_NONE);
     }
     public boolean record(IplImage image, int pixelFormat) throws Exception {
+        if (!allocationCounting) {
+            return recordImage(image, pixelFormat);
+        }
+        int before = Debug.getThreadAllocCount();
+        try {
+            return recordImage(image, pixelFormat);
+        } finally {
+            countAllocations(Debug.getThreadAllocCount() - before);
+        }
+    }
+
+    private boolean recordImage(IplImage image, int pixelFormat) throws Exception {
         if (video_st == null) {
             throw new Exception("No video output stream (Is imageWidth > 0 && imageHeight > 0 and has start() been called?)");
         }
         int ret;
+        last_packet_timestamp = -1;
 
         if (image == null) {
             /* no more frame to compress. The codec has a latency of a few
@@ -732,7 +985,12 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             int width = image.width();
             int height = image.height();
             int step = image.widthStep();
-            BytePointer data = image.imageData();
+            //imageData()每次调用都会new一个BytePointer，同一个图像只取一次
+            if (image != cached_image) {
+                cached_image = image;
+                cached_image_data = image.imageData();
+            }
+            BytePointer data = cached_image_data;
 
             if (pixelFormat == AV_PIX_FMT_NONE) {
                 int depth = image.depth();
@@ -752,24 +1010,34 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
                 } else {
                     throw new Exception("Could not guess pixel format of image: depth=" + depth + ", channels=" + channels);
                 }
+            } else if (pixelFormat == AV_PIX_FMT_NV21 || pixelFormat == AV_PIX_FMT_NV12 || pixelFormat == AV_PIX_FMT_YUV420P) {
+                //YUV420的几种格式都是紧密排列的，亮度平面的行宽就是图像宽，和IplImage的widthStep无关
+                step = width;
             }
 
             if (video_c.pix_fmt() != pixelFormat || video_c.width() != width || video_c.height() != height) {
                 /* convert to the codec pixel format if needed */
-            	img_convert_ctx = sws_getCachedContext(img_convert_ctx,
-						video_c.width(), video_c.height(), pixelFormat,
-						video_c.width(), video_c.height(), video_c.pix_fmt(),
-                        SWS_BILINEAR,null, null, (DoublePointer)null);
-                if (img_convert_ctx == null) {
-                    throw new Exception("sws_getCachedContext() error: Cannot initialize the conversion context.");
+            	//源图像按实际宽高传入，裁剪后的图像比编码尺寸小时由swscale放大，而不是越界读取
+            	//源图像不变时不再调用sws_getCachedContext，它每次都会返回一个新的SwsContext对象
+                if (img_convert_ctx == null || convert_width != width || convert_height != height || convert_format != pixelFormat) {
+                    img_convert_ctx = sws_getCachedContext(img_convert_ctx,
+                            width, height, pixelFormat,
+                            video_c.width(), video_c.height(), video_c.pix_fmt(),
+                            SWS_BILINEAR, null, null, (DoublePointer)null);
+                    if (img_convert_ctx == null) {
+                        throw new Exception("sws_getCachedContext() error: Cannot initialize the conversion context.");
+                    }
+                    convert_width = width;
+                    convert_height = height;
+                    convert_format = pixelFormat;
                 }
-                avpicture_fill(new AVPicture(tmp_picture), data, pixelFormat, width, height);
-                avpicture_fill(new AVPicture(picture), picture_buf, video_c.pix_fmt(), video_c.width(), video_c.height());
+                avpicture_fill(tmp_picture_fill, data, pixelFormat, width, height);
+                avpicture_fill(picture_fill, picture_buf, video_c.pix_fmt(), video_c.width(), video_c.height());
                 tmp_picture.linesize(0, step);
-                sws_scale(img_convert_ctx, new PointerPointer(tmp_picture), tmp_picture.linesize(),
-                          0, height, new PointerPointer(picture), picture.linesize());
+                sws_scale(img_convert_ctx, tmp_picture_data, tmp_picture_linesize,
+                          0, height, picture_data, picture_linesize);
             } else {
-                avpicture_fill(new AVPicture(picture), data, pixelFormat, width, height);
+                avpicture_fill(picture_fill, data, pixelFormat, width, height);
                 picture.linesize(0, step);
             }
         }
@@ -782,7 +1050,7 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             av_init_packet(video_pkt);
             video_pkt.flags(video_pkt.flags() | AV_PKT_FLAG_KEY);
             video_pkt.stream_index(video_st.index());
-            video_pkt.data(new BytePointer(picture));
+            video_pkt.data(picture_raw);
             video_pkt.size(Loader.sizeof(AVPicture.class));
         } else {
             /* encode the image */
@@ -790,7 +1058,15 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             video_pkt.data(video_outbuf);
             video_pkt.size(video_outbuf_size);
             picture.quality(video_c.global_quality());
-            if ((ret = avcodec_encode_video2(video_c, video_pkt, image == null ? null : picture, got_video_packet)) < 0) {
+            if (image != null && force_key_frame) {
+                picture.pict_type(AV_PICTURE_TYPE_I);
+            }
+            ret = avcodec_encode_video2(video_c, video_pkt, image == null ? null : picture, got_video_packet);
+            if (image != null && force_key_frame) {
+                picture.pict_type(AV_PICTURE_TYPE_NONE);
+                force_key_frame = false;
+            }
+            if (ret < 0) {
                 throw new Exception("avcodec_encode_video2() error " + ret + ": Could not encode video packet.");
             }
             picture.pts(picture.pts() + 1); // magic required by libx264
@@ -798,10 +1074,11 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             /* if zero size, it means the image was buffered */
             if (got_video_packet[0] != 0) {
                 if (video_pkt.pts() != AV_NOPTS_VALUE) {
-                    video_pkt.pts(av_rescale_q(video_pkt.pts(), video_c.time_base(), video_st.time_base()));
+                    last_packet_timestamp = av_rescale_q(video_pkt.pts(), video_c_time_base, micros_time_base);
+                    video_pkt.pts(av_rescale_q(video_pkt.pts(), video_c_time_base, video_st_time_base));
                 }
                 if (video_pkt.dts() != AV_NOPTS_VALUE) {
-                    video_pkt.dts(av_rescale_q(video_pkt.dts(), video_c.time_base(), video_st.time_base()));
+                    video_pkt.dts(av_rescale_q(video_pkt.dts(), video_c_time_base, video_st_time_base));
                 }
                 video_pkt.stream_index(video_st.index());
             } else {
@@ -810,8 +1087,11 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         }
 
         synchronized (oc) {
+            boolean key_packet = (video_pkt.flags() & AV_PKT_FLAG_KEY) != 0;
             /* write the compressed frame in the media file */
-            if (interleaved && audio_st != null) {
+            if (journal != null) {
+                writeJournaled(video_pkt, key_packet);
+            } else if (interleaved && audio_st != null) {
                 if ((ret = av_interleaved_write_frame(oc, video_pkt)) < 0) {
                     throw new Exception("av_interleaved_write_frame() error " + ret + " while writing interleaved video frame.");
                 }
@@ -820,11 +1100,28 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
                     throw new Exception("av_write_frame() error " + ret + " while writing video frame.");
                 }
             }
+            //关键帧开始新的分片时，上一个分片已经完整，刷到磁盘后进程被杀文件也能播放
+            if (fragmented && key_packet && (oformat.flags() & AVFMT_NOFILE) == 0) {
+                avio_flush(oc.pb());
+            }
+            last_key_packet = key_packet;
         }
         return picture.key_frame() != 0;
     }
 
     @Override public boolean record(int sampleRate, Buffer ... samples) throws Exception {
+        if (!allocationCounting) {
+            return recordSamples(sampleRate, samples);
+        }
+        int before = Debug.getThreadAllocCount();
+        try {
+            return recordSamples(sampleRate, samples);
+        } finally {
+            countAllocations(Debug.getThreadAllocCount() - before);
+        }
+    }
+
+    private boolean recordSamples(int sampleRate, Buffer[] samples) throws Exception {
         if (audio_st == null) {
             throw new Exception("No audio output stream (Is audioChannels > 0 and has start() been called?)");
         }
@@ -835,8 +1132,6 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         int inputChannels = samples.length > 1 ? 1 : audioChannels;
         int inputDepth = 0;
         int outputFormat = audio_c.sample_fmt();
-        int outputChannels = samples_out.length > 1 ? 1 : audioChannels;
-        int outputDepth = av_get_bytes_per_sample(outputFormat);
         if (sampleRate <= 0) {
             sampleRate = audio_c.sample_rate();
         }
@@ -845,10 +1140,13 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 1;
             for (int i = 0; i < samples.length; i++) {
                 ByteBuffer b = (ByteBuffer)samples[i];
-                if (samples_in[i] instanceof BytePointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseDirectBuffer(i, b)) {
+                    //direct buffer直接交给swr_convert，不拷贝
+                } else if (samples_in[i] instanceof BytePointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((BytePointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
                     samples_in[i] = new BytePointer(b);
+                    samples_in_buffers[i] = b.isDirect() ? b : null;
                 }
             }
         } else if (samples[0] instanceof ShortBuffer) {
@@ -856,10 +1154,13 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 2;
             for (int i = 0; i < samples.length; i++) {
                 ShortBuffer b = (ShortBuffer)samples[i];
-                if (samples_in[i] instanceof ShortPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseDirectBuffer(i, b)) {
+                    //direct buffer直接交给swr_convert，不拷贝
+                } else if (samples_in[i] instanceof ShortPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((ShortPointer)samples_in[i]).position(0).put(b.array(), samples[i].position(), inputSize);
                 } else {
                     samples_in[i] = new ShortPointer(b);
+                    samples_in_buffers[i] = b.isDirect() ? b : null;
                 }
             }
         } else if (samples[0] instanceof IntBuffer) {
@@ -867,10 +1168,13 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 4;
             for (int i = 0; i < samples.length; i++) {
                 IntBuffer b = (IntBuffer)samples[i];
-                if (samples_in[i] instanceof IntPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseDirectBuffer(i, b)) {
+                    //direct buffer直接交给swr_convert，不拷贝
+                } else if (samples_in[i] instanceof IntPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((IntPointer)samples_in[i]).position(0).put(b.array(), samples[i].position(), inputSize);
                 } else {
                     samples_in[i] = new IntPointer(b);
+                    samples_in_buffers[i] = b.isDirect() ? b : null;
                 }
             }
         } else if (samples[0] instanceof FloatBuffer) {
@@ -878,10 +1182,13 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 4;
             for (int i = 0; i < samples.length; i++) {
                 FloatBuffer b = (FloatBuffer)samples[i];
-                if (samples_in[i] instanceof FloatPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseDirectBuffer(i, b)) {
+                    //direct buffer直接交给swr_convert，不拷贝
+                } else if (samples_in[i] instanceof FloatPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((FloatPointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
                     samples_in[i] = new FloatPointer(b);
+                    samples_in_buffers[i] = b.isDirect() ? b : null;
                 }
             }
         } else if (samples[0] instanceof DoubleBuffer) {
@@ -889,10 +1196,13 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 8;
             for (int i = 0; i < samples.length; i++) {
                 DoubleBuffer b = (DoubleBuffer)samples[i];
-                if (samples_in[i] instanceof DoublePointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseDirectBuffer(i, b)) {
+                    //direct buffer直接交给swr_convert，不拷贝
+                } else if (samples_in[i] instanceof DoublePointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((DoublePointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
                     samples_in[i] = new DoublePointer(b);
+                    samples_in_buffers[i] = b.isDirect() ? b : null;
                 }
             }
         } else {
@@ -911,43 +1221,140 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         }
 
         for (int i = 0; i < samples.length; i++) {
-            samples_in[i].position(samples_in[i].position() * inputDepth).
-                    limit((samples_in[i].position() + inputSize) * inputDepth);
+            //换算成字节，direct buffer的position可能不为0，limit要用换算前的position计算
+            int position = samples_in[i].position();
+            samples_in[i].position(position * inputDepth).
+                    limit((position + inputSize) * inputDepth);
         }
-        while (true) {
-            int inputCount = (samples_in[0].limit() - samples_in[0].position()) / (inputChannels * inputDepth);
-            int outputCount = (samples_out[0].limit() - samples_out[0].position()) / (outputChannels * outputDepth);
-            inputCount = Math.min(inputCount, 2 * (outputCount * sampleRate) / audio_c.sample_rate());
-            for (int i = 0; i < samples.length; i++) {
-                samples_in_ptr.put(i, samples_in[i]);
-            }
-            for (int i = 0; i < samples_out.length; i++) {
-                samples_out_ptr.put(i, samples_out[i]);
-            }
-            if ((ret = swr_convert(samples_convert_ctx, samples_out_ptr, outputCount, samples_in_ptr, inputCount)) < 0) {
-                throw new Exception("swr_convert() error " + ret + ": Cannot convert audio samples.");
-            } else if (ret == 0) {
-                break;
+        int inputCount = (samples_in[0].limit() - samples_in[0].position()) / (inputChannels * inputDepth);
+        for (int i = 0; i < samples.length; i++) {
+            samples_in_ptr.put(i, samples_in[i]);
+        }
+        samples_in_rate = sampleRate;
+        convertSamples(samples_in_ptr, inputCount, sampleRate);
+        //不管每次送进来多少采样，都按编码器的帧大小整帧编码，剩下的留到下一次
+        while (samples_fifo.size() >= audio_input_frame_size) {
+            encodeFifoFrame(audio_input_frame_size);
+        }
+        return frame.key_frame() != 0;
+    }
+
+    /**
+     * 一次重采样全部输入，结果写入samples_fifo
+     * @param in 输入的各个平面，为null时取出重采样器中缓存的采样
+     */
+    private void convertSamples(PointerPointer in, int inputCount, int inputRate) throws Exception {
+        //输出最多为缓存的采样加上这次的输入换算到输出采样率
+        int outputCount = (int)av_rescale_rnd(swr_get_delay(samples_convert_ctx, inputRate) + inputCount,
+                audio_c.sample_rate(), inputRate, AV_ROUND_UP);
+        if (outputCount <= 0) {
+            return;
+        }
+        ensureConvertCapacity(outputCount);
+        for (int i = 0; i < samples_conv.length; i++) {
+            samples_out_ptr.put(i, samples_conv[i]);
+        }
+        int ret;
+        if ((ret = swr_convert(samples_convert_ctx, samples_out_ptr, outputCount, in, inputCount)) < 0) {
+            throw new Exception("swr_convert() error " + ret + ": Cannot convert audio samples.");
+        }
+        if (ret > 0) {
+            for (int i = 0; i < samples_conv_buffers.length; i++) {
+                samples_conv_buffers[i].clear();
             }
-            for (int i = 0; i < samples.length; i++) {
-                samples_in[i].position(samples_in[i].position() + inputCount * inputChannels * inputDepth);
+            samples_fifo.write(samples_conv_buffers, ret);
+        }
+    }
+
+    private void ensureConvertCapacity(int count) {
+        if (samples_conv != null && samples_conv_capacity >= count) {
+            return;
+        }
+        //AudioRecord每次读的长度基本固定，按两倍分配，之后不再重新分配
+        int capacity = Math.max(count, samples_conv_capacity * 2);
+        freeConvertBuffers();
+        int size = capacity * samples_fifo.getSampleSize();
+        samples_conv = new BytePointer[samples_fifo.getPlanes()];
+        samples_conv_buffers = new ByteBuffer[samples_conv.length];
+        for (int i = 0; i < samples_conv.length; i++) {
+            samples_conv[i] = new BytePointer(av_malloc(size)).capacity(size);
+            samples_conv_buffers[i] = samples_conv[i].asByteBuffer().order(ByteOrder.nativeOrder());
+        }
+        samples_conv_capacity = capacity;
+    }
+
+    private void freeConvertBuffers() {
+        if (samples_conv != null) {
+            for (int i = 0; i < samples_conv.length; i++) {
+                av_free(samples_conv[i].position(0));
             }
+            samples_conv = null;
+        }
+        samples_conv_buffers = null;
+        samples_conv_capacity = 0;
+    }
+
+    /**
+     * 从samples_fifo取出count个采样编码成一帧，不足audio_input_frame_size的部分补静音
+     */
+    private void encodeFifoFrame(int count) throws Exception {
+        int outputFormat = audio_c.sample_fmt();
+        for (int i = 0; i < samples_out_buffers.length; i++) {
+            samples_out_buffers[i].clear();
+        }
+        samples_fifo.read(samples_out_buffers, count);
+        if (count < audio_input_frame_size) {
             for (int i = 0; i < samples_out.length; i++) {
-                samples_out[i].position(samples_out[i].position() + ret * outputChannels * outputDepth);
+                samples_out_ptr.put(i, samples_out[i].position(0));
             }
+            av_samples_set_silence(samples_out_ptr, count, audio_input_frame_size - count, audio_c.channels(), outputFormat);
+        }
+        frame.nb_samples(audio_input_frame_size);
+        avcodec_fill_audio_frame(frame, audio_c.channels(), outputFormat, samples_out[0].position(0), samples_out[0].limit(), 0);
+        for (int i = 0; i < samples_out.length; i++) {
+            frame.data(i, samples_out[i].position(0));
+            frame.linesize(i, samples_out[i].limit());
+        }
+        frame.quality(audio_c.global_quality());
+        record(frame);
+    }
 
-            if (samples_out[0].position() >= samples_out[0].limit()) {
-                frame.nb_samples(audio_input_frame_size);
-                avcodec_fill_audio_frame(frame, audio_c.channels(), outputFormat, samples_out[0], samples_out[0].limit(), 0);
-                for (int i = 0; i < samples_out.length; i++) {
-                    frame.data(i, samples_out[i].position(0));
-                    frame.linesize(i, samples_out[i].limit());
-                }
-                frame.quality(audio_c.global_quality());
-                record(frame);
-            }
+    /**
+     * 停止时把重采样器和samples_fifo中剩下的采样编码完，最后一帧补静音
+     */
+    private void flushSamples() throws Exception {
+        if (samples_fifo == null) {
+            return;
         }
-        return frame.key_frame() != 0;
+        if (samples_convert_ctx != null && samples_in_rate > 0) {
+            convertSamples(null, 0, samples_in_rate);
+        }
+        while (samples_fifo.size() > 0) {
+            encodeFifoFrame(Math.min(samples_fifo.size(), audio_input_frame_size));
+        }
+    }
+
+    /**
+     * 编码器每一帧的采样数（AAC为1024），录音每次读这个长度的整数倍时samples_fifo中不会有剩余
+     */
+    public int getAudioFrameSize() {
+        return audio_input_frame_size;
+    }
+
+    public AudioSampleFifo getSampleFifo() {
+        return samples_fifo;
+    }
+
+    /**
+     * 同一个direct buffer只包装一次，之后只更新position和limit，
+     * 调用者可以反复传入同一个buffer（例如环形缓冲区的视图）而不产生拷贝和新对象
+     */
+    private boolean reuseDirectBuffer(int i, Buffer b) {
+        if (!b.isDirect() || samples_in_buffers[i] != b || samples_in[i] == null) {
+            return false;
+        }
+        samples_in[i].position(b.position()).limit(b.limit());
+        return true;
     }
 
     boolean record(AVFrame frame) throws Exception {
@@ -961,10 +1368,10 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         }
         if (got_audio_packet[0] != 0) {
             if (audio_pkt.pts() != AV_NOPTS_VALUE) {
-                audio_pkt.pts(av_rescale_q(audio_pkt.pts(), audio_c.time_base(), audio_c.time_base()));
+                audio_pkt.pts(av_rescale_q(audio_pkt.pts(), audio_c_time_base, audio_c_time_base));
             }
             if (audio_pkt.dts() != AV_NOPTS_VALUE) {
-                audio_pkt.dts(av_rescale_q(audio_pkt.dts(), audio_c.time_base(), audio_c.time_base()));
+                audio_pkt.dts(av_rescale_q(audio_pkt.dts(), audio_c_time_base, audio_c_time_base));
             }
             audio_pkt.flags(audio_pkt.flags() | AV_PKT_FLAG_KEY);
             audio_pkt.stream_index(audio_st.index());
@@ -974,7 +1381,9 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
 
         /* write the compressed frame in the media file */
         synchronized (oc) {
-            if (interleaved && video_st != null) {
+            if (journal != null) {
+                writeJournaled(audio_pkt, true);
+            } else if (interleaved && video_st != null) {
                 if ((ret = av_interleaved_write_frame(oc, audio_pkt)) < 0) {
                     throw new Exception("av_interleaved_write_frame() error " + ret + " while writing interleaved audio frame.");
                 }
@@ -986,4 +1395,180 @@ public class NewFFmpegFrameRecorder extends FrameRecorder {
         }
         return true;
     }
+
+    /**
+     * 设置封装格式的参数，start之前调用，value为null时删除
+     * 例如mp4的"movflags"="frag_keyframe+empty_moov"输出分片mp4
+     */
+    public void setFormatOption(String key, String value) {
+        if (value == null) {
+            formatOptions.remove(key);
+        } else {
+            formatOptions.put(key, value);
+        }
+    }
+
+    public String getFormatOption(String key) {
+        return formatOptions.get(key);
+    }
+
+    /**
+     * 下一帧强制编码成关键帧，分段录制时每段从关键帧开始，删除某一段时不需要重新编码
+     */
+    public void forceKeyFrame() {
+        force_key_frame = true;
+    }
+
+    /**
+     * 录制中调整视频的量化参数和码率，从下一帧开始生效，在调用record的线程中调用
+     * 使用qscale的编码器（mpeg4等）每一帧按global_quality量化；
+     * x264通过crf选项和bit_rate，由libx264在下一帧之前重新配置
+     * @param quality 量化参数，小于0时不变
+     * @param bitrate 码率，小于等于0时不变
+     */
+    public void setVideoRateControl(int quality, int bitrate) {
+        if (video_c == null) {
+            return;
+        }
+        if (quality >= 0) {
+            videoQuality = quality;
+            if ((video_c.flags() & CODEC_FLAG_QSCALE) != 0) {
+                video_c.global_quality(FF_QP2LAMBDA * quality);
+            }
+            if (video_codec.id() == AV_CODEC_ID_H264 && video_c.priv_data() != null) {
+                av_opt_set(video_c.priv_data(), "crf", String.valueOf(quality), 0);
+            }
+        }
+        if (bitrate > 0) {
+            videoBitrate = bitrate;
+            video_c.bit_rate(bitrate);
+        }
+    }
+
+    /**
+     * 设置崩溃恢复日志的路径，start之前调用，为null时不记录
+     * 记录日志时音视频包不再交错写入，分片mp4不记录日志
+     * @see RecordingJournal
+     */
+    public void setJournalPath(String path) {
+        journal_path = path;
+    }
+
+    /**
+     * 正在写的崩溃恢复日志，没有时为null
+     */
+    public RecordingJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * 最后写入的视频包是否是关键帧
+     */
+    public boolean isLastKeyPacket() {
+        return last_key_packet;
+    }
+
+    /**
+     * 上一次record(IplImage)写入的视频包的时间戳（微秒），编码器缓存了这一帧没有输出时为-1
+     * 编码器有延迟时（帧级多线程、B帧）写入的是之前某一帧的包，不能用输入帧的时间戳
+     */
+    public long getLastPacketTimestamp() {
+        return last_packet_timestamp;
+    }
+
+    /**
+     * 设置视频编码的多线程方式，start之前调用
+     * @param mode 线程方式
+     * @param count 线程数，0表示按CPU核数（最多{@link #MAX_AUTO_THREADS}）
+     */
+    public void setVideoThreading(ThreadMode mode, int count) {
+        video_thread_mode = mode;
+        video_thread_count = count;
+    }
+
+    /**
+     * 视频编码器的输出比输入晚几帧，start之后有效
+     */
+    public int getVideoDelayFrames() {
+        return video_delay_frames;
+    }
+
+    /**
+     * 输出文件当前写到的位置（字节），没有输出文件时为-1
+     * 交错写入时包可能还在muxer的队列中，位置只是近似值
+     */
+    public long getOutputPosition() {
+        if (oc == null || (oformat.flags() & AVFMT_NOFILE) != 0) {
+            return -1;
+        }
+        synchronized (oc) {
+            return avio_tell(oc.pb());
+        }
+    }
+
+    /**
+     * 是否在输出分片mp4
+     */
+    public boolean isFragmented() {
+        return fragmented;
+    }
+
+    /**
+     * 调试用：开启后统计每次record在调用线程中分配的Java对象个数，
+     * 开始的几帧会创建转换上下文等，之后稳定录制时每帧都应该为0
+     */
+    public void setAllocationCounting(boolean enabled) {
+        if (enabled == allocationCounting) {
+            return;
+        }
+        allocationCounting = enabled;
+        if (enabled) {
+            countedRecords = allocatingRecords = allocationCount = 0;
+            lastAllocatingRecord = -1;
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public boolean isAllocationCounting() {
+        return allocationCounting;
+    }
+
+    private synchronized void countAllocations(int count) {
+        if (count > 0) {
+            allocatingRecords++;
+            allocationCount += count;
+            lastAllocatingRecord = (int)countedRecords;
+        }
+        countedRecords++;
+    }
+
+    /**
+     * 统计到的record次数
+     */
+    public synchronized long getCountedRecords() {
+        return countedRecords;
+    }
+
+    /**
+     * 有分配对象的record次数
+     */
+    public synchronized long getAllocatingRecords() {
+        return allocatingRecords;
+    }
+
+    /**
+     * 所有record一共分配的对象个数
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * 最后一次分配了对象的record是第几次（从0开始），没有时为-1
+     */
+    public synchronized int getLastAllocatingRecord() {
+        return lastAllocatingRecord;
+    }
 }
@@ -0,0 +1,257 @@
+package com.qd.recorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 16位PCM采样的环形缓冲区
+ * 只允许一个线程写（录音线程）、一个线程读（音频编码线程），读写双方都不加锁，
+ * 写满时丢弃放不下的采样并记一次溢出，读空时记一次空读（读线程在等数据，不是错误）。
+ * 采样存放在native内存（direct buffer）中：录音可以直接读进缓冲区，
+ * 编码时也可以直接把缓冲区中的一段交给swr_convert，中间不再拷贝
+ * @author QD
+ *
+ */
+public class PcmRingBuffer {
+
+	/**
+	 * 零拷贝写入时的数据来源，例如AudioRecord.read(ByteBuffer, int)
+	 */
+	public interface PcmSource {
+		/**
+		 * 从buffer的起始地址开始写入最多sizeInBytes字节的native字节序PCM数据
+		 * @return 实际写入的字节数，小于0表示出错
+		 */
+		int read(ByteBuffer buffer, int sizeInBytes);
+	}
+
+	private final ByteBuffer storage;
+	private final int capacity;
+	private final int mask;
+	//写线程和读线程各自使用的视图，互不影响position和limit
+	private final ShortBuffer writeView, readView;
+	//零拷贝写入时对齐到槽的区域，槽的大小为2的幂，第一次用到时才创建
+	private ByteBuffer[] writeSlots;
+	private int slotSamples;
+	//缓冲区满时用来读出并丢弃数据
+	private ByteBuffer discardBuffer;
+
+	//累计写入、读出的采样数，只由各自的线程修改，volatile保证另一方能看到数组中的数据
+	private volatile long writePosition = 0L;
+	private volatile long readPosition = 0L;
+
+	//统计：溢出次数和丢弃的采样数只由写线程修改，空读次数只由读线程修改
+	private volatile long overrunCount, droppedSamples;
+	private volatile long emptyPollCount;
+
+	/**
+	 * @param minCapacity 最少能缓存多少个采样，实际容量向上取2的幂
+	 */
+	public PcmRingBuffer(int minCapacity) {
+		if (minCapacity <= 0 || minCapacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity " + minCapacity);
+		int capacity = Integer.highestOneBit(minCapacity);
+		if (capacity < minCapacity)
+			capacity <<= 1;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.storage = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder());
+		ShortBuffer samples = storage.asShortBuffer();
+		this.writeView = samples.duplicate();
+		this.readView = samples.duplicate();
+	}
+
+	/**
+	 * 写线程调用，写入len个采样，放不下的部分被丢弃
+	 * @return 实际写入的采样数
+	 */
+	public int write(short[] src, int offset, int len) {
+		long w = writePosition;
+		int free = capacity - (int) (w - readPosition);
+		int n = Math.min(len, free);
+		if (n < len) {
+			overrunCount++;
+			droppedSamples += len - n;
+		}
+		if (n <= 0)
+			return 0;
+		int start = (int) (w & mask);
+		int first = Math.min(n, capacity - start);
+		writeView.limit(capacity).position(start);
+		writeView.put(src, offset, first);
+		if (n > first) {
+			writeView.position(0);
+			writeView.put(src, offset + first, n - first);
+		}
+		writePosition = w + n;
+		return n;
+	}
+
+	/**
+	 * 写线程调用，让数据源直接把采样写进缓冲区，不经过中间数组。
+	 * 每次只写一段连续的区域，maxSamples为2的幂时区域总是对齐的，不会分配新对象；
+	 * 缓冲区放不下时这一段仍然会被读出来（避免数据源自己溢出），然后整段丢弃
+	 * @param maxSamples 最多写入的采样数
+	 * @return 实际写入的采样数，丢弃时为0，数据源出错时返回它的错误码
+	 */
+	public int write(PcmSource source, int maxSamples) {
+		if (maxSamples <= 0 || maxSamples > capacity)
+			throw new IllegalArgumentException("Invalid write size " + maxSamples);
+		long w = writePosition;
+		int free = capacity - (int) (w - readPosition);
+		int start = (int) (w & mask);
+		int n = Math.min(maxSamples, capacity - start);
+		ByteBuffer region;
+		if (n > free) {
+			if (discardBuffer == null || discardBuffer.capacity() < maxSamples * 2)
+				discardBuffer = ByteBuffer.allocateDirect(maxSamples * 2);
+			int read = source.read(discardBuffer, maxSamples * 2);
+			if (read > 0) {
+				overrunCount++;
+				droppedSamples += read / 2;
+				return 0;
+			}
+			return read;
+		}
+		if (Integer.bitCount(maxSamples) == 1 && (start & (maxSamples - 1)) == 0) {
+			region = obtainSlot(start, maxSamples);
+		} else {
+			//上一次没有读满，这次只写到下一个槽的边界，之后重新对齐
+			if (Integer.bitCount(maxSamples) == 1)
+				n = Math.min(n, maxSamples - (start & (maxSamples - 1)));
+			ByteBuffer dup = storage.duplicate();
+			dup.limit((start + n) * 2).position(start * 2);
+			region = dup.slice();
+		}
+		int read = source.read(region, n * 2);
+		if (read <= 0)
+			return read;
+		int written = Math.min(read / 2, n);
+		writePosition = w + written;
+		return written;
+	}
+
+	//槽从start开始、长度为size个采样
+	private ByteBuffer obtainSlot(int start, int size) {
+		if (writeSlots == null || slotSamples != size) {
+			writeSlots = new ByteBuffer[capacity / size];
+			slotSamples = size;
+		}
+		int index = start / size;
+		ByteBuffer slot = writeSlots[index];
+		if (slot == null) {
+			ByteBuffer dup = storage.duplicate();
+			dup.limit((start + size) * 2).position(start * 2);
+			slot = dup.slice();
+			writeSlots[index] = slot;
+		}
+		return slot;
+	}
+
+	/**
+	 * 读线程调用，最多读出len个采样
+	 * @return 实际读出的采样数，缓冲区为空时返回0
+	 */
+	public int read(short[] dst, int offset, int len) {
+		long r = readPosition;
+		int n = Math.min(len, (int) (writePosition - r));
+		if (n <= 0) {
+			if (len > 0)
+				emptyPollCount++;
+			return 0;
+		}
+		int start = (int) (r & mask);
+		int first = Math.min(n, capacity - start);
+		readView.limit(capacity).position(start);
+		readView.get(dst, offset, first);
+		if (n > first) {
+			readView.position(0);
+			readView.get(dst, offset + first, n - first);
+		}
+		readPosition = r + n;
+		return n;
+	}
+
+	/**
+	 * 读线程调用，取出一段连续的可读区域，不拷贝；用完后调用{@link #commitRead(int)}
+	 * 返回的总是同一个direct buffer对象，position到limit是可读的采样
+	 * @param maxSamples 最多取多少个采样
+	 * @return 缓冲区为空时返回null
+	 */
+	public ShortBuffer peek(int maxSamples) {
+		long r = readPosition;
+		int n = Math.min(maxSamples, (int) (writePosition - r));
+		if (n <= 0) {
+			if (maxSamples > 0)
+				emptyPollCount++;
+			return null;
+		}
+		int start = (int) (r & mask);
+		n = Math.min(n, capacity - start);
+		readView.limit(start + n).position(start);
+		return readView;
+	}
+
+	/**
+	 * 读线程调用，{@link #peek(int)}取出的采样已经用完
+	 */
+	public void commitRead(int count) {
+		long r = readPosition;
+		if (count < 0 || count > writePosition - r)
+			throw new IllegalArgumentException("Invalid commit " + count);
+		readPosition = r + count;
+	}
+
+	/**
+	 * 当前可以读出的采样数
+	 */
+	public int available() {
+		return (int) (writePosition - readPosition);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * 写入时缓冲区已满的次数
+	 */
+	public long getOverrunCount() {
+		return overrunCount;
+	}
+
+	/**
+	 * 因为溢出而丢弃的采样数
+	 */
+	public long getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	/**
+	 * 读取时缓冲区为空的次数，编码线程比录音快时每次等待数据都会记一次，只反映读线程空闲的频率
+	 */
+	public long getEmptyPollCount() {
+		return emptyPollCount;
+	}
+
+	/**
+	 * 累计写入的采样数
+	 */
+	public long getWrittenSamples() {
+		return writePosition;
+	}
+
+	/**
+	 * 累计读出的采样数
+	 */
+	public long getReadSamples() {
+		return readPosition;
+	}
+
+	@Override
+	public String toString() {
+		return "written=" + writePosition + " read=" + readPosition + " overruns=" + overrunCount
+				+ " dropped=" + droppedSamples + " emptyPolls=" + emptyPollCount;
+	}
+}
@@ -0,0 +1,140 @@
+package com.qd.recorder;
+
+/**
+ * 摄像头预览回调缓冲区池
+ * 预先分配固定数量的缓冲区，通过Camera.addCallbackBuffer交给摄像头填充，
+ * 数据用完（编码完成或丢弃）后再还给摄像头，录制过程中不再为每一帧分配byte[]
+ * @author QD
+ *
+ */
+public class PreviewBufferPool {
+
+	/**
+	 * 帧数据的来源，实际使用时是摄像头，测试时可以用假的数据源代替
+	 */
+	public interface FrameSource {
+		/**
+		 * 把一个空闲的缓冲区交给数据源，数据源填充后通过回调返回
+		 */
+		void addCallbackBuffer(byte[] buffer);
+	}
+
+	private final FrameSource source;
+	//缓冲区的状态：空闲、在数据源手中、已填充正在被使用
+	private static final int STATE_FREE = 0, STATE_IN_SOURCE = 1, STATE_IN_USE = 2;
+
+	private final byte[][] buffers;
+	private final int[] states;
+	private final int bufferSize;
+	//统计：还给数据源的次数、拒收（不属于本池或重复归还）的次数
+	private long returnedCount, rejectedCount;
+
+	/**
+	 * @param source 数据源
+	 * @param bufferSize 一帧数据的长度，NV21为宽*高*3/2
+	 * @param bufferCount 缓冲区个数
+	 */
+	public PreviewBufferPool(FrameSource source, int bufferSize, int bufferCount) {
+		if (bufferSize <= 0 || bufferCount <= 0)
+			throw new IllegalArgumentException("Invalid pool " + bufferCount + " x " + bufferSize);
+		this.source = source;
+		this.bufferSize = bufferSize;
+		this.buffers = new byte[bufferCount][];
+		this.states = new int[bufferCount];
+		for (int i = 0; i < bufferCount; i++)
+			buffers[i] = new byte[bufferSize];
+	}
+
+	/**
+	 * 把所有空闲的缓冲区交给数据源，开始预览前调用，正在被使用的缓冲区不受影响
+	 */
+	public void attach() {
+		for (int i = 0; i < buffers.length; i++) {
+			byte[] buffer = null;
+			synchronized (this) {
+				if (states[i] == STATE_FREE) {
+					states[i] = STATE_IN_SOURCE;
+					buffer = buffers[i];
+				}
+			}
+			if (buffer != null)
+				source.addCallbackBuffer(buffer);
+		}
+	}
+
+	/**
+	 * 数据源回调出一个缓冲区时调用，标记其已离开数据源
+	 * @return 缓冲区是否属于本池
+	 */
+	public boolean onBufferFilled(byte[] buffer) {
+		synchronized (this) {
+			int index = indexOf(buffer);
+			if (index < 0)
+				return false;
+			states[index] = STATE_IN_USE;
+			return true;
+		}
+	}
+
+	/**
+	 * 缓冲区中的数据用完了，还给数据源
+	 * 不属于本池的缓冲区（例如切换摄像头之前的旧缓冲区）会被忽略
+	 * @return 是否还给了数据源
+	 */
+	public boolean release(byte[] buffer) {
+		synchronized (this) {
+			int index = indexOf(buffer);
+			if (index < 0 || states[index] != STATE_IN_USE) {
+				rejectedCount++;
+				return false;
+			}
+			states[index] = STATE_IN_SOURCE;
+			returnedCount++;
+		}
+		source.addCallbackBuffer(buffer);
+		return true;
+	}
+
+	//调用时需持有锁，缓冲区个数很少，直接比较引用
+	private int indexOf(byte[] buffer) {
+		if (buffer == null)
+			return -1;
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] == buffer)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 当前在数据源手中、可以被填充的缓冲区个数
+	 */
+	public synchronized int getAvailableCount() {
+		int count = 0;
+		for (int i = 0; i < states.length; i++) {
+			if (states[i] == STATE_IN_SOURCE)
+				count++;
+		}
+		return count;
+	}
+
+	public FrameSource getFrameSource() {
+		return source;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getBufferCount() {
+		return buffers.length;
+	}
+
+	public synchronized long getReturnedCount() {
+		return returnedCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+}
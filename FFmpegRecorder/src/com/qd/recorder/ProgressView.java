@@ -182,4 +182,14 @@ public class ProgressView extends View
 	public void putProgressList(int time) {
 		linkedList.add(time);
 	}
+
+	/**
+	 * 删除最后一段时，去掉最后一个断点
+	 * @return 去掉后最后一个断点的时间，没有断点时为0
+	 */
+	public int removeLastProgress() {
+		if(!linkedList.isEmpty())
+			linkedList.removeLast();
+		return linkedList.isEmpty() ? 0 : linkedList.getLast();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package com.qd.recorder;
+
+import static com.googlecode.javacv.cpp.avcodec.AV_CODEC_ID_RAWVIDEO;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 不编码的编码器，测试用
+ * 图像原样写入“输出文件.yuv”，PCM写入“输出文件.pcm”（16位小端），
+ * 可以用来排除编码器的影响，单独检查采集、旋转和时间戳的问题，或者作为编码耗时的对照
+ * @author QD
+ *
+ */
+public class RawMediaEncoder extends MediaEncoder {
+
+	public static final String NAME = "raw";
+
+	/**
+	 * 只支持AV_CODEC_ID_RAWVIDEO
+	 */
+	public static final Provider PROVIDER = new Provider() {
+		@Override
+		public String getName() {
+			return NAME;
+		}
+
+		@Override
+		public boolean supports(int videoCodec) {
+			return videoCodec == AV_CODEC_ID_RAWVIDEO;
+		}
+
+		@Override
+		public MediaEncoder create(String path, RecorderParameters parameters, int videoCodec) {
+			return new RawMediaEncoder(path);
+		}
+	};
+
+	private final String videoPath, audioPath;
+	private FileChannel videoChannel, audioChannel;
+	private ByteBuffer sampleBytes;
+	//写入的字节数、每帧的字节数
+	private long videoBytes;
+	private int frameBytes;
+	private long lastTimeStamp = -1;
+
+	public RawMediaEncoder(String path) {
+		super(NAME, AV_CODEC_ID_RAWVIDEO);
+		this.videoPath = path + ".yuv";
+		this.audioPath = path + ".pcm";
+	}
+
+	@Override
+	public void setImageSize(int width, int height) {
+		//按输入图像原样写入
+	}
+
+	@Override
+	public void start() throws Exception {
+		videoChannel = new FileOutputStream(videoPath).getChannel();
+		audioChannel = new FileOutputStream(audioPath).getChannel();
+		videoBytes = 0;
+	}
+
+	@Override
+	protected boolean onEncodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception {
+		ByteBuffer data = image.getByteBuffer();
+		//只写像素格式实际用到的部分，NV21、YUV420P为w*h*3/2
+		frameBytes = getImageBytes(image, pixelFormat);
+		data.limit(data.position() + frameBytes);
+		while (data.hasRemaining())
+			videoBytes += videoChannel.write(data);
+		lastTimeStamp = timeStampUs;
+		return true;
+	}
+
+	@Override
+	public void encodeSamples(ShortBuffer samples) throws Exception {
+		int count = samples.remaining();
+		if (sampleBytes == null || sampleBytes.capacity() < count * 2)
+			sampleBytes = ByteBuffer.allocateDirect(count * 2).order(ByteOrder.LITTLE_ENDIAN);
+		sampleBytes.clear();
+		sampleBytes.asShortBuffer().put(samples);
+		sampleBytes.limit(count * 2);
+		while (sampleBytes.hasRemaining())
+			audioChannel.write(sampleBytes);
+	}
+
+	@Override
+	public void forceKeyFrame() {
+		//每一帧都是完整的图像
+	}
+
+	@Override
+	public void setRateControl(int quality, int bitrate) {
+		//不压缩
+	}
+
+	@Override
+	public boolean isLastKeyFrame() {
+		return true;
+	}
+
+	@Override
+	public long getLastPacketTimeStamp() {
+		return lastTimeStamp;
+	}
+
+	@Override
+	public long getOutputPosition() {
+		return videoBytes;
+	}
+
+	@Override
+	public void stop() throws Exception {
+		try {
+			//每帧的大小相同，文件长度应该正好是帧数的整数倍
+			long expected = getEncodedFrames() * frameBytes;
+			if (videoChannel != null && videoChannel.size() != expected)
+				throw new IOException("Raw video " + videoPath + " has " + videoChannel.size() + " bytes, expected "
+						+ getEncodedFrames() + " frames x " + frameBytes);
+		} finally {
+			release();
+		}
+	}
+
+	@Override
+	public void release() {
+		videoChannel = close(videoChannel);
+		audioChannel = close(audioChannel);
+	}
+
+	private static FileChannel close(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+}
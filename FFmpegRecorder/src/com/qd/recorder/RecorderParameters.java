@@ -3,6 +3,7 @@ package com.qd.recorder;
 import android.os.Build;
 
 import com.googlecode.javacv.cpp.avcodec;
+import com.googlecode.javacv.cpp.avutil;
 
 public class RecorderParameters {
 
@@ -20,6 +21,36 @@ public class RecorderParameters {
 	private String videoOutputFormat = AAC_SUPPORTED ? "mp4"  : "3gp"; 			//10 == 2.3
 	private int vidioWidth = 480;
 	private int vidioHeight = 480;
+	private int encodeQueueSize = 3;						//等待编码的视频帧队列长度
+	private VideoEncodePipeline.DropPolicy frameDropPolicy = VideoEncodePipeline.DropPolicy.DROP_OLDEST;	//编码跟不上时的丢帧策略
+	private boolean allocationCounting = false;			//调试用：统计录制时每帧分配的Java对象
+	private int videoPixelFormat = avutil.AV_PIX_FMT_YUV420P;	//编码器的像素格式，支持NV12的编码器可以设为AV_PIX_FMT_NV12
+	private boolean fragmentedMp4 = false;				//输出分片mp4，被强制结束时已写入的分片仍可播放，停止录制也更快
+	private int fragmentDuration = 0;					//分片mp4每个分片的最短时长（毫秒），0表示每个关键帧一个分片
+	private int[] videoCodecCandidates = null;			//按优先级排列的视频编码器，为null时只用videoCodec，见EncoderRegistry
+	private String x264Preset = "ultrafast";			//使用H264时x264的preset和tune
+	private String x264Tune = "zerolatency";
+	private NewFFmpegFrameRecorder.ThreadMode videoThreadMode = NewFFmpegFrameRecorder.ThreadMode.AUTO;	//视频编码的多线程方式
+	private int videoThreadCount = 0;					//视频编码的线程数，0表示按CPU核数
+	private boolean adaptiveQuality = true;				//编码跟不上时自动降低质量、码率和帧率，见AdaptiveQualityController
+	private int adaptiveQualityRange = 10;				//量化参数最多比videoQuality大多少
+	private int minVideoBitrate = 0;					//码率最低调到多少，0表示videoBitrate的一半
+	private int minVideoFrameRate = 15;					//帧率最低调到多少，不小于videoFrameRate时不调整帧率
+	private StaticSceneDetector.Mode staticSceneMode = StaticSceneDetector.Mode.OFF;	//画面没有变化时的处理方式；没有在真实视频上测量过误判，默认关闭
+	private float staticSceneThreshold = 2.5f;			//每一块的平均亮度差都不超过这个值时认为画面没有变化
+	private int staticSceneMaxSkip = 1000;				//SKIP模式下最多连续多长时间（毫秒）不编码
+	private int thumbnailWidth = 240;					//封面的宽高，0表示和视频一样
+	private int thumbnailHeight = 240;
+	private int thumbnailQuality = 85;					//封面的JPEG质量
+	private boolean deferredEncoding = false;			//录制时只暂存未编码的数据，停止后再编码，见SpoolMediaEncoder
+	private boolean autoDeferredEncoding = true;		//所有编码器都统计到跟不上帧率时自动延后编码
+	private int spoolPreallocation = 10;				//暂存文件预先分配多长时间（秒）的空间，磁盘剩余空间不够时不延后编码
+	private boolean crashJournal = true;				//录制时写恢复日志，进程被杀后下次启动可以恢复视频，见RecordingJournal
+	private int audioChunkFrames = 2;					//录音每次读多少个编码帧的采样，0表示按AudioRecord的最小缓冲区
+	private boolean silenceDetection = false;			//静音时把采样清零再编码，见SilenceDetector；只在PC上用合成录音测量过，默认关闭
+	private float silenceThreshold = -50f;				//RMS低于这个值（dBFS）时可能是静音
+	private float silencePeakThreshold = -36f;			//峰值也低于这个值（dBFS）才是静音
+	private int silenceHangover = 400;					//声音低于阈值后再过多长时间（毫秒）开始清零
 		
 	public static boolean isAAC_SUPPORTED() {
 		return AAC_SUPPORTED;
@@ -95,6 +126,201 @@ public class RecorderParameters {
 	public void setVidioHeight(int vidioHeight) {
 		this.vidioHeight = vidioHeight;
 	}
+	public int getEncodeQueueSize() {
+		return encodeQueueSize;
+	}
+	public void setEncodeQueueSize(int encodeQueueSize) {
+		this.encodeQueueSize = encodeQueueSize;
+	}
+	public VideoEncodePipeline.DropPolicy getFrameDropPolicy() {
+		return frameDropPolicy;
+	}
+	public void setFrameDropPolicy(VideoEncodePipeline.DropPolicy frameDropPolicy) {
+		this.frameDropPolicy = frameDropPolicy;
+	}
+	public boolean isAllocationCounting() {
+		return allocationCounting;
+	}
+	public void setAllocationCounting(boolean allocationCounting) {
+		this.allocationCounting = allocationCounting;
+	}
+	public int getVideoPixelFormat() {
+		return videoPixelFormat;
+	}
+	public void setVideoPixelFormat(int videoPixelFormat) {
+		this.videoPixelFormat = videoPixelFormat;
+	}
+	public boolean isFragmentedMp4() {
+		return fragmentedMp4;
+	}
+	public void setFragmentedMp4(boolean fragmentedMp4) {
+		this.fragmentedMp4 = fragmentedMp4;
+	}
+	/**
+	 * 按优先级排列的视频编码器，录制时选择第一个可用并且足够快的
+	 */
+	public int[] getVideoCodecCandidates() {
+		return videoCodecCandidates != null ? videoCodecCandidates : new int[] {videoCodec};
+	}
+	public void setVideoCodecCandidates(int... videoCodecCandidates) {
+		this.videoCodecCandidates = videoCodecCandidates;
+	}
+	public String getX264Preset() {
+		return x264Preset;
+	}
+	public void setX264Preset(String x264Preset) {
+		this.x264Preset = x264Preset;
+	}
+	public NewFFmpegFrameRecorder.ThreadMode getVideoThreadMode() {
+		return videoThreadMode;
+	}
+	public void setVideoThreadMode(NewFFmpegFrameRecorder.ThreadMode videoThreadMode) {
+		this.videoThreadMode = videoThreadMode;
+	}
+	public int getVideoThreadCount() {
+		return videoThreadCount;
+	}
+	public void setVideoThreadCount(int videoThreadCount) {
+		this.videoThreadCount = videoThreadCount;
+	}
+	public String getX264Tune() {
+		return x264Tune;
+	}
+	public void setX264Tune(String x264Tune) {
+		this.x264Tune = x264Tune;
+	}
+	public boolean isAdaptiveQuality() {
+		return adaptiveQuality;
+	}
+	public void setAdaptiveQuality(boolean adaptiveQuality) {
+		this.adaptiveQuality = adaptiveQuality;
+	}
+	public int getAdaptiveQualityRange() {
+		return adaptiveQualityRange;
+	}
+	public void setAdaptiveQualityRange(int adaptiveQualityRange) {
+		this.adaptiveQualityRange = adaptiveQualityRange;
+	}
+	public int getMinVideoBitrate() {
+		return minVideoBitrate > 0 ? minVideoBitrate : videoBitrate / 2;
+	}
+	public void setMinVideoBitrate(int minVideoBitrate) {
+		this.minVideoBitrate = minVideoBitrate;
+	}
+	public int getMinVideoFrameRate() {
+		return minVideoFrameRate;
+	}
+	public void setMinVideoFrameRate(int minVideoFrameRate) {
+		this.minVideoFrameRate = minVideoFrameRate;
+	}
+	public StaticSceneDetector.Mode getStaticSceneMode() {
+		return staticSceneMode;
+	}
+	public void setStaticSceneMode(StaticSceneDetector.Mode staticSceneMode) {
+		this.staticSceneMode = staticSceneMode;
+	}
+	public float getStaticSceneThreshold() {
+		return staticSceneThreshold;
+	}
+	public void setStaticSceneThreshold(float staticSceneThreshold) {
+		this.staticSceneThreshold = staticSceneThreshold;
+	}
+	public int getStaticSceneMaxSkip() {
+		return staticSceneMaxSkip;
+	}
+	public void setStaticSceneMaxSkip(int staticSceneMaxSkip) {
+		this.staticSceneMaxSkip = staticSceneMaxSkip;
+	}
+	public int getThumbnailWidth() {
+		return thumbnailWidth;
+	}
+	public void setThumbnailWidth(int thumbnailWidth) {
+		this.thumbnailWidth = thumbnailWidth;
+	}
+	public int getThumbnailHeight() {
+		return thumbnailHeight;
+	}
+	public void setThumbnailHeight(int thumbnailHeight) {
+		this.thumbnailHeight = thumbnailHeight;
+	}
+	public int getThumbnailQuality() {
+		return thumbnailQuality;
+	}
+	public void setThumbnailQuality(int thumbnailQuality) {
+		this.thumbnailQuality = thumbnailQuality;
+	}
+	public boolean isDeferredEncoding() {
+		return deferredEncoding;
+	}
+	public void setDeferredEncoding(boolean deferredEncoding) {
+		this.deferredEncoding = deferredEncoding;
+	}
+	public boolean isAutoDeferredEncoding() {
+		return autoDeferredEncoding;
+	}
+	public void setAutoDeferredEncoding(boolean autoDeferredEncoding) {
+		this.autoDeferredEncoding = autoDeferredEncoding;
+	}
+	public int getSpoolPreallocation() {
+		return spoolPreallocation;
+	}
+	public void setSpoolPreallocation(int spoolPreallocation) {
+		this.spoolPreallocation = spoolPreallocation;
+	}
+	public boolean isCrashJournal() {
+		return crashJournal;
+	}
+	public void setCrashJournal(boolean crashJournal) {
+		this.crashJournal = crashJournal;
+	}
+	public int getAudioChunkFrames() {
+		return audioChunkFrames;
+	}
+	public void setAudioChunkFrames(int audioChunkFrames) {
+		this.audioChunkFrames = audioChunkFrames;
+	}
+	/**
+	 * 音频编码器每一帧的采样数，和编码器打开后的frame_size一致
+	 */
+	public int getAudioFrameSize() {
+		return audioCodec == avcodec.AV_CODEC_ID_AMR_NB ? 160 : 1024;
+	}
+	/**
+	 * 录音每次读的采样数，为0时按AudioRecord的最小缓冲区
+	 */
+	public int getAudioChunkSamples() {
+		return audioChunkFrames * getAudioFrameSize();
+	}
+	public boolean isSilenceDetection() {
+		return silenceDetection;
+	}
+	public void setSilenceDetection(boolean silenceDetection) {
+		this.silenceDetection = silenceDetection;
+	}
+	public float getSilenceThreshold() {
+		return silenceThreshold;
+	}
+	public void setSilenceThreshold(float silenceThreshold) {
+		this.silenceThreshold = silenceThreshold;
+	}
+	public float getSilencePeakThreshold() {
+		return silencePeakThreshold;
+	}
+	public void setSilencePeakThreshold(float silencePeakThreshold) {
+		this.silencePeakThreshold = silencePeakThreshold;
+	}
+	public int getSilenceHangover() {
+		return silenceHangover;
+	}
+	public void setSilenceHangover(int silenceHangover) {
+		this.silenceHangover = silenceHangover;
+	}
+	public int getFragmentDuration() {
+		return fragmentDuration;
+	}
+	public void setFragmentDuration(int fragmentDuration) {
+		this.fragmentDuration = fragmentDuration;
+	}
 	
 	
 }
@@ -0,0 +1,334 @@
+package com.qd.recorder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 录制时和视频文件一起写的日志，用于进程被杀后恢复视频
+ * 普通mp4的索引（moov）在停止录制时才写入，中途退出时mdat中的数据都还在，只是没有索引无法播放。
+ * 日志开头记录每条流的编码参数和extradata，之后每写入一个包追加一条定长记录：
+ * 流、关键帧标记、在文件中的位置和大小、pts/dts和时长。记录先攒在内存里，
+ * 攒满{@link #BATCH_RECORDS}条或者写入视频关键帧时才写一次文件，正常结束录制后删除日志。
+ * 恢复时不需要解码，按记录从mdat中读出每个包重新封装即可，见{@link RecordingRecovery}
+ * @author QD
+ *
+ */
+public class RecordingJournal {
+
+	/**
+	 * 日志文件的后缀，加在视频文件名之后
+	 */
+	public static final String EXTENSION = ".journal";
+
+	public static final int MAGIC = 0x51445244;				//"QDRJ"
+	public static final int VERSION = 1;
+
+	/**
+	 * 每条包记录的字节数：流(1) 标记(1) 大小(4) 位置(8) pts(8) dts(8) 时长(4)
+	 */
+	public static final int RECORD_SIZE = 34;
+
+	/**
+	 * 攒多少条记录写一次文件
+	 */
+	public static final int BATCH_RECORDS = 64;
+
+	//包记录的标记
+	public static final int FLAG_KEY = 1;
+
+	/**
+	 * 日志的内容无法解析，不是暂时的读写错误，再读一次也不会成功
+	 */
+	public static class CorruptJournalException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CorruptJournalException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * 一条流的参数，足够在不解码的情况下重新创建输出流
+	 */
+	public static class Stream {
+		public int index;
+		public int codecType;						//AVMEDIA_TYPE_VIDEO/AUDIO
+		public int codecId;
+		//编码器的time_base，和包的时间戳使用的time_base
+		public int codecTimeBaseNum, codecTimeBaseDen;
+		public int timeBaseNum, timeBaseDen;
+		public int width, height, pixelFormat;		//视频
+		public int sampleRate, channels, sampleFormat, frameSize;	//音频
+		public int bitrate;
+		public byte[] extradata;
+
+		@Override
+		public String toString() {
+			return "stream" + index + " type=" + codecType + " codec=" + codecId + " tb=" + timeBaseNum + "/" + timeBaseDen
+					+ " extradata=" + (extradata == null ? 0 : extradata.length);
+		}
+	}
+
+	/**
+	 * 读出的日志内容，包记录按写入顺序保存在数组中
+	 */
+	public static class Contents {
+		public List<Stream> streams = new ArrayList<Stream>();
+		public int packetCount;
+		public byte[] packetStreams, packetFlags;
+		public int[] packetSizes, packetDurations;
+		public long[] packetOffsets, packetPts, packetDts;
+		//末尾不完整的字节数，进程在写日志时被杀会出现
+		public int truncatedBytes;
+
+		/**
+		 * 所有包都完整写入视频文件时的文件长度
+		 */
+		public long getDataEnd() {
+			long end = 0;
+			for (int i = 0; i < packetCount; i++)
+				end = Math.max(end, packetOffsets[i] + packetSizes[i]);
+			return end;
+		}
+	}
+
+	private final File file;
+	private FileOutputStream out;
+	private FileChannel channel;
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+	private long packetCount;
+	private long writeCount;
+
+	/**
+	 * @param path 日志文件，一般是视频文件名加上{@link #EXTENSION}
+	 */
+	public RecordingJournal(String path) {
+		this.file = new File(path);
+	}
+
+	/**
+	 * 创建日志并写入流的参数，muxer写完文件头之后调用
+	 */
+	public synchronized void open(List<Stream> streams) throws IOException {
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+		int size = 4 + 2 + 1;
+		for (int i = 0; i < streams.size(); i++) {
+			byte[] extradata = streams.get(i).extradata;
+			size += 2 + 4 * 14 + (extradata == null ? 0 : extradata.length);
+		}
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.putInt(MAGIC);
+		header.putShort((short) VERSION);
+		header.put((byte) streams.size());
+		for (int i = 0; i < streams.size(); i++) {
+			Stream st = streams.get(i);
+			header.put((byte) st.index);
+			header.put((byte) st.codecType);
+			header.putInt(st.codecId);
+			header.putInt(st.codecTimeBaseNum).putInt(st.codecTimeBaseDen);
+			header.putInt(st.timeBaseNum).putInt(st.timeBaseDen);
+			header.putInt(st.width).putInt(st.height).putInt(st.pixelFormat);
+			header.putInt(st.sampleRate).putInt(st.channels).putInt(st.sampleFormat).putInt(st.frameSize);
+			header.putInt(st.bitrate);
+			int length = st.extradata == null ? 0 : st.extradata.length;
+			header.putInt(length);
+			if (length > 0)
+				header.put(st.extradata);
+		}
+		header.flip();
+		write(header);
+		batch.clear();
+		packetCount = 0;
+	}
+
+	/**
+	 * 记录一个已经写入视频文件的包，只放进内存中的批次，满了才写文件
+	 * @param offset 包在视频文件中的位置
+	 * @param size 包在视频文件中占的字节数，muxer可能改写了包的内容（例如H264的起始码换成长度）
+	 */
+	public synchronized void append(int stream, boolean key, long offset, int size, long pts, long dts, int duration)
+			throws IOException {
+		if (channel == null)
+			return;
+		batch.put((byte) stream);
+		batch.put((byte) (key ? FLAG_KEY : 0));
+		batch.putInt(size);
+		batch.putLong(offset);
+		batch.putLong(pts);
+		batch.putLong(dts);
+		batch.putInt(duration);
+		packetCount++;
+		if (!batch.hasRemaining())
+			flush();
+	}
+
+	/**
+	 * 把内存中的记录写入文件，只写到系统缓存，进程被杀时不会丢失
+	 */
+	public synchronized void flush() throws IOException {
+		if (channel == null || batch.position() == 0)
+			return;
+		batch.flip();
+		write(batch);
+		batch.clear();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		writeCount++;
+	}
+
+	/**
+	 * 关闭日志，未写入的记录会先写入
+	 */
+	public synchronized void close() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			flush();
+		} finally {
+			out.close();
+			out = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * 关闭并删除日志，视频文件已经完整写完时调用
+	 */
+	public synchronized void delete() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * 实际写文件的次数
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * 读出日志，末尾不完整的记录被忽略
+	 */
+	public static Contents read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = in.getChannel();
+			buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+		} finally {
+			in.close();
+		}
+
+		Contents contents = new Contents();
+		try {
+			if (buffer.getInt() != MAGIC)
+				throw new CorruptJournalException("Not a recording journal: " + file);
+			int version = buffer.getShort();
+			if (version != VERSION)
+				throw new CorruptJournalException("Unsupported journal version " + version + ": " + file);
+			int count = buffer.get() & 0xFF;
+			for (int i = 0; i < count; i++) {
+				Stream st = new Stream();
+				st.index = buffer.get() & 0xFF;
+				st.codecType = buffer.get();
+				st.codecId = buffer.getInt();
+				st.codecTimeBaseNum = buffer.getInt();
+				st.codecTimeBaseDen = buffer.getInt();
+				st.timeBaseNum = buffer.getInt();
+				st.timeBaseDen = buffer.getInt();
+				st.width = buffer.getInt();
+				st.height = buffer.getInt();
+				st.pixelFormat = buffer.getInt();
+				st.sampleRate = buffer.getInt();
+				st.channels = buffer.getInt();
+				st.sampleFormat = buffer.getInt();
+				st.frameSize = buffer.getInt();
+				st.bitrate = buffer.getInt();
+				int length = buffer.getInt();
+				if (length < 0)
+					throw new CorruptJournalException("Corrupt journal header: " + file);
+				if (length > buffer.remaining())
+					throw new BufferUnderflowException();
+				if (length > 0) {
+					st.extradata = new byte[length];
+					buffer.get(st.extradata);
+				}
+				contents.streams.add(st);
+			}
+		} catch (BufferUnderflowException e) {
+			//文件头都不完整，写完视频文件头之前就退出了
+			throw new EOFException("Truncated journal header: " + file);
+		}
+
+		int n = buffer.remaining() / RECORD_SIZE;
+		contents.truncatedBytes = buffer.remaining() - n * RECORD_SIZE;
+		contents.packetCount = n;
+		contents.packetStreams = new byte[n];
+		contents.packetFlags = new byte[n];
+		contents.packetSizes = new int[n];
+		contents.packetDurations = new int[n];
+		contents.packetOffsets = new long[n];
+		contents.packetPts = new long[n];
+		contents.packetDts = new long[n];
+		for (int i = 0; i < n; i++) {
+			contents.packetStreams[i] = buffer.get();
+			contents.packetFlags[i] = buffer.get();
+			contents.packetSizes[i] = buffer.getInt();
+			contents.packetOffsets[i] = buffer.getLong();
+			contents.packetPts[i] = buffer.getLong();
+			contents.packetDts[i] = buffer.getLong();
+			contents.packetDurations[i] = buffer.getInt();
+		}
+		return contents;
+	}
+
+	/**
+	 * 日志记录的是muxer改写后的包，mov把H264的起始码换成了4字节长度前缀，恢复成其他格式时要换回起始码。
+	 * 长度刚好对不上时说明不是长度前缀，保持不变
+	 * @return 是否换成了起始码
+	 */
+	static boolean toAnnexB(byte[] data, int size) {
+		int p = 0;
+		while (p + 4 <= size) {
+			int length = ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16) | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+			if (length < 0 || length > size - p - 4)
+				return false;
+			p += 4 + length;
+		}
+		if (p != size)
+			return false;
+		for (p = 0; p < size; ) {
+			int length = ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16) | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+			data[p] = data[p + 1] = data[p + 2] = 0;
+			data[p + 3] = 1;
+			p += 4 + length;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,285 @@
+package com.qd.recorder;
+
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avformat.*;
+import static com.googlecode.javacv.cpp.avutil.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacpp.PointerPointer;
+import com.jack.util.JLog;
+
+/**
+ * 用{@link RecordingJournal}恢复录制中途被杀掉的视频
+ * 按日志中的流参数创建输出，逐个从原文件的mdat中读出包写入新的文件，不解码也不重新编码，
+ * 完成后替换原文件并删除日志。原文件末尾没有写完的包（位置超出文件长度）会被丢掉
+ * @author QD
+ *
+ */
+public class RecordingRecovery {
+
+	static {
+		av_register_all();
+	}
+
+	private final File videoFile, journalFile;
+	private final File outputFile;
+
+	private AVFormatContext oc;
+	private AVRational[] inTimeBases, outTimeBases;
+	private int[] streamMap;
+	private boolean[] annexB;
+
+	//统计：恢复的包数、丢掉的包数、恢复出的时长（微秒）、耗时（毫秒）
+	private long packetCount, droppedCount, durationUs, elapsedMs;
+	private final AVRational microsTimeBase = new AVRational().num(1).den(AV_TIME_BASE);
+
+	/**
+	 * @param videoPath 没有写完的视频文件，日志为它加上{@link RecordingJournal#EXTENSION}
+	 */
+	public RecordingRecovery(String videoPath) {
+		this.videoFile = new File(videoPath);
+		this.journalFile = new File(videoPath + RecordingJournal.EXTENSION);
+		this.outputFile = new File(videoPath + ".recovering");
+	}
+
+	/**
+	 * 恢复视频，成功后原文件被替换，日志被删除
+	 */
+	public void recover() throws Exception {
+		long start = System.currentTimeMillis();
+		packetCount = droppedCount = durationUs = 0L;
+		RecordingJournal.Contents contents = RecordingJournal.read(journalFile);
+		RandomAccessFile in = new RandomAccessFile(videoFile, "r");
+		boolean headerWritten = false, success = false;
+		try {
+			createOutput(contents.streams);
+			headerWritten = true;
+			copyPackets(contents, in);
+			if (packetCount == 0)
+				throw new Exception("No packet to recover in '" + videoFile + "'");
+			if (av_write_trailer(oc) < 0)
+				throw new Exception("av_write_trailer() error: Could not finish '" + outputFile + "'");
+			headerWritten = false;
+			success = true;
+		} finally {
+			in.close();
+			release(headerWritten);
+			//出错时不替换原文件
+			if (!success)
+				outputFile.delete();
+			elapsedMs = System.currentTimeMillis() - start;
+		}
+		if (!videoFile.delete() || !outputFile.renameTo(videoFile))
+			throw new IOException("Could not replace '" + videoFile + "'");
+		journalFile.delete();
+	}
+
+	private void createOutput(List<RecordingJournal.Stream> streams) throws Exception {
+		//临时文件的后缀不能用来推断格式，按原文件名推断
+		AVOutputFormat oformat = av_guess_format(null, videoFile.getPath(), null);
+		if (oformat == null)
+			throw new Exception("av_guess_format() error: Could not guess output format for \"" + videoFile + "\"");
+		if ((oc = avformat_alloc_context()) == null)
+			throw new Exception("avformat_alloc_context() error: Could not allocate format context");
+		oc.oformat(oformat);
+		oc.filename().putString(outputFile.getPath());
+
+		int maxIndex = 0;
+		for (int i = 0; i < streams.size(); i++)
+			maxIndex = Math.max(maxIndex, streams.get(i).index);
+		streamMap = new int[maxIndex + 1];
+		for (int i = 0; i < streamMap.length; i++)
+			streamMap[i] = -1;
+		inTimeBases = new AVRational[streams.size()];
+		annexB = new boolean[streams.size()];
+
+		int ret;
+		for (int i = 0; i < streams.size(); i++) {
+			RecordingJournal.Stream in = streams.get(i);
+			AVStream st = avformat_new_stream(oc, null);
+			if (st == null)
+				throw new Exception("avformat_new_stream() error: Could not allocate stream.");
+			AVCodecContext c = st.codec();
+			c.codec_type(in.codecType);
+			c.codec_id(in.codecId);
+			c.bit_rate(in.bitrate);
+			c.time_base(new AVRational().num(in.codecTimeBaseNum).den(in.codecTimeBaseDen));
+			if (in.codecType == AVMEDIA_TYPE_VIDEO) {
+				c.width(in.width);
+				c.height(in.height);
+				c.pix_fmt(in.pixelFormat);
+			} else {
+				c.sample_rate(in.sampleRate);
+				c.channels(in.channels);
+				c.channel_layout(av_get_default_channel_layout(in.channels));
+				c.sample_fmt(in.sampleFormat);
+				c.frame_size(in.frameSize);
+			}
+			if (in.extradata != null) {
+				//extradata由libavcodec释放，必须用av_malloc分配并且在末尾留出填充
+				BytePointer extradata = new BytePointer(av_mallocz(in.extradata.length + FF_INPUT_BUFFER_PADDING_SIZE));
+				extradata.put(in.extradata, 0, in.extradata.length);
+				c.extradata(extradata);
+				c.extradata_size(in.extradata.length);
+				//mov把x264输出的起始码换成了长度，extradata不是avcC时要换回来
+				annexB[i] = in.codecId == AV_CODEC_ID_H264 && in.extradata.length > 0 && in.extradata[0] != 1;
+			}
+			if ((oformat.flags() & AVFMT_GLOBALHEADER) != 0)
+				c.flags(c.flags() | CODEC_FLAG_GLOBAL_HEADER);
+			inTimeBases[i] = new AVRational().num(in.timeBaseNum).den(in.timeBaseDen);
+			st.time_base(inTimeBases[i]);
+			streamMap[in.index] = i;
+		}
+
+		if ((oformat.flags() & AVFMT_NOFILE) == 0) {
+			AVIOContext pb = new AVIOContext(null);
+			if ((ret = avio_open(pb, outputFile.getPath(), AVIO_FLAG_WRITE)) < 0)
+				throw new IOException("avio_open error() error " + ret + ": Could not open '" + outputFile + "'");
+			oc.pb(pb);
+		}
+		if ((ret = avformat_write_header(oc, (PointerPointer) null)) < 0)
+			throw new Exception("avformat_write_header() error " + ret + ": Could not write '" + outputFile + "'");
+
+		//muxer可能在写文件头时修改流的time_base，之后才能读取
+		outTimeBases = new AVRational[streams.size()];
+		for (int i = 0; i < outTimeBases.length; i++)
+			outTimeBases[i] = oc.streams(i).time_base();
+	}
+
+	private void copyPackets(RecordingJournal.Contents contents, RandomAccessFile in) throws Exception {
+		long fileLength = in.length();
+		byte[] data = new byte[0];
+		AVPacket pkt = new AVPacket();
+		av_init_packet(pkt);
+		for (int i = 0; i < contents.packetCount; i++) {
+			int stream = contents.packetStreams[i] & 0xFF;
+			int out = stream < streamMap.length ? streamMap[stream] : -1;
+			int size = contents.packetSizes[i];
+			long offset = contents.packetOffsets[i];
+			if (out < 0 || size <= 0 || offset < 0 || offset + size > fileLength) {
+				//进程被杀时数据还没有写到文件中，之后的包也不可信
+				droppedCount += contents.packetCount - i;
+				break;
+			}
+			if (data.length < size)
+				data = new byte[size];
+			in.seek(offset);
+			in.readFully(data, 0, size);
+			if (annexB[out])
+				RecordingJournal.toAnnexB(data, size);
+
+			if (av_new_packet(pkt, size) < 0)
+				throw new Exception("av_new_packet() error: Could not allocate packet of " + size + " bytes");
+			try {
+				pkt.data().put(data, 0, size);
+				pkt.stream_index(out);
+				pkt.flags((contents.packetFlags[i] & RecordingJournal.FLAG_KEY) != 0 ? AV_PKT_FLAG_KEY : 0);
+				long pts = contents.packetPts[i], dts = contents.packetDts[i];
+				AVRational inTimeBase = inTimeBases[out], outTimeBase = outTimeBases[out];
+				pkt.pts(pts == AV_NOPTS_VALUE ? AV_NOPTS_VALUE : av_rescale_q(pts, inTimeBase, outTimeBase));
+				pkt.dts(dts == AV_NOPTS_VALUE ? AV_NOPTS_VALUE : av_rescale_q(dts, inTimeBase, outTimeBase));
+				pkt.duration(contents.packetDurations[i] > 0
+						? (int) av_rescale_q(contents.packetDurations[i], inTimeBase, outTimeBase) : 0);
+				long time = pts != AV_NOPTS_VALUE ? pts : dts;
+				if (time != AV_NOPTS_VALUE)
+					durationUs = Math.max(durationUs, av_rescale_q(time + Math.max(contents.packetDurations[i], 0),
+							inTimeBase, microsTimeBase));
+				int ret;
+				if ((ret = av_interleaved_write_frame(oc, pkt)) < 0)
+					throw new Exception("av_interleaved_write_frame() error " + ret + ": Could not write packet " + i);
+				packetCount++;
+			} finally {
+				av_free_packet(pkt);
+			}
+		}
+	}
+
+	private void release(boolean writeTrailer) {
+		if (oc != null && !oc.isNull()) {
+			if (writeTrailer)
+				av_write_trailer(oc);
+			if ((oc.oformat().flags() & AVFMT_NOFILE) == 0 && oc.pb() != null && !oc.pb().isNull())
+				avio_close(oc.pb());
+			avformat_free_context(oc);
+		}
+		oc = null;
+	}
+
+	/**
+	 * 目录中所有还没有恢复的日志，在开始新的录制之前调用，避免把正在录制的文件当成中断的
+	 */
+	public static List<File> findJournals(File dir) {
+		List<File> journals = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return journals;
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isFile() && files[i].getName().endsWith(RecordingJournal.EXTENSION))
+				journals.add(files[i]);
+		}
+		return journals;
+	}
+
+	/**
+	 * 逐个恢复，失败时保留原文件。日志或数据无法解析时删除日志不再重试，读写文件出错时保留日志，下次启动再试
+	 * @return 恢复成功的视频文件
+	 */
+	public static List<String> recoverAll(List<File> journals) {
+		List<String> recovered = new ArrayList<String>();
+		for (int i = 0; i < journals.size(); i++) {
+			String journalPath = journals.get(i).getPath();
+			String videoPath = journalPath.substring(0, journalPath.length() - RecordingJournal.EXTENSION.length());
+			if (!new File(videoPath).exists()) {
+				journals.get(i).delete();
+				continue;
+			}
+			RecordingRecovery recovery = new RecordingRecovery(videoPath);
+			try {
+				recovery.recover();
+				recovered.add(videoPath);
+				JLog.print("恢复视频 " + videoPath + " " + recovery);
+			} catch (IOException e) {
+				JLog.print("恢复视频失败 " + videoPath + " " + e);
+				//读写文件出错可能只是暂时的（例如存储卡没有挂载），保留日志下次启动再试
+				if (e instanceof EOFException || e instanceof RecordingJournal.CorruptJournalException)
+					journals.get(i).delete();
+			} catch (Exception e) {
+				//ffmpeg不接受日志中的参数或数据，再试也不会成功
+				JLog.print("恢复视频失败 " + videoPath + " " + e);
+				journals.get(i).delete();
+			}
+		}
+		return recovered;
+	}
+
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * 数据没有写完丢掉的包数
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getDurationUs() {
+		return durationUs;
+	}
+
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	@Override
+	public String toString() {
+		return "packets=" + packetCount + " dropped=" + droppedCount + " duration=" + durationUs / 1000 + "ms elapsed=" + elapsedMs + "ms";
+	}
+}
@@ -1,6 +1,10 @@
 package com.qd.recorder;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -11,6 +15,10 @@ public class SavedFrames implements Parcelable{
 	 long timeStamp = 0L;
 	 String cachePath = null;
 	 int frameSize = 0;
+	 //图像的宽高和像素格式，未知时为-1
+	 int width = -1;
+	 int height = -1;
+	 int pixelFormat = -1;
 	 
 	public byte[] getFrameBytesData() {
 		return frameBytesData;
@@ -46,6 +54,36 @@ public class SavedFrames implements Parcelable{
 		this.frameSize = frameSize;
 	}
 	
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	public void setSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+	public int getPixelFormat() {
+		return pixelFormat;
+	}
+	public void setPixelFormat(int pixelFormat) {
+		this.pixelFormat = pixelFormat;
+	}
+	
+	/**
+	 * 把cachePath中的帧（{@link FrameContainer}）映射到内存，返回数据的视图，不拷贝
+	 * @return 文件中的第一帧，差分帧需要用{@link FrameContainer.Frame#decodeInto(ByteBuffer)}还原
+	 */
+	public FrameContainer.Frame mapFrame() throws IOException {
+		if (cachePath == null)
+			throw new IOException("Frame is not cached");
+		FrameContainer.Frame frame = new FrameContainer.Reader(FrameContainer.map(new File(cachePath))).next();
+		if (frame == null)
+			throw new IOException("No frame in " + cachePath);
+		return frame;
+	}
+	
 	public SavedFrames(Parcel in)
 	{
 		readFromParcel(in);
@@ -82,22 +120,40 @@ public class SavedFrames implements Parcelable{
 		return 0;
 	}
 
+	/**
+	 * 帧已经保存在cachePath时只传元数据，读取方用{@link #mapFrame()}取数据，不在Parcel中拷贝整帧
+	 */
 	@Override
 	public void writeToParcel(Parcel out, int arg1)
 	{
 		out.writeLong(timeStamp);
 		out.writeInt(frameSize);
-		out.writeByteArray(frameBytesData);
 		out.writeString(cachePath);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(pixelFormat);
+		boolean hasData = cachePath == null && frameBytesData != null;
+		out.writeInt(hasData ? 1 : 0);
+		if (hasData)
+			out.writeByteArray(frameBytesData);
 	}
 
 	private void readFromParcel(Parcel in)
 	{
 		timeStamp = in.readLong();
 		frameSize = in.readInt();
-		frameBytesData = new byte[frameSize];
-		in.readByteArray(frameBytesData);
 		cachePath = in.readString();
+		width = in.readInt();
+		height = in.readInt();
+		pixelFormat = in.readInt();
+		if (in.readInt() != 0)
+		{
+			frameBytesData = in.createByteArray();
+		}
+		else
+		{
+			frameBytesData = null;
+		}
 	} 
 	 
 }
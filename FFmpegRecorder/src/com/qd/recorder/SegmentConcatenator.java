@@ -0,0 +1,351 @@
+package com.qd.recorder;
+
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avformat.*;
+import static com.googlecode.javacv.cpp.avutil.*;
+
+import java.util.List;
+
+import com.googlecode.javacpp.PointerPointer;
+
+/**
+ * 分段录制的视频拼接
+ * 逐个解封装每一段，把压缩后的包直接写入同一个输出文件，不解码也不重新编码。
+ * 每一段的时间戳整体平移到上一段结束的位置，音视频使用同一个偏移，段内的同步关系不变。
+ * 每次只读一个包，内存占用和视频长度无关。
+ * 也可以在复制时去掉某些时间范围，用来删除分段录制中的某几段
+ * @author QD
+ *
+ */
+public class SegmentConcatenator {
+
+	static {
+		av_register_all();
+	}
+
+	private final String outputPath;
+	private String format;
+
+	private AVFormatContext oc;
+	private AVRational[] outTimeBases;
+	private int[] outTypes, outCodecIds;
+	//每条输出流上一个包的dts、时长，以及写到的结束时间（微秒）
+	private long[] lastDts, lastDuration, endTimes;
+	private final AVRational microsTimeBase = new AVRational().num(1).den(AV_TIME_BASE);
+
+	//去掉的时间范围{开始, 结束}（微秒），按输入文件自己的时间戳加上前面所有段的总时长计算
+	private long[][] excludedRanges;
+	private long segmentStartUs;							//当前这一段第一个包的时间，拼接时会被减掉
+
+	//统计：拼接的段数、写入的包数、为保证dts递增修正过的包数、去掉的包数、总时长（微秒）、耗时（毫秒）
+	private int segmentCount;
+	private long packetCount, correctedCount, excludedCount, durationUs, elapsedMs;
+
+	/**
+	 * @param outputPath 输出文件，封装格式由文件名推断
+	 */
+	public SegmentConcatenator(String outputPath) {
+		this.outputPath = outputPath;
+	}
+
+	/**
+	 * 指定输出的封装格式，例如"mp4"，为null时由文件名推断
+	 */
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	/**
+	 * 拼接时去掉这些时间范围内的包，后面的包时间戳往前移，用于删除分段录制中的某几段
+	 * 只有一个输入文件时就是这个文件中的时间戳。范围的结束应该是视频关键帧，否则之后到下一个关键帧之前的画面无法解码
+	 * @param ranges 每个元素为{开始, 结束}，单位微秒，按时间排序且不重叠，结束为Long.MAX_VALUE时表示到最后
+	 */
+	public void setExcludedRanges(List<long[]> ranges) {
+		if (ranges == null || ranges.isEmpty()) {
+			excludedRanges = null;
+			return;
+		}
+		excludedRanges = new long[ranges.size()][];
+		for (int i = 0; i < excludedRanges.length; i++) {
+			long[] range = ranges.get(i);
+			if (range[1] <= range[0] || (i > 0 && range[0] < excludedRanges[i - 1][1]))
+				throw new IllegalArgumentException("Invalid range " + range[0] + "-" + range[1]);
+			excludedRanges[i] = new long[] {range[0], range[1]};
+		}
+	}
+
+	/**
+	 * 按顺序拼接所有分段，每一段的流（类型和编码器）必须和第一段一致
+	 * @param segments 分段文件的路径，按录制顺序排列
+	 */
+	public void concatenate(List<String> segments) throws Exception {
+		if (segments == null || segments.isEmpty())
+			throw new IllegalArgumentException("No segments to concatenate");
+		long start = System.currentTimeMillis();
+		segmentCount = 0;
+		packetCount = correctedCount = excludedCount = durationUs = 0L;
+		boolean headerWritten = false;
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				AVFormatContext ic = openSegment(segments.get(i));
+				try {
+					if (oc == null) {
+						createOutput(ic);
+						headerWritten = true;
+					}
+					copyPackets(ic, segments.get(i));
+				} finally {
+					avformat_close_input(ic);
+				}
+				segmentCount++;
+			}
+			if (av_write_trailer(oc) < 0)
+				throw new Exception("av_write_trailer() error: Could not finish '" + outputPath + "'");
+			headerWritten = false;
+		} finally {
+			release(headerWritten);
+			elapsedMs = System.currentTimeMillis() - start;
+		}
+	}
+
+	private AVFormatContext openSegment(String path) throws Exception {
+		AVFormatContext ic = new AVFormatContext(null);
+		int ret;
+		if ((ret = avformat_open_input(ic, path, null, null)) < 0)
+			throw new Exception("avformat_open_input() error " + ret + ": Could not open '" + path + "'");
+		if ((ret = avformat_find_stream_info(ic, (PointerPointer) null)) < 0) {
+			avformat_close_input(ic);
+			throw new Exception("avformat_find_stream_info() error " + ret + ": Could not read '" + path + "'");
+		}
+		return ic;
+	}
+
+	//用第一段的音视频流创建输出，编码参数直接复制
+	private void createOutput(AVFormatContext ic) throws Exception {
+		AVOutputFormat oformat = av_guess_format(format, outputPath, null);
+		if (oformat == null)
+			throw new Exception("av_guess_format() error: Could not guess output format for \"" + outputPath + "\"");
+		if ((oc = avformat_alloc_context()) == null)
+			throw new Exception("avformat_alloc_context() error: Could not allocate format context");
+		oc.oformat(oformat);
+		oc.filename().putString(outputPath);
+
+		int ret, count = 0;
+		int[] types = new int[ic.nb_streams()];
+		int[] codecIds = new int[ic.nb_streams()];
+		for (int i = 0; i < ic.nb_streams(); i++) {
+			AVCodecContext in = ic.streams(i).codec();
+			if (in.codec_type() != AVMEDIA_TYPE_VIDEO && in.codec_type() != AVMEDIA_TYPE_AUDIO)
+				continue;
+			AVStream st = avformat_new_stream(oc, null);
+			if (st == null)
+				throw new Exception("avformat_new_stream() error: Could not allocate stream.");
+			if ((ret = avcodec_copy_context(st.codec(), in)) < 0)
+				throw new Exception("avcodec_copy_context() error " + ret + ": Could not copy stream " + i);
+			st.time_base(ic.streams(i).time_base());
+			//输入文件的tag不一定适用于输出格式，由muxer重新选择
+			st.codec().codec_tag(0);
+			if ((oformat.flags() & AVFMT_GLOBALHEADER) != 0)
+				st.codec().flags(st.codec().flags() | CODEC_FLAG_GLOBAL_HEADER);
+			types[count] = in.codec_type();
+			codecIds[count] = in.codec_id();
+			count++;
+		}
+		if (count == 0)
+			throw new Exception("No audio or video stream in the first segment");
+		outTypes = new int[count];
+		outCodecIds = new int[count];
+		System.arraycopy(types, 0, outTypes, 0, count);
+		System.arraycopy(codecIds, 0, outCodecIds, 0, count);
+
+		if ((oformat.flags() & AVFMT_NOFILE) == 0) {
+			AVIOContext pb = new AVIOContext(null);
+			if ((ret = avio_open(pb, outputPath, AVIO_FLAG_WRITE)) < 0)
+				throw new Exception("avio_open error() error " + ret + ": Could not open '" + outputPath + "'");
+			oc.pb(pb);
+		}
+		if ((ret = avformat_write_header(oc, (PointerPointer) null)) < 0)
+			throw new Exception("avformat_write_header() error " + ret + ": Could not write '" + outputPath + "'");
+
+		//muxer可能在写文件头时修改流的time_base，之后才能读取
+		outTimeBases = new AVRational[count];
+		lastDts = new long[count];
+		lastDuration = new long[count];
+		endTimes = new long[count];
+		for (int i = 0; i < count; i++) {
+			outTimeBases[i] = oc.streams(i).time_base();
+			lastDts[i] = AV_NOPTS_VALUE;
+		}
+	}
+
+	/**
+	 * 输入流对应的输出流，按同类型流出现的顺序对应，没有对应时为-1
+	 */
+	private int[] mapStreams(AVFormatContext ic, String path) throws Exception {
+		int[] map = new int[ic.nb_streams()];
+		boolean[] used = new boolean[outTypes.length];
+		for (int i = 0; i < map.length; i++) {
+			AVCodecContext in = ic.streams(i).codec();
+			map[i] = -1;
+			for (int j = 0; j < outTypes.length; j++) {
+				if (!used[j] && outTypes[j] == in.codec_type()) {
+					if (outCodecIds[j] != in.codec_id())
+						throw new Exception("Codec of stream " + i + " in '" + path + "' differs from the first segment");
+					used[j] = true;
+					map[i] = j;
+					break;
+				}
+			}
+		}
+		return map;
+	}
+
+	private void copyPackets(AVFormatContext ic, String path) throws Exception {
+		int[] map = mapStreams(ic, path);
+		AVRational[] inTimeBases = new AVRational[map.length];
+		for (int i = 0; i < map.length; i++) {
+			if (map[i] >= 0)
+				inTimeBases[i] = ic.streams(i).time_base();
+		}
+		//这一段整体平移到前面所有流中最晚结束的位置
+		long offsetUs = 0L;
+		for (int i = 0; i < endTimes.length; i++)
+			offsetUs = Math.max(offsetUs, endTimes[i]);
+		segmentStartUs = ic.start_time() == AV_NOPTS_VALUE ? 0L : ic.start_time();
+		long[] shifts = new long[outTypes.length];
+		for (int i = 0; i < shifts.length; i++)
+			shifts[i] = av_rescale_q(offsetUs - segmentStartUs, microsTimeBase, outTimeBases[i]);
+
+		AVPacket pkt = new AVPacket();
+		av_init_packet(pkt);
+		while (av_read_frame(ic, pkt) >= 0) {
+			try {
+				int in = pkt.stream_index();
+				int out = in < map.length ? map[in] : -1;
+				if (out < 0)
+					continue;
+				if (!rebase(pkt, inTimeBases[in], out, shifts[out]))
+					continue;
+				pkt.stream_index(out);
+				int ret;
+				if ((ret = av_interleaved_write_frame(oc, pkt)) < 0)
+					throw new Exception("av_interleaved_write_frame() error " + ret + ": Could not write packet from '" + path + "'");
+				packetCount++;
+			} finally {
+				av_free_packet(pkt);
+			}
+		}
+	}
+
+	/**
+	 * 时间戳换算到输出流的time_base并加上这一段的偏移，去掉被删除的时间后保证dts严格递增
+	 * @return false表示这个包在被删除的时间范围内，不写入
+	 */
+	private boolean rebase(AVPacket pkt, AVRational inTimeBase, int out, long shift) {
+		AVRational outTimeBase = outTimeBases[out];
+		long pts = pkt.pts(), dts = pkt.dts();
+		if (pts != AV_NOPTS_VALUE)
+			pts = av_rescale_q(pts, inTimeBase, outTimeBase) + shift;
+		if (dts != AV_NOPTS_VALUE)
+			dts = av_rescale_q(dts, inTimeBase, outTimeBase) + shift;
+		else
+			dts = pts;
+		long duration = pkt.duration() > 0 ? av_rescale_q(pkt.duration(), inTimeBase, outTimeBase) : 0L;
+		//下一段的偏移按删除之前的时间计算
+		long time = pts != AV_NOPTS_VALUE ? pts : dts;
+		if (time != AV_NOPTS_VALUE)
+			endTimes[out] = Math.max(endTimes[out], av_rescale_q(time + duration, outTimeBase, microsTimeBase));
+
+		long cutUs = 0L;
+		if (excludedRanges != null && time != AV_NOPTS_VALUE) {
+			long timeUs = av_rescale_q(time, outTimeBase, microsTimeBase) + segmentStartUs;
+			for (int i = 0; i < excludedRanges.length && timeUs >= excludedRanges[i][0]; i++) {
+				if (timeUs < excludedRanges[i][1]) {
+					excludedCount++;
+					return false;
+				}
+				cutUs += excludedRanges[i][1] - excludedRanges[i][0];
+			}
+		}
+		if (cutUs > 0) {
+			long cut = av_rescale_q(cutUs, microsTimeBase, outTimeBase);
+			if (pts != AV_NOPTS_VALUE)
+				pts -= cut;
+			if (dts != AV_NOPTS_VALUE)
+				dts -= cut;
+		}
+
+		if (dts != AV_NOPTS_VALUE && lastDts[out] != AV_NOPTS_VALUE) {
+			if (dts <= lastDts[out]) {
+				dts = lastDts[out] + 1;
+				correctedCount++;
+			} else if (duration <= 0) {
+				lastDuration[out] = dts - lastDts[out];
+			}
+		}
+		//没有时长的包沿用上一个包的时长，下一段才能接在这一帧播完之后
+		if (duration > 0)
+			lastDuration[out] = duration;
+		else
+			duration = lastDuration[out];
+		if (pts != AV_NOPTS_VALUE && dts != AV_NOPTS_VALUE && pts < dts)
+			pts = dts;
+
+		pkt.pts(pts);
+		pkt.dts(dts);
+		pkt.duration((int) duration);
+		pkt.pos(-1);
+		if (dts != AV_NOPTS_VALUE) {
+			lastDts[out] = dts;
+			long end = Math.max(pts, dts) + Math.max(duration, 0L);
+			durationUs = Math.max(durationUs, av_rescale_q(end, outTimeBase, microsTimeBase));
+		}
+		return true;
+	}
+
+	private void release(boolean writeTrailer) {
+		if (oc != null && !oc.isNull()) {
+			//出错时也写上文件尾，已经写入的部分还能播放
+			if (writeTrailer)
+				av_write_trailer(oc);
+			if ((oc.oformat().flags() & AVFMT_NOFILE) == 0 && oc.pb() != null && !oc.pb().isNull())
+				avio_close(oc.pb());
+			avformat_free_context(oc);
+		}
+		oc = null;
+		outTimeBases = null;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	public long getCorrectedCount() {
+		return correctedCount;
+	}
+
+	public long getExcludedCount() {
+		return excludedCount;
+	}
+
+	/**
+	 * 拼接后的总时长，单位微秒
+	 */
+	public long getDurationUs() {
+		return durationUs;
+	}
+
+	public long getElapsedMs() {
+		return elapsedMs;
+	}
+
+	@Override
+	public String toString() {
+		return "segments=" + segmentCount + " packets=" + packetCount + " corrected=" + correctedCount + " excluded=" + excludedCount
+				+ " duration=" + durationUs / 1000 + "ms elapsed=" + elapsedMs + "ms";
+	}
+}
@@ -0,0 +1,234 @@
+package com.qd.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段录制的索引
+ * 手指每按下一次是一段，每段的第一帧强制编码为关键帧，索引只记录时间范围、关键帧和文件位置，
+ * 删除最后一段时只修改索引，不动已经写入的文件。
+ * 停止录制后按{@link #getDroppedRanges()}把删除的时间范围去掉（只复制压缩后的包，不重新编码）
+ * 时间都是输出文件中的时间戳，单位微秒
+ * @author QD
+ *
+ */
+public class SegmentIndex {
+
+	/**
+	 * 一段录制
+	 */
+	public static class Segment {
+		private final long startUs;
+		private long endUs = Long.MAX_VALUE;			//下一段开始的时间，最后一段为Long.MAX_VALUE
+		private long startOffset = -1, endOffset = -1;	//第一帧和最后一帧写入后输出文件的位置（字节）
+		private int frameCount;
+		private final List<Long> keyFrames = new ArrayList<Long>();
+		private boolean dropped;
+
+		Segment(long startUs) {
+			this.startUs = startUs;
+		}
+
+		public long getStartUs() {
+			return startUs;
+		}
+
+		public long getEndUs() {
+			return endUs;
+		}
+
+		public long getStartOffset() {
+			return startOffset;
+		}
+
+		public long getEndOffset() {
+			return endOffset;
+		}
+
+		public int getFrameCount() {
+			return frameCount;
+		}
+
+		/**
+		 * 这一段中关键帧的时间戳
+		 */
+		public List<Long> getKeyFrames() {
+			return keyFrames;
+		}
+
+		public boolean isDropped() {
+			return dropped;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + startUs + "," + (endUs == Long.MAX_VALUE ? "end" : String.valueOf(endUs)) + ") frames="
+					+ frameCount + " keyFrames=" + keyFrames.size() + " bytes=" + startOffset + "-" + endOffset
+					+ (dropped ? " dropped" : "");
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;								//正在录制的一段，暂停时为null
+	private boolean pending;								//已经开始新的一段，还没有收到第一帧
+	private long keyFrameRequestUs = -1;					//从这个时间戳开始的第一帧需要编码成关键帧
+	private long toleranceUs;								//编码后的时间戳和打上的时间戳之间的误差
+
+	/**
+	 * 开始新的一段（手指按下），新的一段从之后第一个打上时间戳的视频帧开始
+	 */
+	public synchronized void startSegment() {
+		pending = true;
+	}
+
+	/**
+	 * 给视频帧打完时间戳后调用，在摄像头线程中
+	 * @param timeStampUs 帧的时间戳
+	 */
+	public synchronized void stampFrame(long timeStampUs) {
+		if (!pending)
+			return;
+		pending = false;
+		if (!segments.isEmpty()) {
+			Segment last = segments.get(segments.size() - 1);
+			if (last.endUs > timeStampUs)
+				last.endUs = timeStampUs;
+		}
+		current = new Segment(timeStampUs);
+		segments.add(current);
+		keyFrameRequestUs = timeStampUs;
+	}
+
+	/**
+	 * 当前这一段结束（手指抬起），之后到达的帧仍然算在这一段中
+	 */
+	public synchronized void endSegment() {
+		pending = false;
+		current = null;
+	}
+
+	/**
+	 * 是否正在录制某一段
+	 */
+	public synchronized boolean isSegmentOpen() {
+		return current != null || pending;
+	}
+
+	/**
+	 * 编码后包的时间戳按帧率取整，和打上的时间戳最多差半帧，查找所在的段时加上这个误差
+	 */
+	public synchronized void setTimeStampTolerance(long toleranceUs) {
+		this.toleranceUs = toleranceUs;
+	}
+
+	/**
+	 * 编码线程在编码每一帧之前调用
+	 * @return 这一帧是否需要强制编码成关键帧，每一段只返回一次true
+	 */
+	public synchronized boolean takeKeyFrameRequest(long timeStampUs) {
+		if (keyFrameRequestUs < 0 || timeStampUs < keyFrameRequestUs)
+			return false;
+		keyFrameRequestUs = -1;
+		return true;
+	}
+
+	/**
+	 * 编码线程写入一帧后调用
+	 * @param timeStampUs 写入的包的时间戳
+	 * @param keyFrame 是否是关键帧
+	 * @param offset 写入后输出文件的位置，不知道时为-1
+	 */
+	public synchronized void onVideoFrame(long timeStampUs, boolean keyFrame, long offset) {
+		Segment segment = find(timeStampUs + toleranceUs);
+		if (segment == null)
+			return;
+		if (segment.frameCount == 0)
+			segment.startOffset = offset;
+		segment.endOffset = offset;
+		segment.frameCount++;
+		if (keyFrame)
+			segment.keyFrames.add(timeStampUs);
+	}
+
+	//时间戳所在的段，段数很少，从后往前找
+	private Segment find(long timeStampUs) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			if (timeStampUs >= segment.startUs)
+				return timeStampUs < segment.endUs ? segment : null;
+		}
+		return null;
+	}
+
+	/**
+	 * 删除最后一段没有被删除的录制，只能在暂停时调用
+	 * @return 被删除的一段，没有可以删除的或正在录制时返回null
+	 */
+	public synchronized Segment dropLastSegment() {
+		if (current != null || pending)
+			return null;
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			if (!segment.dropped) {
+				segment.dropped = true;
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 没有被删除的段数
+	 */
+	public synchronized int getKeptCount() {
+		int count = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (!segments.get(i).dropped)
+				count++;
+		}
+		return count;
+	}
+
+	public synchronized boolean hasDroppedSegments() {
+		return segments.size() > getKeptCount();
+	}
+
+	/**
+	 * 被删除的时间范围{开始, 结束}，相邻的合并成一个，按时间排序
+	 */
+	public synchronized List<long[]> getDroppedRanges() {
+		List<long[]> ranges = new ArrayList<long[]>();
+		long[] range = null;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (!segment.dropped) {
+				range = null;
+			} else if (range != null) {
+				range[1] = segment.endUs;
+			} else {
+				range = new long[] {segment.startUs, segment.endUs};
+				ranges.add(range);
+			}
+		}
+		return ranges;
+	}
+
+	public synchronized List<Segment> getSegments() {
+		return new ArrayList<Segment>(segments);
+	}
+
+	public synchronized void clear() {
+		segments.clear();
+		current = null;
+		pending = false;
+		keyFrameRequestUs = -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < segments.size(); i++)
+			builder.append(i).append(' ').append(segments.get(i)).append('\n');
+		return builder.toString();
+	}
+}
@@ -0,0 +1,202 @@
+package com.qd.recorder;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 静音检测
+ * 每一段PCM计算均方根（RMS）和峰值，都低于阈值并且持续超过保持时间（hangover）后认为是静音，
+ * 这一段直接清零再交给编码器：AAC对全零的输入几乎不用量化搜索，输出的包也很小。
+ * 采样不删除，音频的时间轴（按采样数计算）和视频保持同步。
+ * 刚开始说话时立即恢复，保持时间只作用在声音变小之后，避免把词尾和停顿切掉。
+ * 开始清零的那一段从原来的音量线性淡出到0，恢复时这一段的开头从0淡入，避免波形突变产生爆音。
+ * 记录每一段被清零的区间（按采样数换算的微秒），所有方法都在音频编码线程中调用
+ * @author QD
+ *
+ */
+public class SilenceDetector {
+
+	//恢复时淡入的时长（毫秒），只影响说话开头很短的一段
+	private static final int FADE_IN_MS = 10;
+
+	private final int sampleRate;
+	//16位采样的阈值，由dBFS换算
+	private final double rmsThreshold;
+	private final int peakThreshold;
+	private final long hangoverSamples;
+	//恢复时淡入的采样数
+	private final int fadeInSamples;
+	private final boolean enabled;
+
+	//已经处理的采样数，声音低于阈值后还要保持的采样数
+	private long processedSamples;
+	private long hangoverRemaining;
+	private boolean silent = false;
+	private long silentStart;
+	//被清零的区间，每项为{开始, 结束}（微秒）
+	private final List<long[]> regions = new ArrayList<long[]>();
+
+	//统计：检查的段数、清零的段数、清零的采样数、最后一段的RMS（dBFS）
+	private long checkedCount, silentCount, silentSamples;
+	private float lastLevel = -96f;
+
+	/**
+	 * @param parameters 录制参数中的开关、阈值和保持时间
+	 */
+	public SilenceDetector(RecorderParameters parameters) {
+		this(parameters.isSilenceDetection(), parameters.getAudioSamplingRate(), parameters.getSilenceThreshold(),
+				parameters.getSilencePeakThreshold(), parameters.getSilenceHangover());
+	}
+
+	/**
+	 * @param enabled 为false时不检测，只统计
+	 * @param sampleRate 采样率
+	 * @param rmsThresholdDb RMS低于这个值（dBFS，负数）时可能是静音
+	 * @param peakThresholdDb 峰值也低于这个值（dBFS）才是静音，避免把短促的声音当成静音
+	 * @param hangoverMs 声音低于阈值后再过多长时间（毫秒）开始清零
+	 */
+	public SilenceDetector(boolean enabled, int sampleRate, float rmsThresholdDb, float peakThresholdDb, int hangoverMs) {
+		this.enabled = enabled;
+		this.sampleRate = sampleRate;
+		this.rmsThreshold = toLinear(rmsThresholdDb);
+		this.peakThreshold = (int) Math.round(toLinear(peakThresholdDb));
+		this.hangoverSamples = (long) sampleRate * hangoverMs / 1000;
+		this.hangoverRemaining = hangoverSamples;
+		this.fadeInSamples = Math.max(1, sampleRate * FADE_IN_MS / 1000);
+	}
+
+	private static double toLinear(float db) {
+		return 32768.0 * Math.pow(10, db / 20.0);
+	}
+
+	private static float toDb(double value) {
+		return value <= 0 ? -96f : (float) (20 * Math.log10(value / 32768.0));
+	}
+
+	/**
+	 * 编码一段采样之前调用，静音时把这一段清零
+	 * @param samples 从position到limit的采样，position不变
+	 * @return 这一段是否被当成静音
+	 */
+	public boolean process(ShortBuffer samples) {
+		int from = samples.position(), to = samples.limit();
+		int n = to - from;
+		if (n <= 0)
+			return silent;
+		long sum = 0;
+		int peak = 0;
+		for (int i = from; i < to; i++) {
+			int s = samples.get(i);
+			sum += s * s;
+			if (s < 0)
+				s = -s;
+			if (s > peak)
+				peak = s;
+		}
+		double rms = Math.sqrt((double) sum / n);
+		lastLevel = toDb(rms);
+		checkedCount++;
+
+		boolean quiet = rms < rmsThreshold && peak < peakThreshold;
+		if (!quiet) {
+			hangoverRemaining = hangoverSamples;
+			if (silent) {
+				//前一段是0，从0淡入
+				fade(samples, from, Math.min(n, fadeInSamples), true);
+				endRegion();
+			}
+		} else if (hangoverRemaining > 0) {
+			hangoverRemaining -= n;
+		} else if (enabled) {
+			if (!silent) {
+				silent = true;
+				silentStart = processedSamples;
+				//第一段淡出到0，后面的直接清零
+				fade(samples, from, n, false);
+			} else {
+				for (int i = from; i < to; i++)
+					samples.put(i, (short) 0);
+			}
+			silentCount++;
+			silentSamples += n;
+		}
+		processedSamples += n;
+		return silent;
+	}
+
+	/**
+	 * 从from开始的count个采样线性淡入（增益从0到1）或淡出（从1到0）
+	 */
+	private static void fade(ShortBuffer samples, int from, int count, boolean in) {
+		for (int i = 0; i < count; i++) {
+			int gain = in ? i : count - 1 - i;
+			samples.put(from + i, (short) (samples.get(from + i) * gain / count));
+		}
+	}
+
+	private void endRegion() {
+		if (!silent)
+			return;
+		silent = false;
+		regions.add(new long[] {toMicros(silentStart), toMicros(processedSamples)});
+	}
+
+	private long toMicros(long samples) {
+		return samples * 1000000L / sampleRate;
+	}
+
+	/**
+	 * 录制结束时调用，结束最后一段静音
+	 */
+	public void finish() {
+		endRegion();
+	}
+
+	/**
+	 * 被清零的区间，每项为{开始, 结束}（微秒，从第一个采样算起）
+	 */
+	public List<long[]> getSilentRegions() {
+		return regions;
+	}
+
+	/**
+	 * 清零的总时长（秒）
+	 */
+	public float getSilentSeconds() {
+		return sampleRate == 0 ? 0 : (float) silentSamples / sampleRate;
+	}
+
+	/**
+	 * 清零的采样占全部采样的比例
+	 */
+	public float getSilentRatio() {
+		return processedSamples == 0 ? 0 : (float) silentSamples / processedSamples;
+	}
+
+	public boolean isSilent() {
+		return silent;
+	}
+
+	/**
+	 * 最后一段的RMS（dBFS）
+	 */
+	public float getLastLevel() {
+		return lastLevel;
+	}
+
+	public long getCheckedCount() {
+		return checkedCount;
+	}
+
+	public long getSilentCount() {
+		return silentCount;
+	}
+
+	@Override
+	public String toString() {
+		return "enabled=" + enabled + " checked=" + checkedCount + " silent=" + silentCount + " silentTime="
+				+ Math.round(getSilentSeconds() * 10) / 10.0 + "s ratio=" + Math.round(getSilentRatio() * 1000) / 10.0
+				+ "% regions=" + regions.size() + " level=" + Math.round(lastLevel) + "dB";
+	}
+}
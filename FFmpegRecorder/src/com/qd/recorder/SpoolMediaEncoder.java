@@ -0,0 +1,220 @@
+package com.qd.recorder;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 延后编码：录制时只把旋转后的图像和PCM追加到{@link FrameSpool}，停止录制后再交给真正的编码器
+ * 性能差的手机实时编码跟不上帧率时，录制过程中不再降低质量或者丢帧，停止录制时按原来的质量编码完整个视频。
+ * 强制关键帧的请求记在记录的标记中，编码时在同一帧上生效，分段和回删不受影响
+ * @author QD
+ *
+ */
+public class SpoolMediaEncoder extends MediaEncoder {
+
+	public static final String NAME = "spool";
+
+	/**
+	 * 暂存文件的后缀，加在视频文件名之后
+	 */
+	public static final String EXTENSION = ".spool";
+
+	/**
+	 * 一条音频记录最多多少个采样
+	 */
+	public static final int AUDIO_SLOT_SAMPLES = 4096;
+
+	private final MediaEncoder target;
+	private final FrameSpool spool;
+	private final long preallocateBytes;
+
+	//录制时每一帧都是同一个yuvIplImage，缓存它的数据缓冲区
+	private IplImage lastImage;
+	private ByteBuffer lastImageBuffer;
+	private boolean keyFrameRequest = false;
+	private boolean lastKeyFrame = false;
+	private long lastTimeStamp = -1;
+	private volatile FrameSpool.Reader reader;
+	//统计：录制时长（第一帧到最后一帧），编码暂存数据花费的时间
+	private long firstTimeStamp = -1;
+	private long replayMs = -1;
+
+	/**
+	 * @param path 输出文件，暂存文件为它加上{@link #EXTENSION}
+	 * @param parameters 录制参数，按视频大小和预先分配的时长计算暂存文件的大小
+	 * @param target 真正的编码器，停止录制时才开始
+	 */
+	public SpoolMediaEncoder(String path, RecorderParameters parameters, MediaEncoder target) {
+		super(NAME, target.getVideoCodec());
+		this.target = target;
+		this.spool = new FrameSpool(path + EXTENSION, getFrameBytes(parameters), AUDIO_SLOT_SAMPLES);
+		this.preallocateBytes = estimateBytes(parameters, parameters.getSpoolPreallocation());
+	}
+
+	//旋转后的NV21，宽高和录制参数一致
+	private static int getFrameBytes(RecorderParameters parameters) {
+		return parameters.getVidioWidth() * parameters.getVidioHeight() * 3 / 2;
+	}
+
+	/**
+	 * 暂存一段时间的音视频大约需要多少字节
+	 * @param seconds 时长（秒）
+	 */
+	public static long estimateBytes(RecorderParameters parameters, int seconds) {
+		long video = (long) (getFrameBytes(parameters) + FrameSpool.HEADER_SIZE) * parameters.getVideoFrameRate();
+		long audio = (long) parameters.getAudioSamplingRate() * 2 * (AUDIO_SLOT_SAMPLES * 2 + FrameSpool.HEADER_SIZE)
+				/ (AUDIO_SLOT_SAMPLES * 2);
+		return (video + audio) * seconds;
+	}
+
+	/**
+	 * 输出文件所在的磁盘是否放得下暂存文件
+	 * @param seconds 至少能暂存多长时间（秒）
+	 */
+	public static boolean hasSpace(String path, RecorderParameters parameters, int seconds) {
+		File dir = new File(path).getAbsoluteFile().getParentFile();
+		return dir != null && dir.getUsableSpace() > estimateBytes(parameters, seconds);
+	}
+
+	@Override
+	public void setImageSize(int width, int height) {
+		target.setImageSize(width, height);
+	}
+
+	@Override
+	public void start() throws Exception {
+		spool.open(preallocateBytes);
+	}
+
+	@Override
+	protected boolean onEncodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception {
+		if (image != lastImage) {
+			lastImage = image;
+			lastImageBuffer = image.getByteBuffer();
+		}
+		ByteBuffer data = lastImageBuffer;
+		data.clear();
+		//只保存像素格式实际用到的部分
+		data.limit(getImageBytes(image, pixelFormat));
+		//第一帧编码时一定是关键帧
+		boolean key = keyFrameRequest || lastTimeStamp < 0;
+		spool.appendVideo(data, image.width(), image.height(), pixelFormat, key ? FrameSpool.FLAG_KEY_FRAME : 0, timeStampUs);
+		keyFrameRequest = false;
+		lastKeyFrame = key;
+		lastTimeStamp = timeStampUs;
+		if (firstTimeStamp < 0)
+			firstTimeStamp = timeStampUs;
+		return key;
+	}
+
+	@Override
+	public void encodeSamples(ShortBuffer samples) throws Exception {
+		spool.appendAudio(samples);
+	}
+
+	@Override
+	public void forceKeyFrame() {
+		keyFrameRequest = true;
+	}
+
+	@Override
+	public void setRateControl(int quality, int bitrate) {
+		//编码不受录制时的负载影响，保持原来的质量
+	}
+
+	/**
+	 * 暂存的数据按顺序交给真正的编码器，编码完成后删除暂存文件
+	 */
+	@Override
+	public void stop() throws Exception {
+		long start = System.currentTimeMillis();
+		spool.finish();
+		FrameSpool.Reader in = spool.openReader();
+		reader = in;
+		IplImage image = null;
+		ByteBuffer audioBytes = ByteBuffer.allocateDirect(AUDIO_SLOT_SAMPLES * 2).order(ByteOrder.nativeOrder());
+		ShortBuffer audioSamples = audioBytes.asShortBuffer();
+		try {
+			target.start();
+			while (in.next()) {
+				if (in.getType() == FrameSpool.TYPE_VIDEO) {
+					if (image == null || image.width() != in.getWidth() || image.height() != in.getHeight())
+						image = IplImage.create(in.getWidth(), in.getHeight(), IPL_DEPTH_8U, 2);
+					ByteBuffer data = image.getByteBuffer();
+					data.clear();
+					in.readPayload(data);
+					if ((in.getFlags() & FrameSpool.FLAG_KEY_FRAME) != 0)
+						target.forceKeyFrame();
+					target.encodeFrame(image, in.getFormat(), in.getTimeStamp());
+				} else {
+					audioBytes.clear();
+					in.readPayload(audioBytes);
+					audioSamples.clear();
+					audioSamples.limit(in.getLength() / 2);
+					target.encodeSamples(audioSamples);
+				}
+			}
+			target.stop();
+			//按真正编码的耗时决定下次是否还需要延后编码
+			EncoderRegistry.reportCost(target);
+		} finally {
+			in.close();
+			replayMs = System.currentTimeMillis() - start;
+			spool.delete();
+		}
+	}
+
+	@Override
+	public void release() {
+		lastImage = null;
+		lastImageBuffer = null;
+		target.release();
+		spool.delete();
+	}
+
+	@Override
+	public boolean isLastKeyFrame() {
+		return lastKeyFrame;
+	}
+
+	@Override
+	public long getLastPacketTimeStamp() {
+		return lastTimeStamp;
+	}
+
+	public MediaEncoder getTarget() {
+		return target;
+	}
+
+	public FrameSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * 停止录制后编码暂存数据的进度，0~1，还没有开始时为0
+	 */
+	public float getReplayProgress() {
+		FrameSpool.Reader in = reader;
+		return in == null ? 0 : in.getProgress();
+	}
+
+	/**
+	 * 录制的时长里平均每秒暂存多少字节
+	 */
+	public long getBytesPerSecond() {
+		long durationUs = lastTimeStamp - firstTimeStamp;
+		return durationUs <= 0 ? 0 : spool.getUsedBytes() * 1000000L / durationUs;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " spool[" + spool + " rate=" + (getBytesPerSecond() >> 10) + "KB/s] replay="
+				+ replayMs + "ms target[" + target + "]";
+	}
+}
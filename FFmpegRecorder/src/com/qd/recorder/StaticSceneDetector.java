@@ -0,0 +1,204 @@
+package com.qd.recorder;
+
+/**
+ * 静止画面检测
+ * 旋转之前按{@link #SAMPLE_STEP}间隔采样输出区域的亮度，和最后一个编码的画面比较平均绝对差（SAD）。
+ * 采样按{@link #BLOCK_SAMPLES}分成粗网格，每一块分别计算平均绝对差，取最大的一块和阈值比较，
+ * 这样只有一小块区域（嘴、手）在动时不会被整帧的平均值掩盖。所有块都低于阈值时认为画面没有变化，这一帧不再旋转：
+ * SKIP模式下不编码（输出变帧率），DUPLICATE模式下把上一次旋转的图像再编码一次，编码器输出很小的P帧。
+ * 比较的基准只在画面有变化时更新，缓慢的变化累积起来超过阈值后仍然会被编码
+ * 所有方法都在编码线程中调用
+ * @author QD
+ *
+ */
+public class StaticSceneDetector {
+
+	/**
+	 * 没有变化的帧的处理方式
+	 */
+	public static enum Mode {
+		OFF,			//不检测，每一帧都编码
+		SKIP,			//不编码，超过最长间隔时重复编码一次上一帧
+		DUPLICATE		//不旋转，重复编码上一帧
+	}
+
+	//check的结果
+	public static final int ENCODE = 0;			//画面有变化，旋转后编码
+	public static final int SKIP = 1;			//跳过这一帧
+	public static final int DUPLICATE = 2;		//不旋转，编码上一次旋转的图像
+
+	/**
+	 * 行列的采样间隔，480x480时每帧采样3600个点
+	 */
+	public static final int SAMPLE_STEP = 8;
+
+	/**
+	 * 网格每一块的边长（采样点数），按SAMPLE_STEP采样时每块是64x64像素，480x480时8x8块
+	 */
+	public static final int BLOCK_SAMPLES = 8;
+
+	private final Mode mode;
+	private final float threshold;
+	private final long maxSkipUs;
+
+	//基准画面和当前画面的采样
+	private byte[] reference, current;
+	private int sampleCount;
+	//每行的采样个数，以及一行块中每块的SAD之和
+	private int sampleColumns;
+	private long[] blockSums;
+	private YuvRotator rotator;
+	//最后一次编码（包括重复编码）的时间戳
+	private long lastEncodedUs = -1;
+
+	//统计：检查的帧数、和基准比较过的帧数、判定为静止的帧数、跳过的、重复编码的、SAD总和
+	private long checkedCount, comparedCount, staticCount, skippedCount, duplicatedCount;
+	private double sadSum;
+	private float lastSad;
+
+	/**
+	 * @param parameters 录制参数中的模式、阈值和最长跳过时间
+	 */
+	public StaticSceneDetector(RecorderParameters parameters) {
+		this(parameters.getStaticSceneMode(), parameters.getStaticSceneThreshold(),
+				parameters.getStaticSceneMaxSkip() * 1000L);
+	}
+
+	/**
+	 * @param mode 没有变化的帧的处理方式
+	 * @param threshold 每一块采样点的平均亮度差（0~255），所有块都不超过时认为画面没有变化
+	 * @param maxSkipUs SKIP模式下最多连续多长时间不编码
+	 */
+	public StaticSceneDetector(Mode mode, float threshold, long maxSkipUs) {
+		this.mode = mode == null ? Mode.OFF : mode;
+		this.threshold = threshold;
+		this.maxSkipUs = maxSkipUs;
+	}
+
+	/**
+	 * 编码一帧之前调用
+	 * @param rotator 这一帧使用的旋转，和上一帧不同（切换了摄像头）时重新开始比较
+	 * @param src 摄像头返回的NV21数据
+	 * @param timeStampUs 这一帧的时间戳
+	 * @param mustEncode 这一帧必须完整编码，例如每一段的第一帧
+	 * @return {@link #ENCODE}、{@link #SKIP}或{@link #DUPLICATE}
+	 */
+	public int check(YuvRotator rotator, byte[] src, long timeStampUs, boolean mustEncode) {
+		if (mode == Mode.OFF)
+			return ENCODE;
+		if (rotator != this.rotator) {
+			this.rotator = rotator;
+			sampleCount = rotator.getLumaSampleCount(SAMPLE_STEP);
+			sampleColumns = (rotator.getOutWidth() + SAMPLE_STEP - 1) / SAMPLE_STEP;
+			blockSums = new long[(sampleColumns + BLOCK_SAMPLES - 1) / BLOCK_SAMPLES];
+			reference = new byte[sampleCount];
+			current = new byte[sampleCount];
+			lastEncodedUs = -1;
+		}
+		checkedCount++;
+		rotator.sampleLuma(src, SAMPLE_STEP, current);
+		if (lastEncodedUs < 0 || mustEncode)
+			return changed(timeStampUs);
+
+		lastSad = maxBlockSad();
+		sadSum += lastSad;
+		comparedCount++;
+		if (lastSad > threshold)
+			return changed(timeStampUs);
+
+		staticCount++;
+		if (mode == Mode.SKIP && timeStampUs - lastEncodedUs < maxSkipUs) {
+			skippedCount++;
+			return SKIP;
+		}
+		duplicatedCount++;
+		lastEncodedUs = timeStampUs;
+		return DUPLICATE;
+	}
+
+	/**
+	 * 按网格计算每一块的平均绝对差
+	 * @return 最大的一块
+	 */
+	private float maxBlockSad() {
+		byte[] ref = reference, cur = current;
+		long[] sums = blockSums;
+		int columns = sampleColumns;
+		int rows = sampleCount / columns;
+		float max = 0;
+		for (int blockRow = 0; blockRow < rows; blockRow += BLOCK_SAMPLES) {
+			int blockRows = Math.min(BLOCK_SAMPLES, rows - blockRow);
+			for (int b = 0; b < sums.length; b++)
+				sums[b] = 0;
+			for (int r = blockRow; r < blockRow + blockRows; r++) {
+				int i = r * columns;
+				for (int c = 0; c < columns; c++, i++) {
+					int d = (cur[i] & 0xFF) - (ref[i] & 0xFF);
+					sums[c / BLOCK_SAMPLES] += d < 0 ? -d : d;
+				}
+			}
+			for (int b = 0; b < sums.length; b++) {
+				//最右边一列块可能不满
+				int blockColumns = Math.min(BLOCK_SAMPLES, columns - b * BLOCK_SAMPLES);
+				float sad = (float) sums[b] / (blockRows * blockColumns);
+				if (sad > max)
+					max = sad;
+			}
+		}
+		return max;
+	}
+
+	//当前画面成为新的基准
+	private int changed(long timeStampUs) {
+		byte[] swap = reference;
+		reference = current;
+		current = swap;
+		lastEncodedUs = timeStampUs;
+		return ENCODE;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public float getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * 最近一次比较中平均亮度差最大的一块
+	 */
+	public float getLastSad() {
+		return lastSad;
+	}
+
+	public long getCheckedCount() {
+		return checkedCount;
+	}
+
+	public long getStaticCount() {
+		return staticCount;
+	}
+
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	public long getDuplicatedCount() {
+		return duplicatedCount;
+	}
+
+	/**
+	 * 判定为静止的帧所占的比例
+	 */
+	public float getHitRate() {
+		return checkedCount == 0 ? 0 : (float) staticCount / checkedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "mode=" + mode + " threshold=" + threshold + " checked=" + checkedCount + " static=" + staticCount
+				+ " hitRate=" + Math.round(getHitRate() * 1000) / 10.0 + "% skipped=" + skippedCount
+				+ " duplicated=" + duplicatedCount + " meanSad=" + (comparedCount == 0 ? 0 : Math.round(sadSum / comparedCount * 10) / 10.0);
+	}
+}
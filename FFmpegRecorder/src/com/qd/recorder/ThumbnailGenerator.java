@@ -0,0 +1,181 @@
+package com.qd.recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * 录制的第一帧生成封面图
+ * 以前停止录制时才把整帧NV21压缩成JPEG，再解码成Bitmap用Matrix旋转，然后再压缩一次。
+ * 这里直接在YUV中用和视频相同的{@link YuvRotator}旋转裁剪，按区域平均缩小到封面大小，只压缩一次JPEG，
+ * 拿到第一帧后马上在后台线程中生成，停止录制时一般已经完成
+ * @author QD
+ *
+ */
+public class ThumbnailGenerator implements Runnable {
+
+	private final YuvRotator rotator;
+	private final int width, height;
+	private final int quality;
+	private final String path;
+
+	private byte[] data;
+	private Thread thread;
+	//生成结束（成功或失败），成功时success为true
+	private boolean finished, success;
+	private long elapsedMs = -1;
+
+	/**
+	 * @param rotator 视频使用的旋转裁剪，这里复制一份固定输出NV21：
+	 * 视频的输出格式可能是YUV420P或NV12，并且会在录制线程中被修改
+	 * @param width 封面最大的宽，小于等于0时和视频一样。封面保持视频的宽高比，缩小到width x height以内
+	 * @param height 封面最大的高，小于等于0时和视频一样
+	 * @param quality JPEG质量，0~100
+	 * @param path 封面文件
+	 */
+	public ThumbnailGenerator(YuvRotator rotator, int width, int height, int quality, String path) {
+		this.rotator = rotator.copy(YuvRotator.FORMAT_NV21);
+		//在width x height的范围内保持视频的宽高比，不放大
+		int outWidth = rotator.getOutWidth(), outHeight = rotator.getOutHeight();
+		int boxWidth = width > 0 ? Math.min(width, outWidth) : outWidth;
+		int boxHeight = height > 0 ? Math.min(height, outHeight) : outHeight;
+		if ((long) boxWidth * outHeight <= (long) boxHeight * outWidth) {
+			this.width = even(boxWidth, boxWidth);
+			this.height = even((int) ((long) outHeight * boxWidth / outWidth), boxHeight);
+		} else {
+			this.width = even((int) ((long) outWidth * boxHeight / outHeight), boxWidth);
+			this.height = even(boxHeight, boxHeight);
+		}
+		this.quality = quality;
+		this.path = path;
+	}
+
+	//取偶数，不超过max，至少为2
+	private static int even(int value, int max) {
+		return Math.max(2, Math.min(value, max) & ~1);
+	}
+
+	/**
+	 * 在后台线程中生成封面
+	 * @param nv21 摄像头返回的一帧数据，调用后不能再修改
+	 */
+	public synchronized void start(byte[] nv21) {
+		if (thread != null)
+			return;
+		data = nv21;
+		thread = new Thread(this, "ThumbnailThread");
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try {
+			ok = generate();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			data = null;
+			success = ok;
+			finished = true;
+			elapsedMs = System.currentTimeMillis() - start;
+			notifyAll();
+		}
+	}
+
+	private boolean generate() throws IOException {
+		byte[] rotated = new byte[rotator.getFrameSize()];
+		rotator.rotate(data, rotated);
+		byte[] scaled = rotated;
+		int outWidth = rotator.getOutWidth(), outHeight = rotator.getOutHeight();
+		if (width != outWidth || height != outHeight) {
+			scaled = new byte[width * height * 3 / 2];
+			scaleNV21(rotated, outWidth, outHeight, scaled, width, height);
+		}
+		YuvImage image = new YuvImage(scaled, ImageFormat.NV21, width, height, null);
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			return image.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * 等待封面生成完成
+	 * @param timeoutMs 最多等待多长时间
+	 * @return 封面文件，失败、超时或者还没有开始时为null
+	 */
+	public synchronized String await(long timeoutMs) {
+		if (thread == null)
+			return null;
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!finished) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return success ? path : null;
+	}
+
+	/**
+	 * NV21缩小，每个输出像素取它在原图中覆盖区域的平均值，宽高都必须是偶数
+	 */
+	public static void scaleNV21(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight) {
+		scalePlane(src, 0, srcWidth, srcWidth, srcHeight, 1, dst, 0, dstWidth, dstWidth, dstHeight);
+		int srcChroma = srcWidth * srcHeight, dstChroma = dstWidth * dstHeight;
+		//V、U交错，分别按间隔2处理
+		for (int i = 0; i < 2; i++)
+			scalePlane(src, srcChroma + i, srcWidth, srcWidth / 2, srcHeight / 2, 2,
+					dst, dstChroma + i, dstWidth, dstWidth / 2, dstHeight / 2);
+	}
+
+	/**
+	 * @param rowBytes 一行的字节数
+	 * @param pixelStride 相邻两个像素间隔的字节数，输入输出相同
+	 */
+	private static void scalePlane(byte[] src, int srcOffset, int srcRowBytes, int srcWidth, int srcHeight,
+			int pixelStride, byte[] dst, int dstOffset, int dstRowBytes, int dstWidth, int dstHeight) {
+		for (int y = 0; y < dstHeight; y++) {
+			int y0 = y * srcHeight / dstHeight;
+			int y1 = Math.max(y0 + 1, (y + 1) * srcHeight / dstHeight);
+			int out = dstOffset + y * dstRowBytes;
+			for (int x = 0; x < dstWidth; x++) {
+				int x0 = x * srcWidth / dstWidth;
+				int x1 = Math.max(x0 + 1, (x + 1) * srcWidth / dstWidth);
+				int sum = 0;
+				for (int sy = y0; sy < y1; sy++) {
+					int p = srcOffset + sy * srcRowBytes + x0 * pixelStride;
+					for (int sx = x0; sx < x1; sx++) {
+						sum += src[p] & 0xFF;
+						p += pixelStride;
+					}
+				}
+				dst[out] = (byte) (sum / ((y1 - y0) * (x1 - x0)));
+				out += pixelStride;
+			}
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * 生成封面花费的时间，还没有完成时为-1
+	 */
+	public synchronized long getElapsedMs() {
+		return elapsedMs;
+	}
+}
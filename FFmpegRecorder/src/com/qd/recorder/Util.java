@@ -3,16 +3,12 @@ package com.qd.recorder;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvCreateFileCapture;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvQueryFrame;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -43,6 +39,7 @@ import android.widget.Toast;
 
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_highgui.CvCapture;
+import com.jack.util.JLog;
 import com.qd.videorecorder.R;
 
 
@@ -188,6 +185,10 @@ public class Util {
 				File file = new File(dirPath);
 				if(file != null && file.isDirectory()){
 					for(File file2 :file.listFiles()){
+						//还没有恢复的视频和它的日志保留下来
+						if(file2.getName().endsWith(RecordingJournal.EXTENSION)
+								|| new File(file2.getPath() + RecordingJournal.EXTENSION).exists())
+							continue;
 						file2.delete();
 					}
 				}
@@ -195,6 +196,24 @@ public class Util {
 		}).start();
 	}
 
+	/**
+	 * 恢复上次录制中途被杀掉的视频，在开始新的录制之前调用
+	 * 日志列表在调用线程中取得，之后新录制的视频不会被当成中断的，恢复在后台线程中进行
+	 */
+	public static void recoverInterruptedVideos(Context context){
+		String dirPath = Environment.getExternalStorageDirectory()+"/Android/data/" + context.getPackageName()+"/video";
+		final List<File> journals = RecordingRecovery.findJournals(new File(dirPath));
+		if(journals.isEmpty())
+			return;
+		new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				RecordingRecovery.recoverAll(journals);
+			}
+		}, "RecoveryThread").start();
+	}
+
 	private static String genrateFilePath(Context context,String uniqueId, boolean isFinalPath, File tempFolderPath)
 	{
 		String fileName = CONSTANTS.FILE_START_NAME + uniqueId + CONSTANTS.VIDEO_EXTENSION;
@@ -309,26 +328,38 @@ public class Util {
 	}
 
 
-	public static void concatenateMultipleFiles(String inpath, String outpath)
+	/**
+	 * 把文件夹中的分段视频按录制顺序（修改时间，相同时按文件名）拼接成一个文件，不重新编码
+	 * @return 是否拼接成功
+	 */
+	public static boolean concatenateMultipleFiles(String inpath, String outpath)
 	{
-		File Folder = new File(inpath);
-		File files[];
-		files = Folder.listFiles();
-
-		if(files.length>0)
-		{
-			for(int i = 0;i<files.length; i++){
-				Reader in = null;
-				Writer out = null;
-				try {
-					in =   new FileReader(files[i]);
-					out = new FileWriter(outpath , true); 
-					in.close();
-					out.close(); 
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+		File[] files = new File(inpath).listFiles();
+		if(files == null || files.length == 0)
+			return false;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				if(lhs.lastModified() != rhs.lastModified())
+					return lhs.lastModified() < rhs.lastModified() ? -1 : 1;
+				return lhs.getName().compareTo(rhs.getName());
 			}
+		});
+		List<String> segments = new ArrayList<String>();
+		for(File file : files){
+			if(file.isFile() && !file.getAbsolutePath().equals(new File(outpath).getAbsolutePath()))
+				segments.add(file.getAbsolutePath());
+		}
+		if(segments.isEmpty())
+			return false;
+		SegmentConcatenator concatenator = new SegmentConcatenator(outpath);
+		try {
+			concatenator.concatenate(segments);
+			JLog.print("concatenate " + concatenator);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
 		}
 	}
 
@@ -345,9 +376,12 @@ public class Util {
 		return localHashMap;
 	}
 
-	public static int getTimeStampInNsFromSampleCounted(int paramInt)
+	/**
+	 * 采样数换算成时间戳，单位微秒，任意采样率，64位运算不会溢出
+	 */
+	public static long getTimeStampInNsFromSampleCounted(long sampleCount, int sampleRate)
 	{
-		return (int)(paramInt / 0.0441D);
+		return MediaClock.samplesToMicros(sampleCount, sampleRate);
 	}
 
 
@@ -355,21 +389,24 @@ public class Util {
 	public static void saveReceivedFrame(SavedFrames frame)
 	{
 		File cachePath = new File(frame.getCachePath());
-		BufferedOutputStream bos;
+		byte[] data = frame.getFrameBytesData();
+		//保存成只有一帧的FrameContainer，读取时可以直接映射到内存
+		FileOutputStream fos = null;
 		try {
-			bos = new BufferedOutputStream(new FileOutputStream(cachePath));
-			if(bos != null)
-			{
-				bos.write(frame.getFrameBytesData());
-				bos.flush();
-				bos.close();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			cachePath = null;
+			fos = new FileOutputStream(cachePath);
+			FrameContainer.Writer writer = new FrameContainer.Writer(fos.getChannel(), false, FrameContainer.DEFAULT_KEY_INTERVAL);
+			writer.write(data, 0, data.length, frame.getWidth(), frame.getHeight(), frame.getPixelFormat(), frame.getTimeStamp());
 		} catch (IOException e) {
 			e.printStackTrace();
-			cachePath = null;
+			cachePath.delete();
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 
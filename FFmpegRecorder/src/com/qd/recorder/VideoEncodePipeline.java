@@ -0,0 +1,272 @@
+package com.qd.recorder;
+
+import java.util.LinkedList;
+
+/**
+ * 视频编码流水线
+ * 摄像头回调线程只负责把一帧数据和时间戳放入有界队列，由单独的编码线程取出后交给编码器，
+ * 编码偶尔变慢时不会阻塞下一帧预览数据的回调。
+ * 队列中的帧对象（SavedFrames）是预先分配、循环使用的，帧数据用完（编码完成或被丢弃）后
+ * 通过{@link FrameReleaseListener}还给数据的提供者，例如摄像头的预览缓冲区池
+ * @author QD
+ *
+ */
+public class VideoEncodePipeline implements Runnable {
+
+	/**
+	 * 队列满时的丢帧策略
+	 */
+	public static enum DropPolicy {
+		DROP_OLDEST,		//丢掉队列中最早的一帧，保留最新的画面
+		DROP_NEWEST,		//丢掉新来的这一帧
+		BLOCK				//阻塞摄像头线程，直到队列有空位
+	}
+
+	/**
+	 * 真正执行编码的回调，在编码线程中调用
+	 */
+	public interface FrameEncoder {
+		void encodeFrame(SavedFrames frame) throws Exception;
+	}
+
+	/**
+	 * 帧数据不再被使用时的回调，每一个传给queueFrame的数据都会回调且只回调一次
+	 */
+	public interface FrameReleaseListener {
+		void onFrameReleased(byte[] data);
+	}
+
+	private final int capacity;
+	private final DropPolicy dropPolicy;
+	private final FrameEncoder encoder;
+	private volatile FrameReleaseListener releaseListener;
+
+	private final Object lock = new Object();
+	//等待编码的帧
+	private final LinkedList<SavedFrames> pendingFrames = new LinkedList<SavedFrames>();
+	//空闲的帧对象，容量+1个：队列满时还有一帧正在编码
+	private final LinkedList<SavedFrames> freeFrames = new LinkedList<SavedFrames>();
+
+	private Thread encodeThread;
+	private boolean running = false;
+	private boolean discardPending = false;
+
+	//统计：入队、编码完成、丢弃、编码出错的帧数
+	private long queuedCount, encodedCount, droppedCount, errorCount;
+	private volatile Exception lastError;
+
+	/**
+	 * @param capacity 队列最多缓存多少帧
+	 * @param dropPolicy 队列满时的处理方式
+	 * @param encoder 编码回调
+	 */
+	public VideoEncodePipeline(int capacity, DropPolicy dropPolicy, FrameEncoder encoder) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.dropPolicy = dropPolicy;
+		this.encoder = encoder;
+		for (int i = 0; i <= capacity; i++)
+			freeFrames.add(new SavedFrames(null, 0L));
+	}
+
+	public void setFrameReleaseListener(FrameReleaseListener listener) {
+		this.releaseListener = listener;
+	}
+
+	/**
+	 * 启动编码线程
+	 */
+	public void start() {
+		synchronized (lock) {
+			if (running)
+				return;
+			running = true;
+			discardPending = false;
+		}
+		encodeThread = new Thread(this, "VideoEncodeThread");
+		encodeThread.start();
+	}
+
+	/**
+	 * 停止编码线程并等待其退出
+	 * @param discard true时丢弃还没编码的帧，false时先把队列中的帧编码完
+	 */
+	public void stop(boolean discard) {
+		synchronized (lock) {
+			running = false;
+			discardPending = discard;
+			lock.notifyAll();
+		}
+		Thread thread = encodeThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		encodeThread = null;
+	}
+
+	/**
+	 * 摄像头线程调用，放入一帧待编码的数据
+	 * @param data 摄像头返回的数据，编码完成前不能被修改
+	 * @param timeStamp 时间戳，单位微秒
+	 * @return 这一帧是否进入了队列
+	 */
+	public boolean queueFrame(byte[] data, long timeStamp) {
+		byte[] dropped = null;
+		boolean accepted = false;
+		synchronized (lock) {
+			SavedFrames frame = null;
+			while (running && pendingFrames.size() >= capacity) {
+				if (dropPolicy == DropPolicy.DROP_NEWEST) {
+					break;
+				} else if (dropPolicy == DropPolicy.DROP_OLDEST) {
+					frame = pendingFrames.removeFirst();
+					dropped = frame.getFrameBytesData();
+					droppedCount++;
+					break;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (running && (frame != null || pendingFrames.size() < capacity)) {
+				if (frame == null)
+					frame = freeFrames.removeFirst();
+				frame.setFrameBytesData(data);
+				frame.setTimeStamp(timeStamp);
+				pendingFrames.addLast(frame);
+				queuedCount++;
+				accepted = true;
+				lock.notifyAll();
+			} else {
+				dropped = data;
+				droppedCount++;
+			}
+		}
+		release(dropped);
+		return accepted;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			SavedFrames frame;
+			boolean discard;
+			byte[] discarded = null;
+			synchronized (lock) {
+				while (pendingFrames.isEmpty() && running) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						running = false;
+					}
+				}
+				if (pendingFrames.isEmpty())
+					break;
+				frame = pendingFrames.removeFirst();
+				discard = !running && discardPending;
+				if (discard) {
+					droppedCount++;
+					discarded = recycle(frame);
+				}
+			}
+			if (discard) {
+				//和正常编码完成一样，在lock之外归还数据
+				release(discarded);
+				continue;
+			}
+			boolean encoded = false;
+			try {
+				encoder.encodeFrame(frame);
+				encoded = true;
+			} catch (Exception e) {
+				lastError = e;
+			}
+			byte[] data;
+			synchronized (lock) {
+				if (encoded)
+					encodedCount++;
+				else
+					errorCount++;
+				data = recycle(frame);
+			}
+			release(data);
+		}
+	}
+
+	//调用时需持有lock，返回帧对象原来持有的数据
+	private byte[] recycle(SavedFrames frame) {
+		byte[] data = frame.getFrameBytesData();
+		frame.setFrameBytesData(null);
+		freeFrames.addLast(frame);
+		lock.notifyAll();
+		return data;
+	}
+
+	//不能持有lock，回调中可能会再次调用queueFrame
+	private void release(byte[] data) {
+		FrameReleaseListener listener = releaseListener;
+		if (data != null && listener != null)
+			listener.onFrameReleased(data);
+	}
+
+	public long getQueuedCount() {
+		synchronized (lock) {
+			return queuedCount;
+		}
+	}
+
+	public long getEncodedCount() {
+		synchronized (lock) {
+			return encodedCount;
+		}
+	}
+
+	public long getDroppedCount() {
+		synchronized (lock) {
+			return droppedCount;
+		}
+	}
+
+	public long getErrorCount() {
+		synchronized (lock) {
+			return errorCount;
+		}
+	}
+
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * 当前队列中等待编码的帧数
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pendingFrames.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public DropPolicy getDropPolicy() {
+		return dropPolicy;
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			return "queued=" + queuedCount + " encoded=" + encodedCount + " dropped=" + droppedCount
+					+ " errors=" + errorCount + " pending=" + pendingFrames.size();
+		}
+	}
+}
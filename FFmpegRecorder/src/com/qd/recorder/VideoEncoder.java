@@ -0,0 +1,49 @@
+package com.qd.recorder;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 视频编码器，在视频编码线程中调用
+ * 具体的实现由{@link EncoderRegistry}按编码器id选择，见{@link MediaEncoder}
+ * @author QD
+ *
+ */
+public interface VideoEncoder {
+
+	/**
+	 * 输入图像的宽高，开始录制前调用
+	 */
+	void setImageSize(int width, int height);
+
+	/**
+	 * 编码一帧
+	 * @param image 输入图像，返回后可以被修改
+	 * @param pixelFormat 图像的像素格式，例如AV_PIX_FMT_NV21
+	 * @param timeStampUs 时间戳，单位微秒
+	 * @return 这一帧是否是关键帧
+	 */
+	boolean encodeFrame(IplImage image, int pixelFormat, long timeStampUs) throws Exception;
+
+	/**
+	 * 下一帧强制编码成关键帧
+	 */
+	void forceKeyFrame();
+
+	/**
+	 * 录制中调整量化参数和码率，下一帧开始生效，不支持时忽略
+	 * @param quality 量化参数，小于0时不变
+	 * @param bitrate 码率，小于等于0时不变
+	 */
+	void setRateControl(int quality, int bitrate);
+
+	/**
+	 * 最后写入的一帧是否是关键帧
+	 */
+	boolean isLastKeyFrame();
+
+	/**
+	 * 上一次encodeFrame写入的一帧的时间戳（微秒），编码器缓存了这一帧没有输出时为-1
+	 * 编码器有延迟时写入的是之前某一帧，不一定是刚传入的这一帧
+	 */
+	long getLastPacketTimeStamp();
+}
@@ -0,0 +1,388 @@
+package com.qd.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * NV21(YUV420SP)图像旋转
+ * 一次遍历完成0/90/180/270度的旋转、镜像（前置摄像头）以及裁剪，结果写入调用者提供的缓冲区
+ * 或者直接写入编码器使用的IplImage的ByteBuffer，
+ * 并自带一个可复用的缓冲池，录制过程中每一帧都不再分配新的byte[]。
+ * 输出格式可以是NV21、NV12或YUV420P，和编码器的像素格式一致时编码前不再需要swscale转换
+ * @author QD
+ *
+ */
+public class YuvRotator {
+
+	//输出的像素格式
+	public static final int FORMAT_NV21 = 0;		//VU交错，和摄像头一致
+	public static final int FORMAT_NV12 = 1;		//UV交错
+	public static final int FORMAT_YUV420P = 2;	//Y、U、V三个平面
+
+	private final int width, height;			//摄像头原始图像的宽高
+	private final int degrees;					//顺时针旋转的角度
+	private final boolean mirror;				//旋转后是否再做一次水平镜像
+	private final int rotatedWidth, rotatedHeight;	//旋转后整幅图像的宽高
+	private final int cropX, cropY;				//裁剪区域在旋转后图像中的左上角
+	private final int outWidth, outHeight;		//输出图像（裁剪区域）的宽高
+	private final int srcFrameSize;				//一帧原始NV21数据的长度
+	private final int frameSize;				//一帧输出NV21数据的长度
+
+	//亮度Y：输出第0行第0列在原图中的下标，以及输出换行、换列时原图下标的增量
+	private int lumaStart, lumaRowStep, lumaColStep;
+	//色度VU：以VU对为单位，含义同上
+	private int chromaStart, chromaRowStep, chromaColStep;
+	private int outputFormat = FORMAT_NV21;
+	//写入ByteBuffer时使用的行缓冲，YUV420P时第二个用于V平面
+	private byte[] rowBuffer, rowBuffer2;
+
+	//缓冲池
+	private final LinkedList<byte[]> bufferPool = new LinkedList<byte[]>();
+	private final int maxPoolSize;
+
+	public YuvRotator(int width, int height, int degrees, boolean mirror) {
+		this(width, height, degrees, mirror, 2);
+	}
+
+	/**
+	 * @param width 原图宽，必须为偶数
+	 * @param height 原图高，必须为偶数
+	 * @param degrees 顺时针旋转角度，只支持0/90/180/270
+	 * @param mirror 是否水平镜像，前置摄像头使用
+	 * @param maxPoolSize 缓冲池最多保留多少个缓冲区
+	 */
+	public YuvRotator(int width, int height, int degrees, boolean mirror, int maxPoolSize) {
+		this(width, height, degrees, mirror, 0, 0, -1, -1, maxPoolSize);
+	}
+
+	/**
+	 * 旋转的同时裁剪，裁剪区域以旋转（镜像）之后的图像为坐标系
+	 * @param cropX 裁剪区域左上角x，必须为偶数
+	 * @param cropY 裁剪区域左上角y，必须为偶数
+	 * @param cropWidth 裁剪区域宽，必须为偶数，小于0表示不裁剪
+	 * @param cropHeight 裁剪区域高，必须为偶数，小于0表示不裁剪
+	 */
+	public YuvRotator(int width, int height, int degrees, boolean mirror,
+			int cropX, int cropY, int cropWidth, int cropHeight, int maxPoolSize) {
+		if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0)
+			throw new IllegalArgumentException("Invalid NV21 size " + width + "x" + height);
+		if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270)
+			throw new IllegalArgumentException("Unsupported rotation " + degrees);
+		this.width = width;
+		this.height = height;
+		this.degrees = degrees;
+		this.mirror = mirror;
+		this.maxPoolSize = maxPoolSize;
+		boolean swap = degrees == 90 || degrees == 270;
+		this.rotatedWidth = swap ? height : width;
+		this.rotatedHeight = swap ? width : height;
+		if (cropWidth < 0 || cropHeight < 0) {
+			cropX = 0;
+			cropY = 0;
+			cropWidth = rotatedWidth;
+			cropHeight = rotatedHeight;
+		}
+		if (((cropX | cropY | cropWidth | cropHeight) & 1) != 0 || cropX < 0 || cropY < 0
+				|| cropWidth == 0 || cropHeight == 0
+				|| cropX + cropWidth > rotatedWidth || cropY + cropHeight > rotatedHeight)
+			throw new IllegalArgumentException("Invalid crop " + cropWidth + "x" + cropHeight + "+" + cropX + "+" + cropY
+					+ " for rotated size " + rotatedWidth + "x" + rotatedHeight);
+		this.cropX = cropX;
+		this.cropY = cropY;
+		this.outWidth = cropWidth;
+		this.outHeight = cropHeight;
+		this.srcFrameSize = width * height * 3 / 2;
+		this.frameSize = outWidth * outHeight * 3 / 2;
+
+		int[] luma = computeSteps(width, height);
+		lumaRowStep = luma[1];
+		lumaColStep = luma[2];
+		lumaStart = luma[0] + cropY * lumaRowStep + cropX * lumaColStep;
+		int[] chroma = computeSteps(width / 2, height / 2);
+		chromaRowStep = chroma[1];
+		chromaColStep = chroma[2];
+		chromaStart = chroma[0] + cropY / 2 * chromaRowStep + cropX / 2 * chromaColStep;
+	}
+
+	/**
+	 * 旋转后取一个居中对齐的区域
+	 * @param outWidth 输出宽，超过旋转后图像宽时取旋转后的宽
+	 * @param outHeight 输出高，超过旋转后图像高时取旋转后的高
+	 * @param topAligned 为true时纵向从顶部开始取，和录制界面上显示的取景区域一致
+	 */
+	public static YuvRotator createCentered(int width, int height, int degrees, boolean mirror,
+			int outWidth, int outHeight, boolean topAligned) {
+		boolean swap = degrees == 90 || degrees == 270;
+		int rw = swap ? height : width;
+		int rh = swap ? width : height;
+		int cw = Math.min(outWidth, rw) & ~1;
+		int ch = Math.min(outHeight, rh) & ~1;
+		int cx = ((rw - cw) / 2) & ~1;
+		int cy = topAligned ? 0 : ((rh - ch) / 2) & ~1;
+		return new YuvRotator(width, height, degrees, mirror, cx, cy, cw, ch, 2);
+	}
+
+	/**
+	 * 同样的旋转、镜像、裁剪，输出格式和缓冲区独立，给其他线程使用
+	 * @param format 新对象的输出格式
+	 */
+	public YuvRotator copy(int format) {
+		YuvRotator copy = new YuvRotator(width, height, degrees, mirror, cropX, cropY, outWidth, outHeight, maxPoolSize);
+		copy.setOutputFormat(format);
+		return copy;
+	}
+
+	/**
+	 * 计算输出(r, c)对应原图下标的线性关系：index = start + r * rowStep + c * colStep
+	 * @param w 平面的宽（色度平面以VU对计）
+	 * @param h 平面的高
+	 */
+	private int[] computeSteps(int w, int h) {
+		//镜像针对的是旋转后的整幅图像，而不是裁剪区域
+		int ow = (degrees == 90 || degrees == 270) ? h : w;
+		int start = sourceIndex(0, 0, w, h, ow);
+		int rowStep = sourceIndex(1, 0, w, h, ow) - start;
+		int colStep = sourceIndex(0, 1, w, h, ow) - start;
+		return new int[] {start, rowStep, colStep};
+	}
+
+	/**
+	 * 输出图像第r行第c列的像素在原图中的下标
+	 */
+	private int sourceIndex(int r, int c, int w, int h, int ow) {
+		if (mirror)
+			c = ow - 1 - c;
+		int x, y;
+		switch (degrees) {
+		case 90:
+			y = h - 1 - c;
+			x = r;
+			break;
+		case 180:
+			y = h - 1 - r;
+			x = w - 1 - c;
+			break;
+		case 270:
+			y = c;
+			x = w - 1 - r;
+			break;
+		default:
+			y = r;
+			x = c;
+			break;
+		}
+		return y * w + x;
+	}
+
+	/**
+	 * 设置输出的像素格式，默认为NV21
+	 * @param format {@link #FORMAT_NV21}、{@link #FORMAT_NV12}或{@link #FORMAT_YUV420P}
+	 */
+	public void setOutputFormat(int format) {
+		if (format != FORMAT_NV21 && format != FORMAT_NV12 && format != FORMAT_YUV420P)
+			throw new IllegalArgumentException("Unsupported output format " + format);
+		this.outputFormat = format;
+	}
+
+	public int getOutputFormat() {
+		return outputFormat;
+	}
+
+	/**
+	 * 旋转一帧图像
+	 * @param src 摄像头返回的NV21数据
+	 * @param dst 输出缓冲区，长度至少为{@link #getFrameSize()}
+	 */
+	public void rotate(byte[] src, byte[] dst) {
+		if (src.length < srcFrameSize || dst.length < frameSize)
+			throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " frame");
+
+		//旋转Y
+		int k = 0;
+		int rowStart = lumaStart;
+		for (int r = 0; r < outHeight; r++) {
+			int p = rowStart;
+			for (int c = 0; c < outWidth; c++) {
+				dst[k++] = src[p];
+				p += lumaColStep;
+			}
+			rowStart += lumaRowStep;
+		}
+
+		//旋转VU，VU成对移动；NV21保持原顺序，NV12交换顺序，YUV420P拆成U、V两个平面
+		int uvOutWidth = outWidth / 2, uvOutHeight = outHeight / 2;
+		int chromaColBytes = chromaColStep * 2;
+		int first = outputFormat == FORMAT_NV21 ? 0 : 1;
+		int second = 1 - first;
+		rowStart = width * height + chromaStart * 2;
+		if (outputFormat == FORMAT_YUV420P) {
+			int u = k, v = k + uvOutWidth * uvOutHeight;
+			for (int r = 0; r < uvOutHeight; r++) {
+				int p = rowStart;
+				for (int c = 0; c < uvOutWidth; c++) {
+					dst[u++] = src[p + 1];
+					dst[v++] = src[p];
+					p += chromaColBytes;
+				}
+				rowStart += chromaRowStep * 2;
+			}
+			return;
+		}
+		for (int r = 0; r < uvOutHeight; r++) {
+			int p = rowStart;
+			for (int c = 0; c < uvOutWidth; c++) {
+				dst[k++] = src[p + first];
+				dst[k++] = src[p + second];
+				p += chromaColBytes;
+			}
+			rowStart += chromaRowStep * 2;
+		}
+	}
+
+	/**
+	 * 旋转一帧图像，直接写入编码器的缓冲区（例如IplImage.getByteBuffer()），
+	 * 从dst当前的position开始写，写完后position后移{@link #getFrameSize()}
+	 * @param src 摄像头返回的NV21数据
+	 * @param dst 输出缓冲区，一般为direct buffer
+	 */
+	public void rotate(byte[] src, ByteBuffer dst) {
+		if (src.length < srcFrameSize || dst.remaining() < frameSize)
+			throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " frame");
+		//direct buffer逐字节put很慢，先写到行缓冲中再整行put
+		if (rowBuffer == null)
+			rowBuffer = new byte[outWidth];
+		byte[] row = rowBuffer;
+
+		int rowStart = lumaStart;
+		for (int r = 0; r < outHeight; r++) {
+			int p = rowStart;
+			for (int c = 0; c < outWidth; c++) {
+				row[c] = src[p];
+				p += lumaColStep;
+			}
+			dst.put(row, 0, outWidth);
+			rowStart += lumaRowStep;
+		}
+
+		int uvOutWidth = outWidth / 2, uvOutHeight = outHeight / 2;
+		int chromaColBytes = chromaColStep * 2;
+		rowStart = width * height + chromaStart * 2;
+		if (outputFormat == FORMAT_YUV420P) {
+			//U、V两个平面一次遍历同时写，分别定位到各自平面的行
+			if (rowBuffer2 == null)
+				rowBuffer2 = new byte[uvOutWidth];
+			byte[] vRow = rowBuffer2;
+			int uBase = dst.position(), vBase = uBase + uvOutWidth * uvOutHeight;
+			for (int r = 0; r < uvOutHeight; r++) {
+				int p = rowStart;
+				for (int c = 0; c < uvOutWidth; c++) {
+					row[c] = src[p + 1];
+					vRow[c] = src[p];
+					p += chromaColBytes;
+				}
+				dst.position(uBase + r * uvOutWidth);
+				dst.put(row, 0, uvOutWidth);
+				dst.position(vBase + r * uvOutWidth);
+				dst.put(vRow, 0, uvOutWidth);
+				rowStart += chromaRowStep * 2;
+			}
+			return;
+		}
+		int first = outputFormat == FORMAT_NV21 ? 0 : 1;
+		int second = 1 - first;
+		for (int r = 0; r < uvOutHeight; r++) {
+			int p = rowStart;
+			for (int c = 0; c < outWidth; c += 2) {
+				row[c] = src[p + first];
+				row[c + 1] = src[p + second];
+				p += chromaColBytes;
+			}
+			dst.put(row, 0, outWidth);
+			rowStart += chromaRowStep * 2;
+		}
+	}
+
+	/**
+	 * 每隔step行、step列取一个输出图像的亮度，不做完整的旋转，用于比较两帧画面是否有变化
+	 * 使用和rotate相同的坐标映射，采样点就是旋转裁剪后输出图像中的(r*step, c*step)
+	 * @param src 摄像头返回的NV21数据
+	 * @param step 采样间隔
+	 * @param dst 采样结果，长度至少为{@link #getLumaSampleCount(int)}
+	 * @return 采样的个数
+	 */
+	public int sampleLuma(byte[] src, int step, byte[] dst) {
+		if (src.length < srcFrameSize || dst.length < getLumaSampleCount(step))
+			throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " frame");
+		int k = 0;
+		int rowStart = lumaStart;
+		int rowStep = lumaRowStep * step, colStep = lumaColStep * step;
+		for (int r = 0; r < outHeight; r += step) {
+			int p = rowStart;
+			for (int c = 0; c < outWidth; c += step) {
+				dst[k++] = src[p];
+				p += colStep;
+			}
+			rowStart += rowStep;
+		}
+		return k;
+	}
+
+	/**
+	 * 按step采样时的采样个数
+	 */
+	public int getLumaSampleCount(int step) {
+		return ((outWidth + step - 1) / step) * ((outHeight + step - 1) / step);
+	}
+
+	/**
+	 * 从缓冲池中取一个输出缓冲区，池为空时才会分配
+	 */
+	public byte[] obtainBuffer() {
+		synchronized (bufferPool) {
+			if (!bufferPool.isEmpty())
+				return bufferPool.removeFirst();
+		}
+		return new byte[frameSize];
+	}
+
+	/**
+	 * 用完的缓冲区放回缓冲池
+	 * @param buffer
+	 */
+	public void recycleBuffer(byte[] buffer) {
+		if (buffer == null || buffer.length != frameSize)
+			return;
+		synchronized (bufferPool) {
+			if (bufferPool.size() < maxPoolSize)
+				bufferPool.addLast(buffer);
+		}
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	public int getOutWidth() {
+		return outWidth;
+	}
+
+	public int getOutHeight() {
+		return outHeight;
+	}
+
+	public int getCropX() {
+		return cropX;
+	}
+
+	public int getCropY() {
+		return cropY;
+	}
+
+	public int getDegrees() {
+		return degrees;
+	}
+
+	public boolean isMirror() {
+		return mirror;
+	}
+}
@@ -0,0 +1,107 @@
+package com.qd.recorder.benchmark;
+
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avutil.*;
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.qd.recorder.CONSTANTS;
+import com.qd.recorder.NewFFmpegFrameRecorder;
+import com.qd.recorder.RecorderParameters;
+import com.qd.recorder.Util;
+
+/**
+ * 比较不同线程方式和线程数下视频编码的速度，需要在设备上运行（JavaCV 0.7的libavcodec只有ARM的so），
+ * PC上的对比见VideoEncodeThreadsBenchmark
+ * 按SLICE和FRAME两种方式，线程数从1到CPU核数，各编码同样的NV21帧到临时文件，
+ * 输出每秒编码的帧数和编码器的输出延迟，用来选择{@link RecorderParameters#setVideoThreadMode}的默认值
+ * @author QD
+ *
+ */
+public class EncoderThreadBenchmark {
+
+	/**
+	 * 480x480，mpeg4
+	 * @param frames 每种组合编码多少帧
+	 * @return 每种组合一行的结果
+	 */
+	public static String run(int frames) throws Exception {
+		return run(480, 480, AV_CODEC_ID_MPEG4, frames);
+	}
+
+	/**
+	 * @param videoCodec 例如AV_CODEC_ID_MPEG4
+	 */
+	public static String run(int width, int height, int videoCodec, int frames) throws Exception {
+		NewFFmpegFrameRecorder.ThreadMode[] modes = {
+				NewFFmpegFrameRecorder.ThreadMode.SLICE, NewFFmpegFrameRecorder.ThreadMode.FRAME };
+		int cores = Runtime.getRuntime().availableProcessors();
+		IplImage image = IplImage.create(width, height, IPL_DEPTH_8U, 2);
+		fill(image.getByteBuffer());
+		File output = File.createTempFile("threads", ".mp4");
+		StringBuilder result = new StringBuilder();
+		result.append(width).append("x").append(height).append(" codec=").append(videoCodec)
+				.append(" cores=").append(cores);
+		try {
+			for (int i = 0; i < modes.length; i++) {
+				for (int count = 1; count <= cores; count++) {
+					result.append("\n").append(measure(output, image, videoCodec, modes[i], count, frames));
+				}
+			}
+		} finally {
+			output.delete();
+			image.release();
+		}
+		return result.toString();
+	}
+
+	private static String measure(File output, IplImage image, int videoCodec,
+			NewFFmpegFrameRecorder.ThreadMode mode, int count, int frames) throws Exception {
+		RecorderParameters parameters = Util.getRecorderParameter(CONSTANTS.RESOLUTION_MEDIUM_VALUE);
+		NewFFmpegFrameRecorder recorder = new NewFFmpegFrameRecorder(output.getAbsolutePath(),
+				image.width(), image.height(), 0);
+		recorder.setFormat("mp4");
+		recorder.setFrameRate(parameters.getVideoFrameRate());
+		recorder.setVideoCodec(videoCodec);
+		recorder.setPixelFormat(AV_PIX_FMT_YUV420P);
+		recorder.setVideoQuality(parameters.getVideoQuality());
+		recorder.setVideoBitrate(parameters.getVideoBitrate());
+		recorder.setVideoThreading(mode, count);
+		try {
+			recorder.start();
+			//stop之后会被清零，先取出来
+			int delay = recorder.getVideoDelayFrames();
+			long frameTime = 1000000L / parameters.getVideoFrameRate();
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				recorder.setTimestamp(i * frameTime);
+				recorder.record(image, AV_PIX_FMT_NV21);
+			}
+			//编码器中缓存的帧在stop时输出，也算在编码时间里
+			recorder.stop();
+			long nanos = System.nanoTime() - start;
+			return mode + " threads=" + count + " " + format(frames * 1000000000.0 / Math.max(1L, nanos))
+					+ "fps delay=" + delay;
+		} finally {
+			recorder.release();
+		}
+	}
+
+	//亮度和色度都有变化，避免编码器把整帧当成平坦区域
+	private static void fill(ByteBuffer buffer) {
+		for (int i = 0; buffer.hasRemaining(); i++)
+			buffer.put((byte) (i * 31 + (i >> 9)));
+		buffer.clear();
+	}
+
+	private static String format(double fps) {
+		return String.valueOf(Math.round(fps * 10) / 10.0);
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println(run(args.length > 0 ? Integer.parseInt(args[0]) : 300));
+	}
+}
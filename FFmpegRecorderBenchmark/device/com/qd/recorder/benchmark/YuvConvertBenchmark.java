@@ -0,0 +1,108 @@
+package com.qd.recorder.benchmark;
+
+import static com.googlecode.javacv.cpp.avcodec.*;
+import static com.googlecode.javacv.cpp.avutil.*;
+import static com.googlecode.javacv.cpp.swscale.*;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacpp.DoublePointer;
+import com.googlecode.javacpp.PointerPointer;
+import com.qd.recorder.YuvRotator;
+
+/**
+ * 比较编码前两种图像转换方式的速度，需要在设备上运行（JavaCV 0.7的swscale只有ARM的so），
+ * PC上的对比见SwscaleBenchmark
+ * 之前：旋转成NV21，再由swscale转换成编码器的YUV420P
+ * 之后：旋转的同时直接拆成YUV420P的三个平面，不经过swscale
+ * @author QD
+ *
+ */
+public class YuvConvertBenchmark {
+
+	/**
+	 * 分别测试480x480和640x480的输出
+	 * @param frames 每种方式转换多少帧
+	 * @return 每秒帧数的对比结果
+	 */
+	public static String run(int frames) {
+		return run(480, 480, frames) + "\n" + run(640, 480, frames);
+	}
+
+	/**
+	 * @param outWidth 旋转后的宽
+	 * @param outHeight 旋转后的高
+	 */
+	public static String run(int outWidth, int outHeight, int frames) {
+		//摄像头横着输出，后置摄像头顺时针旋转90度
+		int srcWidth = outHeight, srcHeight = outWidth;
+		byte[] src = new byte[srcWidth * srcHeight * 3 / 2];
+		for (int i = 0; i < src.length; i++)
+			src[i] = (byte) (i * 31);
+
+		double before = measureSwscale(src, srcWidth, srcHeight, frames);
+		double after = measureFused(src, srcWidth, srcHeight, frames);
+		return outWidth + "x" + outHeight + " 旋转+swscale " + format(before) + "fps, 旋转直接输出YUV420P "
+				+ format(after) + "fps";
+	}
+
+	private static double measureSwscale(byte[] src, int srcWidth, int srcHeight, int frames) {
+		YuvRotator rotator = new YuvRotator(srcWidth, srcHeight, 90, false);
+		int w = rotator.getOutWidth(), h = rotator.getOutHeight();
+		BytePointer nv21 = new BytePointer(rotator.getFrameSize());
+		ByteBuffer nv21Buffer = nv21.asByteBuffer();
+		BytePointer yuv420p = new BytePointer(avpicture_get_size(AV_PIX_FMT_YUV420P, w, h));
+		AVPicture srcPicture = new AVPicture();
+		AVPicture dstPicture = new AVPicture();
+		avpicture_fill(srcPicture, nv21, AV_PIX_FMT_NV21, w, h);
+		avpicture_fill(dstPicture, yuv420p, AV_PIX_FMT_YUV420P, w, h);
+		//和NewFFmpegFrameRecorder一样使用sws_getCachedContext
+		SwsContext context = sws_getCachedContext(null, w, h, AV_PIX_FMT_NV21, w, h, AV_PIX_FMT_YUV420P,
+				SWS_BILINEAR, null, null, (DoublePointer) null);
+		PointerPointer srcData = new PointerPointer(srcPicture);
+		PointerPointer dstData = new PointerPointer(dstPicture);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				nv21Buffer.clear();
+				rotator.rotate(src, nv21Buffer);
+				sws_scale(context, srcData, srcPicture.linesize(), 0, h, dstData, dstPicture.linesize());
+			}
+			return fps(frames, System.nanoTime() - start);
+		} finally {
+			sws_freeContext(context);
+			nv21.deallocate();
+			yuv420p.deallocate();
+		}
+	}
+
+	private static double measureFused(byte[] src, int srcWidth, int srcHeight, int frames) {
+		YuvRotator rotator = new YuvRotator(srcWidth, srcHeight, 90, false);
+		rotator.setOutputFormat(YuvRotator.FORMAT_YUV420P);
+		BytePointer yuv420p = new BytePointer(rotator.getFrameSize());
+		ByteBuffer buffer = yuv420p.asByteBuffer();
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				buffer.clear();
+				rotator.rotate(src, buffer);
+			}
+			return fps(frames, System.nanoTime() - start);
+		} finally {
+			yuv420p.deallocate();
+		}
+	}
+
+	private static double fps(int frames, long nanos) {
+		return frames * 1000000000.0 / Math.max(1L, nanos);
+	}
+
+	private static String format(double fps) {
+		return String.valueOf(Math.round(fps * 10) / 10.0);
+	}
+
+	public static void main(String[] args) {
+		System.out.println(run(args.length > 0 ? Integer.parseInt(args[0]) : 300));
+	}
+}
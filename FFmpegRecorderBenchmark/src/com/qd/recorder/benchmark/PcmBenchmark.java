@@ -0,0 +1,91 @@
+package com.qd.recorder.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qd.recorder.MediaClock;
+import com.qd.recorder.PcmRingBuffer;
+
+/**
+ * 录音线程和音频编码线程之间的环形缓冲区，以及音视频时钟
+ * 一段录音的大小和AudioRecord的最小缓冲区相近
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmBenchmark {
+
+	private static final int CHUNK = 2048;
+
+	private final short[] samples = new short[CHUNK];
+	private final short[] out = new short[CHUNK];
+	private PcmRingBuffer ring, sourceRing;
+	private MediaClock clock;
+	private long now;
+
+	//AudioRecord.read(ByteBuffer, int)，数据已经在缓冲区中
+	private final PcmRingBuffer.PcmSource source = new PcmRingBuffer.PcmSource() {
+		@Override
+		public int read(ByteBuffer buffer, int sizeInBytes) {
+			return sizeInBytes;
+		}
+	};
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < CHUNK; i++)
+			samples[i] = (short) (Math.sin(i / 8.0) * 8000);
+		ring = new PcmRingBuffer(44100);
+		sourceRing = new PcmRingBuffer(44100);
+		clock = new MediaClock(44100, 30);
+		now = 0L;
+	}
+
+	/**
+	 * 按short[]拷贝写入、读出
+	 */
+	@Benchmark
+	public int ringWriteRead() {
+		ring.write(samples, 0, CHUNK);
+		return ring.read(out, 0, CHUNK);
+	}
+
+	/**
+	 * 录音直接写入环形缓冲区的槽，编码线程原地读取
+	 */
+	@Benchmark
+	public int ringSourcePeek() {
+		sourceRing.write(source, CHUNK);
+		ShortBuffer region = sourceRing.peek(CHUNK);
+		int n = region.remaining();
+		sourceRing.commitRead(n);
+		return n;
+	}
+
+	/**
+	 * 30fps时每帧对应的一段录音和一帧视频
+	 */
+	@Benchmark
+	public long mediaClock() {
+		now += 33333333L;
+		clock.onAudioSamples(1470, now);
+		return clock.stampVideoFrame(now + 1000000L);
+	}
+}
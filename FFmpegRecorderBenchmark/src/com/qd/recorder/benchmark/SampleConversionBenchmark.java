@@ -0,0 +1,184 @@
+package com.qd.recorder.benchmark;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_CH_LAYOUT_MONO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_UP;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_S16;
+import static org.bytedeco.ffmpeg.global.avutil.av_rescale_rnd;
+import static org.bytedeco.ffmpeg.global.swresample.swr_alloc_set_opts;
+import static org.bytedeco.ffmpeg.global.swresample.swr_convert;
+import static org.bytedeco.ffmpeg.global.swresample.swr_free;
+import static org.bytedeco.ffmpeg.global.swresample.swr_get_delay;
+import static org.bytedeco.ffmpeg.global.swresample.swr_init;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.swresample.SwrContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qd.recorder.AudioSampleFifo;
+
+/**
+ * NewFFmpegFrameRecorder.record(int, Buffer...)中录音到编码器输入帧的转换（不含编码）：
+ * 单声道S16转换成AAC编码器的FLTP，每1024个采样交给编码器一次
+ * <ul>
+ * <li>legacy：原来的做法，short[]先拷贝到native内存，再按编码帧剩余的空间分多次swr_convert，
+ * 最后还要多调用一次确认没有输出</li>
+ * <li>fifo：现在的做法，录音的direct buffer直接交给swr_convert一次转换全部采样，
+ * 结果写入AudioSampleFifo，再按1024个采样整帧取出</li>
+ * </ul>
+ * 使用PC上的FFmpeg（org.bytedeco），和手机上的JavaCV 0.7调用的是同样的swresample函数
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleConversionBenchmark {
+
+	private static final int SAMPLE_RATE = 44100;
+	//AAC编码器每一帧的采样数
+	private static final int FRAME_SIZE = 1024;
+	//FLTP每个采样4字节
+	private static final int OUTPUT_DEPTH = 4;
+
+	/**
+	 * 每次录音读到的采样数：2048和AudioRecord的最小缓冲区相近，4410（100ms）不是编码帧的整数倍
+	 */
+	@Param({"2048", "4410"})
+	public int chunk;
+
+	private SwrContext legacyContext, fifoContext;
+	private final PointerPointer inPointer = new PointerPointer(1);
+	private final PointerPointer outPointer = new PointerPointer(1);
+
+	//legacy：录音的short[]、拷贝的目标（按字节移动位置）、编码帧
+	private short[] audioData;
+	private ShortPointer legacyIn;
+	private BytePointer legacyInBytes;
+	private BytePointer legacyOut;
+
+	//fifo：环形缓冲区中的一个槽、转换结果、队列、编码帧
+	private BytePointer slot;
+	private BytePointer converted;
+	private ByteBuffer[] convertedBuffers;
+	private AudioSampleFifo fifo;
+	private ByteBuffer[] frameBuffers;
+
+	@Setup
+	public void setUp() throws Exception {
+		legacyContext = createContext();
+		fifoContext = createContext();
+
+		audioData = new short[chunk];
+		for (int i = 0; i < chunk; i++)
+			audioData[i] = (short) (Math.sin(i / 8.0) * 8000);
+		legacyIn = new ShortPointer(chunk);
+		legacyInBytes = new BytePointer(legacyIn).capacity(chunk * 2);
+		legacyOut = new BytePointer(FRAME_SIZE * OUTPUT_DEPTH);
+
+		ByteBuffer slotBuffer = ByteBuffer.allocateDirect(chunk * 2).order(ByteOrder.nativeOrder());
+		slotBuffer.asShortBuffer().put(audioData);
+		slot = new BytePointer(slotBuffer);
+		//和NewFFmpegFrameRecorder.ensureConvertCapacity一样按两倍分配
+		converted = new BytePointer(chunk * 2 * OUTPUT_DEPTH);
+		convertedBuffers = new ByteBuffer[] {converted.asByteBuffer().order(ByteOrder.nativeOrder())};
+		fifo = new AudioSampleFifo(1, OUTPUT_DEPTH, FRAME_SIZE * 4);
+		frameBuffers = new ByteBuffer[] {
+				ByteBuffer.allocateDirect(FRAME_SIZE * OUTPUT_DEPTH).order(ByteOrder.nativeOrder())};
+	}
+
+	private static SwrContext createContext() throws Exception {
+		SwrContext context = swr_alloc_set_opts(null, AV_CH_LAYOUT_MONO, AV_SAMPLE_FMT_FLTP, SAMPLE_RATE,
+				AV_CH_LAYOUT_MONO, AV_SAMPLE_FMT_S16, SAMPLE_RATE, 0, null);
+		int ret;
+		if (context == null)
+			throw new Exception("swr_alloc_set_opts() error: Cannot allocate the conversion context.");
+		else if ((ret = swr_init(context)) < 0)
+			throw new Exception("swr_init() error " + ret + ": Cannot initialize the conversion context.");
+		return context;
+	}
+
+	@TearDown
+	public void tearDown() {
+		swr_free(legacyContext);
+		swr_free(fifoContext);
+		legacyIn.deallocate();
+		legacyOut.deallocate();
+		converted.deallocate();
+	}
+
+	/**
+	 * @return 交给编码器的帧数
+	 */
+	@Benchmark
+	public int legacy() throws Exception {
+		legacyIn.position(0).put(audioData, 0, chunk);
+		legacyInBytes.position(0).limit(chunk * 2);
+		int frames = 0;
+		while (true) {
+			int inputCount = (int) (legacyInBytes.limit() - legacyInBytes.position()) / 2;
+			int outputCount = (int) (legacyOut.limit() - legacyOut.position()) / OUTPUT_DEPTH;
+			inputCount = Math.min(inputCount, 2 * outputCount);
+			inPointer.put(0, legacyInBytes);
+			outPointer.put(0, legacyOut);
+			int ret = swr_convert(legacyContext, outPointer, outputCount, inPointer, inputCount);
+			if (ret < 0)
+				throw new Exception("swr_convert() error " + ret);
+			else if (ret == 0)
+				break;
+			legacyInBytes.position(legacyInBytes.position() + inputCount * 2);
+			legacyOut.position(legacyOut.position() + ret * OUTPUT_DEPTH);
+			if (legacyOut.position() >= legacyOut.limit()) {
+				//原来在这里编码
+				legacyOut.position(0);
+				frames++;
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return 交给编码器的帧数
+	 */
+	@Benchmark
+	public int fifo() throws Exception {
+		slot.position(0).limit(chunk * 2);
+		inPointer.put(0, slot);
+		int outputCount = (int) av_rescale_rnd(swr_get_delay(fifoContext, SAMPLE_RATE) + chunk,
+				SAMPLE_RATE, SAMPLE_RATE, AV_ROUND_UP);
+		outPointer.put(0, converted);
+		int ret = swr_convert(fifoContext, outPointer, outputCount, inPointer, chunk);
+		if (ret < 0)
+			throw new Exception("swr_convert() error " + ret);
+		convertedBuffers[0].clear();
+		fifo.write(convertedBuffers, ret);
+		int frames = 0;
+		while (fifo.size() >= FRAME_SIZE) {
+			//这里编码
+			frameBuffers[0].clear();
+			fifo.read(frameBuffers, FRAME_SIZE);
+			frames++;
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,187 @@
+package com.qd.recorder.benchmark;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_QSCALE;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_frame;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.ffmpeg.global.avutil.FF_QP2LAMBDA;
+import static org.bytedeco.ffmpeg.global.avutil.av_channel_layout_default;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_get_buffer;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qd.recorder.SilenceDetector;
+
+/**
+ * 静音检测对AAC编码时间和输出大小的影响，每次操作编码一段20秒的合成录音
+ * 录音为说话1.5秒、停顿1.5秒交替：说话时是带音节起伏的谐波加噪声（约-20dBFS），
+ * 停顿时只有约-62dBFS的环境噪声。编码参数和录制时相同：单声道44100Hz，128kbps，
+ * 按中等画质的videoQuality固定量化，每次送2个编码帧（audioChunkFrames）经过SilenceDetector
+ * 每次编码的结果相同，输出的字节数和清零的段数在测量结束时打印一次
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SilenceEncodeBenchmark {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int FRAME_SIZE = 1024;
+	private static final int CHUNK = FRAME_SIZE * 2;
+	private static final int SECONDS = 20;
+	//Util.getRecorderParameter(CONSTANTS.RESOLUTION_MEDIUM_VALUE)的码率和质量
+	private static final int BITRATE = 128000;
+	private static final int QUALITY = 5;
+
+	@Param({"false", "true"})
+	public boolean silenceDetection;
+
+	private short[] clip, work;
+	private AVCodec codec;
+	private AVCodecContext context;
+	private AVFrame frame;
+	private AVPacket packet;
+	//最后一次编码输出的字节数和清零的段数
+	private long encodedBytes, silentChunks;
+
+	@Setup
+	public void setUp() throws Exception {
+		clip = createClip(new Random(25));
+		work = new short[clip.length];
+		codec = avcodec_find_encoder(AV_CODEC_ID_AAC);
+		if (codec == null)
+			throw new Exception("avcodec_find_encoder() error: Audio codec not found.");
+		packet = av_packet_alloc();
+	}
+
+	private static short[] createClip(Random random) {
+		short[] samples = new short[SAMPLE_RATE * SECONDS];
+		int segment = SAMPLE_RATE * 3 / 2;
+		double phase = 0;
+		for (int i = 0; i < samples.length; i++) {
+			double t = (double) i / SAMPLE_RATE;
+			double value;
+			if ((i / segment) % 2 == 0) {
+				//音高在120~220Hz之间缓慢变化，每秒4个音节
+				double pitch = 170 + 50 * Math.sin(2 * Math.PI * 0.7 * t);
+				phase += 2 * Math.PI * pitch / SAMPLE_RATE;
+				double envelope = 0.55 + 0.45 * Math.sin(2 * Math.PI * 4 * t);
+				double voice = Math.sin(phase) + 0.5 * Math.sin(2 * phase) + 0.3 * Math.sin(3 * phase);
+				value = 4000 * envelope * voice + 300 * random.nextGaussian();
+			} else {
+				value = 26 * random.nextGaussian();
+			}
+			samples[i] = (short) Math.max(-32768, Math.min(32767, Math.round(value)));
+		}
+		return samples;
+	}
+
+	@Setup(Level.Invocation)
+	public void open() throws Exception {
+		context = avcodec_alloc_context3(codec);
+		context.sample_fmt(AV_SAMPLE_FMT_FLTP);
+		context.sample_rate(SAMPLE_RATE);
+		av_channel_layout_default(context.ch_layout(), 1);
+		context.bit_rate(BITRATE);
+		context.time_base().num(1).den(SAMPLE_RATE);
+		context.flags(context.flags() | AV_CODEC_FLAG_QSCALE);
+		context.global_quality(FF_QP2LAMBDA * QUALITY);
+		int ret;
+		if ((ret = avcodec_open2(context, codec, (AVDictionary) null)) < 0)
+			throw new Exception("avcodec_open2() error " + ret + ": Could not open audio codec.");
+		frame = av_frame_alloc();
+		frame.format(AV_SAMPLE_FMT_FLTP);
+		frame.nb_samples(FRAME_SIZE);
+		av_channel_layout_default(frame.ch_layout(), 1);
+		if ((ret = av_frame_get_buffer(frame, 0)) < 0)
+			throw new Exception("av_frame_get_buffer() error " + ret);
+		System.arraycopy(clip, 0, work, 0, clip.length);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		av_frame_free(frame);
+		avcodec_free_context(context);
+	}
+
+	@TearDown
+	public void tearDown() {
+		av_packet_free(packet);
+		System.out.println("silenceDetection=" + silenceDetection + " encodedBytes=" + encodedBytes
+				+ " silentChunks=" + silentChunks);
+	}
+
+	@Benchmark
+	public long encode() throws Exception {
+		SilenceDetector detector = new SilenceDetector(silenceDetection, SAMPLE_RATE, -50f, -36f, 400);
+		long bytes = 0;
+		long pts = 0;
+		for (int offset = 0; offset + CHUNK <= work.length; offset += CHUNK) {
+			ShortBuffer chunk = ShortBuffer.wrap(work, offset, CHUNK);
+			detector.process(chunk);
+			for (int f = 0; f < CHUNK; f += FRAME_SIZE) {
+				FloatBuffer data = frame.data(0).capacity(FRAME_SIZE * 4).asByteBuffer()
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+				for (int i = 0; i < FRAME_SIZE; i++)
+					data.put(i, work[offset + f + i] / 32768f);
+				frame.pts(pts);
+				pts += FRAME_SIZE;
+				bytes += send(frame);
+			}
+		}
+		bytes += send(null);
+		encodedBytes = bytes;
+		silentChunks = detector.getSilentCount();
+		return bytes;
+	}
+
+	//送入一帧（为null时清空编码器），返回取出的包的字节数
+	private long send(AVFrame input) throws Exception {
+		int ret;
+		if ((ret = avcodec_send_frame(context, input)) < 0)
+			throw new Exception("avcodec_send_frame() error " + ret + ": Could not encode audio packet.");
+		long bytes = 0;
+		while (avcodec_receive_packet(context, packet) == 0) {
+			bytes += packet.size();
+			av_packet_unref(packet);
+		}
+		return bytes;
+	}
+}
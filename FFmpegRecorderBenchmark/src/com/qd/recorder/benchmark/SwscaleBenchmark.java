@@ -0,0 +1,121 @@
+package com.qd.recorder.benchmark;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_NV21;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_fill_arrays;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_get_buffer_size;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_BILINEAR;
+import static org.bytedeco.ffmpeg.global.swscale.sws_freeContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_getCachedContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_scale;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qd.recorder.YuvRotator;
+
+/**
+ * 编码前的图像转换，每次操作为一帧：
+ * <ul>
+ * <li>swscale：之前的做法，旋转成NV21，再由swscale转换成编码器的YUV420P（sws_getCachedContext）</li>
+ * <li>fused：之后的做法，旋转的同时直接拆成YUV420P的三个平面，不经过swscale</li>
+ * </ul>
+ * 使用PC上的FFmpeg（org.bytedeco），手机上的对比在device目录的YuvConvertBenchmark中
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwscaleBenchmark {
+
+	/**
+	 * 旋转后输出的宽x高
+	 */
+	@Param({"480x480", "640x480"})
+	public String size;
+
+	private byte[] src;
+	private YuvRotator nv21Rotator, yuv420pRotator;
+	private BytePointer nv21, yuv420p, fused;
+	private ByteBuffer nv21Buffer, fusedBuffer;
+	private SwsContext context;
+	private PointerPointer srcData, dstData;
+	private IntPointer srcLinesize, dstLinesize;
+	private int outHeight;
+
+	@Setup
+	public void setUp() throws Exception {
+		int x = size.indexOf('x');
+		int outWidth = Integer.parseInt(size.substring(0, x));
+		outHeight = Integer.parseInt(size.substring(x + 1));
+		//摄像头横着输出，后置摄像头顺时针旋转90度
+		int srcWidth = outHeight, srcHeight = outWidth;
+		src = new byte[srcWidth * srcHeight * 3 / 2];
+		new Random(srcWidth * 31 + srcHeight).nextBytes(src);
+
+		nv21Rotator = new YuvRotator(srcWidth, srcHeight, 90, false);
+		nv21 = new BytePointer(nv21Rotator.getFrameSize());
+		nv21Buffer = nv21.asByteBuffer();
+		yuv420p = new BytePointer(av_image_get_buffer_size(AV_PIX_FMT_YUV420P, outWidth, outHeight, 1));
+		srcData = new PointerPointer(4);
+		dstData = new PointerPointer(4);
+		srcLinesize = new IntPointer(4);
+		dstLinesize = new IntPointer(4);
+		av_image_fill_arrays(srcData, srcLinesize, nv21, AV_PIX_FMT_NV21, outWidth, outHeight, 1);
+		av_image_fill_arrays(dstData, dstLinesize, yuv420p, AV_PIX_FMT_YUV420P, outWidth, outHeight, 1);
+		context = sws_getCachedContext(null, outWidth, outHeight, AV_PIX_FMT_NV21, outWidth, outHeight,
+				AV_PIX_FMT_YUV420P, SWS_BILINEAR, null, null, (DoublePointer) null);
+		if (context == null)
+			throw new Exception("sws_getCachedContext() error: Cannot initialize the conversion context.");
+
+		yuv420pRotator = new YuvRotator(srcWidth, srcHeight, 90, false);
+		yuv420pRotator.setOutputFormat(YuvRotator.FORMAT_YUV420P);
+		fused = new BytePointer(yuv420pRotator.getFrameSize());
+		fusedBuffer = fused.asByteBuffer();
+	}
+
+	@TearDown
+	public void tearDown() {
+		sws_freeContext(context);
+		nv21.deallocate();
+		yuv420p.deallocate();
+		fused.deallocate();
+	}
+
+	@Benchmark
+	public int swscale() {
+		nv21Buffer.clear();
+		nv21Rotator.rotate(src, nv21Buffer);
+		return sws_scale(context, srcData, srcLinesize, 0, outHeight, dstData, dstLinesize);
+	}
+
+	@Benchmark
+	public byte fused() {
+		fusedBuffer.clear();
+		yuv420pRotator.rotate(src, fusedBuffer);
+		return fusedBuffer.get(0);
+	}
+}
@@ -0,0 +1,135 @@
+package com.qd.recorder.benchmark;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_QSCALE;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_MPEG4;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_frame;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.ffmpeg.global.avutil.FF_QP2LAMBDA;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_get_buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 不同线程方式和线程数下480x480 mpeg4的编码速度，每次操作编码一帧（Score即每秒帧数）
+ * 编码参数和NewFFmpegFrameRecorder相同：gop为12，按中等画质（Util.getRecorderParameter）的videoQuality固定量化
+ * mpeg4编码器只支持slice多线程，frame方式实际上是单线程，用来对照
+ * 使用PC上的FFmpeg（org.bytedeco），手机上的对比在device目录的EncoderThreadBenchmark中
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VideoEncodeThreadsBenchmark {
+
+	private static final int SIZE = 480;
+	//RecorderParameters.videoFrameRate，那个类引用了JavaCV 0.7，这里不能加载
+	private static final int FRAME_RATE = 24;
+	//Util.getRecorderParameter(CONSTANTS.RESOLUTION_MEDIUM_VALUE)的videoQuality
+	private static final int VIDEO_QUALITY = 5;
+
+	@Param({"slice", "frame"})
+	public String mode;
+
+	@Param({"1", "2", "4"})
+	public int threads;
+
+	private AVCodecContext context;
+	private AVFrame frame;
+	private AVPacket packet;
+	private long pts;
+
+	@Setup
+	public void setUp() throws Exception {
+		AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_MPEG4);
+		if (codec == null)
+			throw new Exception("avcodec_find_encoder() error: Video codec not found.");
+		context = avcodec_alloc_context3(codec);
+		context.width(SIZE);
+		context.height(SIZE);
+		context.pix_fmt(AV_PIX_FMT_YUV420P);
+		context.time_base(new AVRational().num(1).den(FRAME_RATE));
+		context.gop_size(12);
+		context.flags(context.flags() | AV_CODEC_FLAG_QSCALE);
+		context.global_quality(FF_QP2LAMBDA * VIDEO_QUALITY);
+		context.thread_count(threads);
+		context.thread_type("frame".equals(mode) ? AVCodecContext.FF_THREAD_FRAME : AVCodecContext.FF_THREAD_SLICE);
+		int ret;
+		if ((ret = avcodec_open2(context, codec, (AVDictionary) null)) < 0)
+			throw new Exception("avcodec_open2() error " + ret + ": Could not open video codec.");
+
+		frame = av_frame_alloc();
+		frame.format(AV_PIX_FMT_YUV420P);
+		frame.width(SIZE);
+		frame.height(SIZE);
+		if ((ret = av_frame_get_buffer(frame, 32)) < 0)
+			throw new Exception("av_frame_get_buffer() error " + ret);
+		//亮度和色度都有变化，避免编码器把整帧当成平坦区域
+		for (int plane = 0; plane < 3; plane++) {
+			BytePointer data = frame.data(plane);
+			int size = frame.linesize(plane) * (plane == 0 ? SIZE : SIZE / 2);
+			for (int i = 0; i < size; i++)
+				data.put(i, (byte) (i * 31 + (i >> 9) + plane * 64));
+		}
+		frame.quality(context.global_quality());
+		packet = av_packet_alloc();
+		pts = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		av_packet_free(packet);
+		av_frame_free(frame);
+		avcodec_free_context(context);
+	}
+
+	/**
+	 * @return 这一帧取出的包的字节数，帧级多线程时前几帧没有输出
+	 */
+	@Benchmark
+	public int encode() throws Exception {
+		frame.pts(pts++);
+		int ret;
+		if ((ret = avcodec_send_frame(context, frame)) < 0)
+			throw new Exception("avcodec_send_frame() error " + ret + ": Could not encode video packet.");
+		int bytes = 0;
+		while (avcodec_receive_packet(context, packet) == 0) {
+			bytes += packet.size();
+			av_packet_unref(packet);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,128 @@
+package com.qd.recorder.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qd.recorder.CONSTANTS;
+import com.qd.recorder.LegacyYuvTransforms;
+import com.qd.recorder.YuvRotator;
+
+/**
+ * 预览帧的旋转、镜像、裁剪：原来录制界面中的方法（LegacyYuvTransforms）和YuvRotator
+ * 每一组legacy和rotator做的是同样的事，输出的字节相同（见FFmpegRecorderTest中的YuvRotatorTest）：
+ * <ul>
+ * <li>back：后置摄像头，旋转90度</li>
+ * <li>front：前置摄像头，原来的rotateYUV420Degree270（旋转270度加水平镜像）</li>
+ * <li>crop：后置摄像头旋转90度后从中间裁剪成正方形</li>
+ * </ul>
+ * legacy每次分配新的byte[]，rotator写入复用的direct buffer，和录制时写入IplImage一样
+ * @author QD
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvTransformBenchmark {
+
+	/**
+	 * 预览分辨率：CONSTANTS中低、中、高三档的上限（4:3），default为默认使用的640x480
+	 */
+	@Param({"low", "medium", "default", "high"})
+	public String resolution;
+
+	private int width, height;
+	private byte[] frame;
+	private YuvRotator back, front, crop, cropYuv420p;
+	private ByteBuffer output;
+
+	@Setup
+	public void setUp() {
+		if ("low".equals(resolution))
+			previewSize(CONSTANTS.RESOLUTION_LOW);
+		else if ("medium".equals(resolution))
+			previewSize(CONSTANTS.RESOLUTION_MEDIUM);
+		else if ("high".equals(resolution))
+			previewSize(CONSTANTS.RESOLUTION_HIGH);
+		else {
+			width = 640;
+			height = 480;
+		}
+		frame = new byte[width * height * 3 / 2];
+		new Random(width * 31 + height).nextBytes(frame);
+
+		back = new YuvRotator(width, height, 90, false);
+		front = new YuvRotator(width, height, 270, true);
+		//旋转后宽为height，裁剪成height x height，和LegacyYuvTransforms.cropYUV420相同
+		crop = YuvRotator.createCentered(width, height, 90, false, height, height, false);
+		cropYuv420p = YuvRotator.createCentered(width, height, 90, false, height, height, false);
+		cropYuv420p.setOutputFormat(YuvRotator.FORMAT_YUV420P);
+		output = ByteBuffer.allocateDirect(back.getFrameSize());
+	}
+
+	//和摄像头一样取4:3，宽高都为偶数
+	private void previewSize(int w) {
+		width = w & ~1;
+		height = (width * 3 / 4) & ~1;
+	}
+
+	private byte rotate(YuvRotator rotator) {
+		output.clear();
+		rotator.rotate(frame, output);
+		return output.get(0);
+	}
+
+	@Benchmark
+	public byte[] legacyBack() {
+		return LegacyYuvTransforms.rotateYUV420Degree90(frame, width, height);
+	}
+
+	@Benchmark
+	public byte rotatorBack() {
+		return rotate(back);
+	}
+
+	@Benchmark
+	public byte[] legacyFront() {
+		return LegacyYuvTransforms.rotateYUV420Degree270(frame, width, height);
+	}
+
+	@Benchmark
+	public byte rotatorFront() {
+		return rotate(front);
+	}
+
+	@Benchmark
+	public byte[] legacyCrop() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree90(frame, width, height);
+		return LegacyYuvTransforms.cropYUV420(rotated, height, width, height);
+	}
+
+	@Benchmark
+	public byte rotatorCrop() {
+		return rotate(crop);
+	}
+
+	/**
+	 * 直接输出编码器使用的YUV420P，录制时省掉之后NV21到YUV420P的转换
+	 */
+	@Benchmark
+	public byte rotatorCropYuv420p() {
+		return rotate(cropYuv420p);
+	}
+}
@@ -0,0 +1,326 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 用合成的NV21帧检查容器的写入、两种读取方式、差分帧的编码和还原，以及损坏和截断的文件
+ * @author QD
+ *
+ */
+public class FrameContainerTest {
+
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+	//任意的像素格式编号，容器只负责保存
+	private static final int FORMAT = 26;
+	private static final long FRAME_US = 1000000L / 30;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(23);
+
+	private byte[] randomFrame(int size) {
+		byte[] frame = new byte[size];
+		random.nextBytes(frame);
+		return frame;
+	}
+
+	/**
+	 * 写入frames，每一帧的时间戳是序号乘以FRAME_US
+	 */
+	private byte[] write(List<byte[]> frames, boolean delta, int keyInterval, FrameContainer.Writer[] writerOut)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameContainer.Writer writer = new FrameContainer.Writer(Channels.newChannel(out), delta, keyInterval);
+		for (int i = 0; i < frames.size(); i++) {
+			byte[] frame = frames.get(i);
+			writer.write(frame, 0, frame.length, WIDTH, HEIGHT, FORMAT, i * FRAME_US);
+		}
+		writer.close();
+		if (writerOut != null)
+			writerOut[0] = writer;
+		return out.toByteArray();
+	}
+
+	private byte[] write(List<byte[]> frames, boolean delta, int keyInterval) throws IOException {
+		return write(frames, delta, keyInterval, null);
+	}
+
+	/**
+	 * 用Reader读出并还原所有帧
+	 * @param types 每一帧是否是差分帧
+	 */
+	private static List<byte[]> readAll(FrameContainer.Reader reader, List<Boolean> types) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		ByteBuffer decoded = ByteBuffer.allocate(FRAME_SIZE * 2);
+		FrameContainer.Frame frame;
+		while ((frame = reader.next()) != null) {
+			assertTrue(frame.verify());
+			assertEquals(frames.size() * FRAME_US, frame.getTimeStamp());
+			frame.decodeInto(decoded);
+			frames.add(Arrays.copyOf(decoded.array(), frame.getFrameSize()));
+			if (types != null)
+				types.add(frame.isDelta());
+		}
+		return frames;
+	}
+
+	private static List<byte[]> readAll(FrameContainer.StreamReader reader) throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		ByteBuffer decoded = ByteBuffer.allocate(FRAME_SIZE * 2);
+		FrameContainer.Frame frame;
+		while ((frame = reader.next()) != null) {
+			assertTrue(frame.verify());
+			assertEquals(frames.size() * FRAME_US, frame.getTimeStamp());
+			frame.decodeInto(decoded);
+			frames.add(Arrays.copyOf(decoded.array(), frame.getFrameSize()));
+		}
+		return frames;
+	}
+
+	private static FrameContainer.StreamReader streamReader(byte[] data) throws IOException {
+		return new FrameContainer.StreamReader(Channels.newChannel(new ByteArrayInputStream(data)));
+	}
+
+	private static void assertFrames(List<byte[]> expected, List<byte[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+	}
+
+	/**
+	 * 每一帧在上一帧的基础上改动几个字节，模拟静止的画面
+	 */
+	private List<byte[]> slowlyChanging(int count) {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		byte[] frame = randomFrame(FRAME_SIZE);
+		for (int i = 0; i < count; i++) {
+			frame = frame.clone();
+			for (int j = 0; j < 3; j++)
+				frame[random.nextInt(FRAME_SIZE)]++;
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	@Test
+	public void fullFramesRoundTripThroughMappedFile() throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++)
+			frames.add(randomFrame(FRAME_SIZE));
+		File file = folder.newFile("frames.qdfc");
+		FileOutputStream out = new FileOutputStream(file);
+		FrameContainer.Writer writer = new FrameContainer.Writer(out.getChannel(), false, FrameContainer.DEFAULT_KEY_INTERVAL);
+		for (int i = 0; i < frames.size(); i++)
+			writer.write(frames.get(i), 0, FRAME_SIZE, WIDTH, HEIGHT, FORMAT, i * FRAME_US);
+		writer.close();
+		assertEquals(FrameContainer.FILE_HEADER_SIZE + 5L * (FrameContainer.RECORD_HEADER_SIZE + FRAME_SIZE), file.length());
+		assertEquals(writer.getStoredBytes(), file.length());
+
+		FrameContainer.Reader reader = new FrameContainer.Reader(FrameContainer.map(file));
+		assertFalse(reader.hasDelta());
+		List<Boolean> types = new ArrayList<Boolean>();
+		assertFrames(frames, readAll(reader, types));
+		assertFalse(types.contains(Boolean.TRUE));
+
+		//完整帧的数据就是图像本身
+		FrameContainer.Frame first = new FrameContainer.Reader(FrameContainer.map(file)).next();
+		assertEquals(WIDTH, first.getWidth());
+		assertEquals(HEIGHT, first.getHeight());
+		assertEquals(FORMAT, first.getPixelFormat());
+		assertEquals(FRAME_SIZE, first.getPayload().remaining());
+		byte[] payload = new byte[FRAME_SIZE];
+		first.getPayload().duplicate().get(payload);
+		assertArrayEquals(frames.get(0), payload);
+	}
+
+	@Test
+	public void fullFramesRoundTripThroughStream() throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++)
+			frames.add(randomFrame(FRAME_SIZE));
+		FrameContainer.StreamReader reader = streamReader(write(frames, false, 1));
+		assertFalse(reader.hasDelta());
+		assertFrames(frames, readAll(reader));
+	}
+
+	/**
+	 * 开启差分时每隔keyInterval帧一个完整帧，其余是差分帧，两种读取方式都还原出原来的图像
+	 */
+	@Test
+	public void deltaFramesBetweenKeys() throws IOException {
+		List<byte[]> frames = slowlyChanging(10);
+		FrameContainer.Writer[] writer = new FrameContainer.Writer[1];
+		byte[] data = write(frames, true, 4, writer);
+		assertEquals(10, writer[0].getFrameCount());
+		assertEquals(7, writer[0].getDeltaCount());
+		assertTrue(writer[0].getStoredBytes() < writer[0].getRawBytes() / 2);
+
+		FrameContainer.Reader reader = new FrameContainer.Reader(ByteBuffer.wrap(data));
+		assertTrue(reader.hasDelta());
+		assertEquals(4, reader.getKeyInterval());
+		List<Boolean> types = new ArrayList<Boolean>();
+		assertFrames(frames, readAll(reader, types));
+		for (int i = 0; i < types.size(); i++)
+			assertEquals("frame " + i, i % 4 != 0, types.get(i));
+
+		assertFrames(frames, readAll(streamReader(data)));
+	}
+
+	@Test
+	public void identicalFrameIsEmptyDelta() throws IOException {
+		byte[] frame = randomFrame(FRAME_SIZE);
+		byte[] data = write(Arrays.asList(frame, frame.clone()), true, 30);
+		FrameContainer.Reader reader = new FrameContainer.Reader(ByteBuffer.wrap(data));
+		ByteBuffer decoded = ByteBuffer.allocate(FRAME_SIZE);
+		reader.next().decodeInto(decoded);
+		FrameContainer.Frame second = reader.next();
+		assertTrue(second.isDelta());
+		assertEquals(0, second.getPayload().remaining());
+		assertTrue(second.verify());
+		second.decodeInto(decoded);
+		assertArrayEquals(frame, decoded.array());
+	}
+
+	/**
+	 * 两处改动之间相同的字节少于MIN_GAP时合并成一段，不少于时分成两段
+	 */
+	@Test
+	public void runsCloserThanMinGapAreMerged() throws IOException {
+		byte[] base = randomFrame(FRAME_SIZE);
+		byte[] merged = base.clone();
+		merged[100]++;
+		merged[100 + FrameContainer.MIN_GAP]++;
+		byte[] split = base.clone();
+		split[100]++;
+		split[101 + FrameContainer.MIN_GAP]++;
+		byte[] data = write(Arrays.asList(base, merged, base, split), true, 30);
+
+		FrameContainer.Reader reader = new FrameContainer.Reader(ByteBuffer.wrap(data));
+		reader.next();
+		//一段：跳过100，长度MIN_GAP+1
+		ByteBuffer delta = reader.next().getPayload();
+		assertEquals(8 + FrameContainer.MIN_GAP + 1, delta.remaining());
+		assertEquals(100, delta.getInt(delta.position()));
+		assertEquals(FrameContainer.MIN_GAP + 1, delta.getInt(delta.position() + 4));
+		reader.next();
+		//两段，各1个字节，第二段跳过MIN_GAP个相同的字节
+		delta = reader.next().getPayload();
+		assertEquals(2 * (8 + 1), delta.remaining());
+		assertEquals(100, delta.getInt(delta.position()));
+		assertEquals(1, delta.getInt(delta.position() + 4));
+		assertEquals(FrameContainer.MIN_GAP, delta.getInt(delta.position() + 9));
+		assertEquals(1, delta.getInt(delta.position() + 13));
+
+		assertFrames(Arrays.asList(base, merged, base, split),
+				readAll(new FrameContainer.Reader(ByteBuffer.wrap(data)), null));
+	}
+
+	/**
+	 * 差分不比完整帧小时保存完整帧
+	 */
+	@Test
+	public void largeChangeFallsBackToFullFrame() throws IOException {
+		List<byte[]> frames = Arrays.asList(randomFrame(FRAME_SIZE), randomFrame(FRAME_SIZE));
+		FrameContainer.Writer[] writer = new FrameContainer.Writer[1];
+		byte[] data = write(frames, true, 30, writer);
+		assertEquals(0, writer[0].getDeltaCount());
+		List<Boolean> types = new ArrayList<Boolean>();
+		assertFrames(frames, readAll(new FrameContainer.Reader(ByteBuffer.wrap(data)), types));
+		assertEquals(Arrays.asList(false, false), types);
+	}
+
+	/**
+	 * 大小、宽高、像素格式改变时保存完整帧
+	 */
+	@Test
+	public void geometryChangeForcesKeyFrame() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameContainer.Writer writer = new FrameContainer.Writer(Channels.newChannel(out), true, 30);
+		byte[] frame = randomFrame(FRAME_SIZE);
+		writer.write(frame, 0, FRAME_SIZE, WIDTH, HEIGHT, FORMAT, 0);
+		writer.write(frame, 0, FRAME_SIZE, WIDTH, HEIGHT, FORMAT, FRAME_US);
+		//宽高互换，大小不变
+		writer.write(frame, 0, FRAME_SIZE, HEIGHT, WIDTH, FORMAT, 2 * FRAME_US);
+		writer.write(frame, 0, FRAME_SIZE, HEIGHT, WIDTH, FORMAT + 1, 3 * FRAME_US);
+		writer.write(frame, 0, FRAME_SIZE / 2, HEIGHT, WIDTH, FORMAT + 1, 4 * FRAME_US);
+		writer.write(frame, 0, FRAME_SIZE / 2, HEIGHT, WIDTH, FORMAT + 1, 5 * FRAME_US);
+		writer.close();
+		assertEquals(2, writer.getDeltaCount());
+
+		FrameContainer.Reader reader = new FrameContainer.Reader(ByteBuffer.wrap(out.toByteArray()));
+		boolean[] expected = { false, true, false, false, false, true };
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("frame " + i, expected[i], reader.next().isDelta());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void flippedByteFailsVerify() throws IOException {
+		byte[] data = write(Arrays.asList(randomFrame(FRAME_SIZE)), false, 1);
+		data[FrameContainer.FILE_HEADER_SIZE + FrameContainer.RECORD_HEADER_SIZE + 10] ^= 1;
+		assertFalse(new FrameContainer.Reader(ByteBuffer.wrap(data)).next().verify());
+		assertFalse(streamReader(data).next().verify());
+	}
+
+	/**
+	 * 进程被杀时最后一帧可能只写了一部分
+	 */
+	@Test
+	public void truncatedLastRecordIsIgnored() throws IOException {
+		List<byte[]> frames = slowlyChanging(3);
+		byte[] data = write(frames, false, 1);
+		byte[] truncated = Arrays.copyOf(data, data.length - 1);
+		assertFrames(frames.subList(0, 2), readAll(new FrameContainer.Reader(ByteBuffer.wrap(truncated)), null));
+		assertFrames(frames.subList(0, 2), readAll(streamReader(truncated)));
+
+		//帧头也不完整
+		truncated = Arrays.copyOf(data, data.length - FRAME_SIZE - 1);
+		assertFrames(frames.subList(0, 2), readAll(new FrameContainer.Reader(ByteBuffer.wrap(truncated)), null));
+		assertFrames(frames.subList(0, 2), readAll(streamReader(truncated)));
+	}
+
+	@Test(expected = EOFException.class)
+	public void truncatedFileHeaderThrows() throws IOException {
+		byte[] data = write(new ArrayList<byte[]>(), false, 1);
+		new FrameContainer.Reader(ByteBuffer.wrap(Arrays.copyOf(data, FrameContainer.FILE_HEADER_SIZE - 1)));
+	}
+
+	@Test(expected = IOException.class)
+	public void corruptDeltaThrows() throws IOException {
+		byte[] base = randomFrame(FRAME_SIZE);
+		byte[] changed = base.clone();
+		changed[0]++;
+		byte[] data = write(Arrays.asList(base, changed), true, 30);
+		//差分帧第一段的跳过字节数改成超出帧的大小
+		int delta = FrameContainer.FILE_HEADER_SIZE + 2 * FrameContainer.RECORD_HEADER_SIZE + FRAME_SIZE;
+		data[delta] = 0x7F;
+		FrameContainer.Reader reader = new FrameContainer.Reader(ByteBuffer.wrap(data));
+		ByteBuffer decoded = ByteBuffer.allocate(FRAME_SIZE);
+		reader.next().decodeInto(decoded);
+		reader.next().decodeInto(decoded);
+	}
+}
@@ -0,0 +1,189 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 用合成的30fps摄像头时间戳检查跳帧是否均匀，以及切换目标帧率前后帧序号不重复
+ * @author QD
+ *
+ */
+public class FrameDropPolicyTest {
+
+	//编码器帧率和RecorderParameters.videoFrameRate相同
+	private static final int ENCODER_RATE = 24;
+	private static final long CAMERA_INTERVAL_US = 1000000L / 30;
+	private static final int CAPACITY = 4;
+
+	private final FrameDropPolicy policy = new FrameDropPolicy(ENCODER_RATE);
+	//送去编码的帧的时间戳
+	private final List<Long> accepted = new ArrayList<Long>();
+	//每次切换目标帧率时accepted的长度
+	private final List<Integer> changes = new ArrayList<Integer>();
+	private final Random random = new Random(30);
+	private long frameIndex;
+
+	/**
+	 * 30fps的摄像头送出count帧，编码队列不满
+	 * @param jitterUs 每帧时间戳随机偏移的最大值
+	 */
+	private void offer(int count, long jitterUs) {
+		for (int i = 0; i < count; i++) {
+			long timeStamp = frameIndex++ * CAMERA_INTERVAL_US;
+			if (jitterUs > 0)
+				timeStamp += random.nextInt((int) (jitterUs * 2 + 1)) - jitterUs;
+			if (policy.accept(timeStamp, 0, CAPACITY))
+				accepted.add(timeStamp);
+		}
+	}
+
+	private void setTarget(int frameRate) {
+		policy.setTargetFrameRate(frameRate);
+		changes.add(accepted.size());
+	}
+
+	private static long toFrameNumber(long timeStampUs) {
+		return (timeStampUs * ENCODER_RATE + 500000L) / 1000000L;
+	}
+
+	//送去编码的帧时间戳严格递增，换算成编码器的帧序号也不重复
+	private void assertStrictlyIncreasing() {
+		for (int i = 1; i < accepted.size(); i++) {
+			assertTrue("timestamp " + i, accepted.get(i) > accepted.get(i - 1));
+			assertTrue("frame number " + i, toFrameNumber(accepted.get(i)) > toFrameNumber(accepted.get(i - 1)));
+		}
+	}
+
+	/**
+	 * 从from到to（不含）的相邻两帧间隔都在目标帧率的一个格子加减一个摄像头间隔（和抖动）之内
+	 */
+	private void assertEvenSpacing(int from, int to, int targetRate, long toleranceUs) {
+		long slot = 1000000L / targetRate;
+		for (int i = from + 1; i < to; i++) {
+			long interval = accepted.get(i) - accepted.get(i - 1);
+			assertTrue("interval " + interval + " at " + i + " for " + targetRate + "fps",
+					Math.abs(interval - slot) <= CAMERA_INTERVAL_US + toleranceUs);
+		}
+	}
+
+	@Test
+	public void cameraFasterThanEncoderFillsEveryFrameNumber() {
+		offer(300, 0);
+		assertStrictlyIncreasing();
+		//10秒的30fps变成24fps，每个帧序号都有一帧
+		assertEquals(240, accepted.size());
+		for (int i = 0; i < accepted.size(); i++)
+			assertEquals(i, toFrameNumber(accepted.get(i)));
+		assertEquals(60, policy.getRateDroppedCount());
+		assertEquals(0, policy.getDuplicateDroppedCount());
+	}
+
+	@Test
+	public void lowerTargetSkipsEvenly() {
+		setTarget(15);
+		offer(300, 0);
+		assertStrictlyIncreasing();
+		//每两帧编码一帧
+		assertEquals(150, accepted.size());
+		for (int i = 1; i < accepted.size(); i++)
+			assertEquals(2 * CAMERA_INTERVAL_US, accepted.get(i) - accepted.get(i - 1), 1);
+		assertEquals(15.0, policy.getAchievedFrameRate(), 0.1);
+	}
+
+	@Test
+	public void jitteredStreamStaysEven() {
+		setTarget(10);
+		offer(600, 5000);
+		assertStrictlyIncreasing();
+		assertEvenSpacing(0, accepted.size(), 10, 10000);
+		assertEquals(10.0, policy.getAchievedFrameRate(), 0.2);
+	}
+
+	/**
+	 * 录制中按编码负载反复调整目标帧率：每一段内间隔均匀，整个过程中帧序号不重复
+	 */
+	@Test
+	public void targetChangesKeepFrameNumbersUnique() {
+		int[] targets = {24, 15, 10, 20, 12, 24, 8};
+		for (int i = 0; i < targets.length; i++) {
+			setTarget(targets[i]);
+			offer(90, 5000);
+		}
+		changes.add(accepted.size());
+		assertStrictlyIncreasing();
+		assertEquals(0, policy.getBacklogDroppedCount());
+		for (int i = 0; i < targets.length; i++) {
+			//切换后的第一帧从上一帧重新划分格子，只检查之后的间隔
+			assertEvenSpacing(changes.get(i), changes.get(i + 1), targets[i], 10000);
+			int frames = changes.get(i + 1) - changes.get(i);
+			//3秒的摄像头帧，每一段编码的帧数接近目标帧率的3倍
+			assertTrue(targets[i] + "fps: " + frames, Math.abs(frames - targets[i] * 3) <= 2);
+		}
+		assertEquals(policy.getOfferedCount(), policy.getAcceptedCount() + policy.getDroppedCount());
+	}
+
+	/**
+	 * 编码队列满时放弃这个格子，同一个格子中后面的帧不会补上，间隔不会挤在一起
+	 */
+	@Test
+	public void backlogDropsWholeSlot() {
+		setTarget(15);
+		long t = 0;
+		assertTrue(policy.accept(t, 0, CAPACITY));
+		assertFalse(policy.accept(t += CAMERA_INTERVAL_US, 0, CAPACITY));
+		//第二个格子的第一帧到来时队列已满
+		assertFalse(policy.accept(t += CAMERA_INTERVAL_US, CAPACITY, CAPACITY));
+		assertFalse(policy.accept(t += CAMERA_INTERVAL_US, 0, CAPACITY));
+		assertTrue(policy.accept(t += CAMERA_INTERVAL_US, 0, CAPACITY));
+		assertEquals(4 * CAMERA_INTERVAL_US, policy.getLastTimeStamp());
+		assertEquals(1, policy.getBacklogDroppedCount());
+		assertEquals(2, policy.getRateDroppedCount());
+	}
+
+	/**
+	 * 时间戳回退到上一帧的帧序号上时丢掉，编码器不会收到重复的pts
+	 */
+	@Test
+	public void repeatedFrameNumberIsDropped() {
+		assertTrue(policy.accept(100000, 0, CAPACITY));
+		setTarget(12);
+		assertFalse(policy.accept(99000, 0, CAPACITY));
+		assertEquals(100000, policy.getLastTimeStamp());
+	}
+
+	/**
+	 * 降低帧率后再回到编码器帧率：格子重新对齐帧序号，每个帧序号都有一帧
+	 */
+	@Test
+	public void returningToEncoderRateFillsEveryFrameNumber() {
+		setTarget(12);
+		offer(45, 0);
+		setTarget(ENCODER_RATE);
+		offer(90, 0);
+		List<Long> full = accepted.subList(changes.get(1), accepted.size());
+		assertEquals(72, full.size());
+		for (int i = 1; i < full.size(); i++)
+			assertEquals(toFrameNumber(full.get(i - 1)) + 1, toFrameNumber(full.get(i)));
+		assertEquals(0, policy.getDuplicateDroppedCount());
+	}
+
+	@Test
+	public void targetIsClampedToEncoderRate() {
+		policy.setTargetFrameRate(60);
+		assertEquals(ENCODER_RATE, policy.getTargetFrameRate());
+		policy.setTargetFrameRate(0);
+		assertEquals(1, policy.getTargetFrameRate());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidFrameRate() {
+		new FrameDropPolicy(0);
+	}
+}
@@ -0,0 +1,189 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * 用合成的PCM检查环形缓冲区的回绕、写满丢弃和零拷贝写入的槽
+ * @author QD
+ *
+ */
+public class PcmRingBufferTest {
+
+	/**
+	 * 合成的录音：每个采样的值是它的序号，按AudioRecord.read(ByteBuffer, int)的方式写入
+	 */
+	private static class SyntheticSource implements PcmRingBuffer.PcmSource {
+		short next;
+		//每次最多返回多少个采样，模拟AudioRecord读不满的情况
+		int limitSamples = Integer.MAX_VALUE;
+		ByteBuffer lastBuffer;
+
+		@Override
+		public int read(ByteBuffer buffer, int sizeInBytes) {
+			lastBuffer = buffer;
+			int samples = Math.min(sizeInBytes / 2, limitSamples);
+			ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+			for (int i = 0; i < samples; i++)
+				out.putShort(i * 2, next++);
+			return samples * 2;
+		}
+	}
+
+	private static short[] sequence(int from, int count) {
+		short[] samples = new short[count];
+		for (int i = 0; i < count; i++)
+			samples[i] = (short) (from + i);
+		return samples;
+	}
+
+	@Test
+	public void capacityRoundsUpToPowerOfTwo() {
+		assertEquals(16, new PcmRingBuffer(10).getCapacity());
+		assertEquals(16, new PcmRingBuffer(16).getCapacity());
+		assertEquals(65536, new PcmRingBuffer(44100).getCapacity());
+	}
+
+	@Test
+	public void readWrapsAroundEnd() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		short[] out = new short[16];
+		int value = 0;
+		//每次写11个读11个，写读的位置不断跨过缓冲区末尾
+		for (int i = 0; i < 20; i++) {
+			assertEquals(11, ring.write(sequence(value, 11), 0, 11));
+			assertEquals(11, ring.available());
+			assertEquals(11, ring.read(out, 0, 16));
+			assertArrayEquals(sequence(value, 11), Arrays.copyOf(out, 11));
+			value += 11;
+		}
+		assertEquals(220, ring.getWrittenSamples());
+		assertEquals(220, ring.getReadSamples());
+		assertEquals(0, ring.getOverrunCount());
+	}
+
+	@Test
+	public void peekStopsAtEndAndContinuesFromStart() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		ring.write(sequence(0, 12), 0, 12);
+		ring.read(new short[12], 0, 12);
+		ring.write(sequence(12, 10), 0, 10);
+
+		//第一段只到缓冲区末尾
+		ShortBuffer first = ring.peek(16);
+		assertEquals(4, first.remaining());
+		assertEquals(12, first.get(first.position()));
+		ring.commitRead(4);
+		ShortBuffer second = ring.peek(16);
+		assertSame(first, second);
+		assertEquals(6, second.remaining());
+		assertEquals(16, second.get(second.position()));
+		ring.commitRead(6);
+		assertNull(ring.peek(16));
+	}
+
+	@Test
+	public void fullBufferDropsWhatDoesNotFit() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		assertEquals(10, ring.write(sequence(0, 10), 0, 10));
+		assertEquals(6, ring.write(sequence(10, 10), 0, 10));
+		assertEquals(1, ring.getOverrunCount());
+		assertEquals(4, ring.getDroppedSamples());
+		assertEquals(0, ring.write(sequence(20, 3), 0, 3));
+		assertEquals(2, ring.getOverrunCount());
+		assertEquals(7, ring.getDroppedSamples());
+
+		//保留的是先写入的16个采样
+		short[] out = new short[16];
+		assertEquals(16, ring.read(out, 0, 16));
+		assertArrayEquals(sequence(0, 16), out);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void commitMoreThanAvailableFails() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		ring.write(sequence(0, 4), 0, 4);
+		ring.commitRead(5);
+	}
+
+	/**
+	 * 每次写入2的幂个采样时，数据源总是拿到同一个槽的视图，循环一圈后不再创建新对象
+	 */
+	@Test
+	public void alignedSourceWritesReuseSlots() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		SyntheticSource source = new SyntheticSource();
+		ByteBuffer[] slots = new ByteBuffer[4];
+		short expected = 0;
+		for (int lap = 0; lap < 3; lap++) {
+			for (int slot = 0; slot < 4; slot++) {
+				assertEquals(4, ring.write(source, 4));
+				if (lap == 0)
+					slots[slot] = source.lastBuffer;
+				else
+					assertSame(slots[slot], source.lastBuffer);
+				ShortBuffer samples = ring.peek(4);
+				assertEquals(4, samples.remaining());
+				for (int i = 0; i < 4; i++)
+					assertEquals(expected++, samples.get(samples.position() + i));
+				ring.commitRead(4);
+			}
+		}
+		assertEquals(48, ring.getWrittenSamples());
+	}
+
+	/**
+	 * 数据源读不满时，下一次只写到槽的边界，之后重新对齐
+	 */
+	@Test
+	public void shortSourceReadRealignsToSlot() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		SyntheticSource source = new SyntheticSource();
+		source.limitSamples = 3;
+		assertEquals(3, ring.write(source, 4));
+		source.limitSamples = Integer.MAX_VALUE;
+		assertEquals(1, ring.write(source, 4));
+		assertEquals(4, ring.write(source, 4));
+		short[] out = new short[8];
+		assertEquals(8, ring.read(out, 0, 8));
+		assertArrayEquals(sequence(0, 8), out);
+	}
+
+	/**
+	 * 缓冲区放不下时数据源的这一段仍然被读出来，然后整段丢弃
+	 */
+	@Test
+	public void fullBufferDiscardsSourceChunk() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		SyntheticSource source = new SyntheticSource();
+		for (int i = 0; i < 4; i++)
+			assertEquals(4, ring.write(source, 4));
+		assertEquals(0, ring.write(source, 4));
+		assertEquals(20, source.next);
+		assertEquals(1, ring.getOverrunCount());
+		assertEquals(4, ring.getDroppedSamples());
+		assertEquals(16, ring.available());
+	}
+
+	@Test
+	public void emptyReadsCountAsPolls() {
+		PcmRingBuffer ring = new PcmRingBuffer(16);
+		assertNull(ring.peek(4));
+		assertEquals(0, ring.read(new short[4], 0, 4));
+		assertEquals(2, ring.getEmptyPollCount());
+		ring.write(sequence(0, 2), 0, 2);
+		assertEquals(2, ring.read(new short[4], 0, 4));
+		assertEquals(2, ring.getEmptyPollCount());
+		assertTrue(ring.toString().contains("emptyPolls=2"));
+	}
+}
@@ -0,0 +1,145 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+/**
+ * 用假的数据源代替摄像头，检查缓冲区在池、数据源、使用者之间的状态变化
+ * @author QD
+ *
+ */
+public class PreviewBufferPoolTest {
+
+	/**
+	 * 按收到的顺序“填充”缓冲区，和摄像头一样
+	 */
+	private static class FakeFrameSource implements PreviewBufferPool.FrameSource {
+		final LinkedList<byte[]> queued = new LinkedList<byte[]>();
+		int addCount;
+
+		@Override
+		public void addCallbackBuffer(byte[] buffer) {
+			queued.addLast(buffer);
+			addCount++;
+		}
+
+		//摄像头回调出一帧，交给池标记为使用中
+		byte[] fill(PreviewBufferPool pool) {
+			byte[] buffer = queued.removeFirst();
+			assertTrue(pool.onBufferFilled(buffer));
+			return buffer;
+		}
+	}
+
+	private final FakeFrameSource source = new FakeFrameSource();
+	private final PreviewBufferPool pool = new PreviewBufferPool(source, 12, 3);
+
+	@Test
+	public void attachHandsEveryBufferToSource() {
+		pool.attach();
+		assertEquals(3, source.queued.size());
+		assertEquals(3, pool.getAvailableCount());
+		for (int i = 0; i < source.queued.size(); i++) {
+			assertEquals(12, source.queued.get(i).length);
+			for (int j = 0; j < i; j++)
+				assertFalse(source.queued.get(i) == source.queued.get(j));
+		}
+	}
+
+	@Test
+	public void releasedBufferGoesBackToSource() {
+		pool.attach();
+		byte[] frame = source.fill(pool);
+		assertEquals(2, pool.getAvailableCount());
+
+		assertTrue(pool.release(frame));
+		assertEquals(3, pool.getAvailableCount());
+		assertSame(frame, source.queued.getLast());
+		assertEquals(1, pool.getReturnedCount());
+		assertEquals(0, pool.getRejectedCount());
+	}
+
+	@Test
+	public void releasingTwiceIsRejected() {
+		pool.attach();
+		byte[] frame = source.fill(pool);
+		assertTrue(pool.release(frame));
+		assertFalse(pool.release(frame));
+		assertEquals(1, pool.getRejectedCount());
+		//没有重复交给数据源
+		assertEquals(4, source.addCount);
+	}
+
+	@Test
+	public void releasingBufferStillInSourceIsRejected() {
+		pool.attach();
+		assertFalse(pool.release(source.queued.getFirst()));
+		assertEquals(3, pool.getAvailableCount());
+		assertEquals(3, source.addCount);
+	}
+
+	@Test
+	public void foreignBuffersAreIgnored() {
+		pool.attach();
+		byte[] foreign = new byte[12];
+		assertFalse(pool.onBufferFilled(foreign));
+		assertFalse(pool.onBufferFilled(null));
+		assertFalse(pool.release(foreign));
+		assertFalse(pool.release(null));
+		assertEquals(3, source.addCount);
+	}
+
+	/**
+	 * 同一个摄像头重新开始预览：正在编码的缓冲区不会被重复交给摄像头，用完后照常归还
+	 */
+	@Test
+	public void reattachKeepsBuffersInUse() {
+		pool.attach();
+		byte[] frame = source.fill(pool);
+		source.queued.clear();
+
+		pool.attach();
+		assertEquals(0, source.queued.size());
+		assertEquals(2, pool.getAvailableCount());
+
+		assertTrue(pool.release(frame));
+		assertEquals(3, pool.getAvailableCount());
+		assertSame(frame, source.queued.getLast());
+	}
+
+	/**
+	 * 切换摄像头后录制界面换一个新的池，编码队列中旧摄像头的帧还到新池时被忽略，不会交给新的摄像头
+	 */
+	@Test
+	public void buffersFromPreviousCameraAreNotReturnedToNewCamera() {
+		pool.attach();
+		byte[] oldFrame = source.fill(pool);
+
+		FakeFrameSource newSource = new FakeFrameSource();
+		PreviewBufferPool newPool = new PreviewBufferPool(newSource, 12, 3);
+		newPool.attach();
+		assertEquals(3, newSource.addCount);
+
+		assertFalse(newPool.release(oldFrame));
+		assertEquals(1, newPool.getRejectedCount());
+		assertEquals(3, newSource.addCount);
+		assertFalse(newSource.queued.contains(oldFrame));
+
+		//新池自己的缓冲区照常循环
+		byte[] newFrame = newSource.fill(newPool);
+		assertTrue(newPool.release(newFrame));
+		assertSame(newFrame, newSource.queued.getLast());
+		assertEquals(3, newPool.getAvailableCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyPool() {
+		new PreviewBufferPool(source, 12, 0);
+	}
+}
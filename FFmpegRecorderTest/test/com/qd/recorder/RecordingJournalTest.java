@@ -0,0 +1,207 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 检查恢复日志的写入和读取、进程被杀时不完整的日志，以及恢复H264时长度前缀换回起始码
+ * @author QD
+ *
+ */
+public class RecordingJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<RecordingJournal.Stream> streams() {
+		RecordingJournal.Stream video = new RecordingJournal.Stream();
+		video.index = 0;
+		video.codecType = 0;
+		video.codecId = 28;
+		video.codecTimeBaseNum = 1;
+		video.codecTimeBaseDen = 24;
+		video.timeBaseNum = 1;
+		video.timeBaseDen = 12288;
+		video.width = 480;
+		video.height = 480;
+		video.pixelFormat = 0;
+		video.bitrate = 1000000;
+		video.extradata = new byte[] { 0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68 };
+		RecordingJournal.Stream audio = new RecordingJournal.Stream();
+		audio.index = 1;
+		audio.codecType = 1;
+		audio.codecId = 86018;
+		audio.codecTimeBaseNum = 1;
+		audio.codecTimeBaseDen = 44100;
+		audio.timeBaseNum = 1;
+		audio.timeBaseDen = 44100;
+		audio.sampleRate = 44100;
+		audio.channels = 1;
+		audio.sampleFormat = 8;
+		audio.frameSize = 1024;
+		audio.bitrate = 96000;
+		return Arrays.asList(video, audio);
+	}
+
+	//第i个包：视频和音频交替，每隔12个视频包一个关键帧
+	private static void append(RecordingJournal journal, int i) throws IOException {
+		journal.append(i % 2, i % 24 == 0, 48 + i * 1000L, 500 + i, i * 512L, i * 512L - 1024, 512);
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		File file = folder.newFile("video.mp4" + RecordingJournal.EXTENSION);
+		RecordingJournal journal = new RecordingJournal(file.getPath());
+		journal.open(streams());
+		int count = RecordingJournal.BATCH_RECORDS + 6;
+		for (int i = 0; i < count; i++)
+			append(journal, i);
+		//攒满一批写一次，加上文件头
+		assertEquals(2, journal.getWriteCount());
+		journal.flush();
+		assertEquals(3, journal.getWriteCount());
+		assertEquals(count, journal.getPacketCount());
+
+		//录制中被杀：日志没有关闭也能读出
+		RecordingJournal.Contents contents = RecordingJournal.read(file);
+		assertEquals(0, contents.truncatedBytes);
+		assertEquals(2, contents.streams.size());
+		List<RecordingJournal.Stream> expected = streams();
+		for (int i = 0; i < expected.size(); i++) {
+			RecordingJournal.Stream e = expected.get(i), a = contents.streams.get(i);
+			assertEquals(e.index, a.index);
+			assertEquals(e.codecType, a.codecType);
+			assertEquals(e.codecId, a.codecId);
+			assertEquals(e.codecTimeBaseDen, a.codecTimeBaseDen);
+			assertEquals(e.timeBaseNum, a.timeBaseNum);
+			assertEquals(e.timeBaseDen, a.timeBaseDen);
+			assertEquals(e.width, a.width);
+			assertEquals(e.height, a.height);
+			assertEquals(e.sampleRate, a.sampleRate);
+			assertEquals(e.channels, a.channels);
+			assertEquals(e.sampleFormat, a.sampleFormat);
+			assertEquals(e.frameSize, a.frameSize);
+			assertEquals(e.bitrate, a.bitrate);
+		}
+		assertArrayEquals(expected.get(0).extradata, contents.streams.get(0).extradata);
+		assertNull(contents.streams.get(1).extradata);
+
+		assertEquals(count, contents.packetCount);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i % 2, contents.packetStreams[i]);
+			assertEquals(i % 24 == 0 ? RecordingJournal.FLAG_KEY : 0, contents.packetFlags[i]);
+			assertEquals(48 + i * 1000L, contents.packetOffsets[i]);
+			assertEquals(500 + i, contents.packetSizes[i]);
+			assertEquals(i * 512L, contents.packetPts[i]);
+			assertEquals(i * 512L - 1024, contents.packetDts[i]);
+			assertEquals(512, contents.packetDurations[i]);
+		}
+		assertEquals(48 + (count - 1) * 1000L + 500 + count - 1, contents.getDataEnd());
+
+		journal.delete();
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * 没有flush的记录不在文件中，写到一半的记录被忽略
+	 */
+	@Test
+	public void partialTrailingRecordIsIgnored() throws IOException {
+		File file = folder.newFile("video.mp4" + RecordingJournal.EXTENSION);
+		RecordingJournal journal = new RecordingJournal(file.getPath());
+		journal.open(streams());
+		for (int i = 0; i < 5; i++)
+			append(journal, i);
+		journal.flush();
+		append(journal, 5);
+		assertEquals(5, RecordingJournal.read(file).packetCount);
+
+		journal.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+		RecordingJournal.Contents contents = RecordingJournal.read(file);
+		assertEquals(5, contents.packetCount);
+		assertEquals(RecordingJournal.RECORD_SIZE - 10, contents.truncatedBytes);
+		assertEquals(4 * 512L, contents.packetPts[4]);
+	}
+
+	/**
+	 * 文件头在流参数中间或者extradata中间结束
+	 */
+	@Test
+	public void truncatedHeaderThrows() throws IOException {
+		File file = folder.newFile("video.mp4" + RecordingJournal.EXTENSION);
+		RecordingJournal journal = new RecordingJournal(file.getPath());
+		journal.open(streams());
+		journal.close();
+		//从长到短依次截断
+		int[] lengths = { 7 + 2 + 4 * 14 + 3, 7 + 20, 3 };
+		for (int i = 0; i < lengths.length; i++) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(lengths[i]);
+			raf.close();
+			try {
+				RecordingJournal.read(file);
+				fail("length " + lengths[i]);
+			} catch (EOFException e) {
+				//日志写到一半，不是格式错误
+			}
+		}
+	}
+
+	@Test(expected = RecordingJournal.CorruptJournalException.class)
+	public void wrongMagicThrows() throws IOException {
+		File file = folder.newFile("video.mp4" + RecordingJournal.EXTENSION);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[64]);
+		out.close();
+		RecordingJournal.read(file);
+	}
+
+	/**
+	 * 两个NAL，各带4字节长度前缀
+	 */
+	@Test
+	public void lengthPrefixedNalsBecomeStartCodes() {
+		byte[] data = { 0, 0, 0, 2, 0x65, 0x11, 0, 0, 0, 3, 0x41, 0x22, 0x33, 0x7F };
+		assertTrue(RecordingJournal.toAnnexB(data, 13));
+		assertArrayEquals(new byte[] { 0, 0, 0, 1, 0x65, 0x11, 0, 0, 0, 1, 0x41, 0x22, 0x33, 0x7F }, data);
+	}
+
+	/**
+	 * 已经是起始码，或者长度对不上时保持不变
+	 */
+	@Test
+	public void mismatchedDataIsUnchanged() {
+		List<byte[]> cases = new ArrayList<byte[]>();
+		cases.add(new byte[] { 0, 0, 0, 1, 0x65, 0x11, 0x22 });
+		cases.add(new byte[] { 0, 0, 0, 2, 0x65, 0x11, 0x22 });
+		cases.add(new byte[] { 0, 0, 0, 9, 0x65, 0x11, 0x22 });
+		cases.add(new byte[] { (byte) 0x80, 0, 0, 0, 0x65, 0x11, 0x22 });
+		cases.add(new byte[] { 0, 0, 0 });
+		for (int i = 0; i < cases.size(); i++) {
+			byte[] data = cases.get(i);
+			byte[] original = data.clone();
+			assertFalse("case " + i, RecordingJournal.toAnnexB(data, data.length));
+			assertArrayEquals("case " + i, original, data);
+		}
+	}
+}
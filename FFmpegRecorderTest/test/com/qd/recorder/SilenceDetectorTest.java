@@ -0,0 +1,129 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 用合成的PCM检查静音检测的保持时间、清零和前后的淡出淡入
+ * @author QD
+ *
+ */
+public class SilenceDetectorTest {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHUNK = 2048;
+	//保持时间100ms，约2.15段
+	private static final int HANGOVER_MS = 100;
+	//淡入10ms
+	private static final int FADE_IN = SAMPLE_RATE / 100;
+
+	private final Random random = new Random(50);
+
+	//约-62dBFS的环境噪声
+	private short[] quiet() {
+		short[] samples = new short[CHUNK];
+		for (int i = 0; i < CHUNK; i++)
+			samples[i] = (short) Math.round(26 * random.nextGaussian());
+		return samples;
+	}
+
+	//约-20dBFS的声音
+	private static short[] loud() {
+		short[] samples = new short[CHUNK];
+		for (int i = 0; i < CHUNK; i++)
+			samples[i] = (short) Math.round(4000 * Math.sin(i * 0.05) + 1000);
+		return samples;
+	}
+
+	private static SilenceDetector create(boolean enabled) {
+		return new SilenceDetector(enabled, SAMPLE_RATE, -50f, -36f, HANGOVER_MS);
+	}
+
+	//处理一段，position和limit不变，返回处理后的采样
+	private static short[] process(SilenceDetector detector, short[] input) {
+		short[] samples = input.clone();
+		ShortBuffer buffer = ShortBuffer.wrap(samples, 0, CHUNK);
+		detector.process(buffer);
+		assertEquals(0, buffer.position());
+		assertEquals(CHUNK, buffer.limit());
+		return samples;
+	}
+
+	@Test
+	public void loudChunksAreUntouched() {
+		SilenceDetector detector = create(true);
+		short[] loud = loud();
+		for (int i = 0; i < 5; i++)
+			assertArrayEquals(loud, process(detector, loud));
+		assertEquals(0, detector.getSilentCount());
+	}
+
+	@Test
+	public void quietChunksWithinHangoverAreUntouched() {
+		SilenceDetector detector = create(true);
+		process(detector, loud());
+		for (int i = 0; i < 3; i++) {
+			short[] quiet = quiet();
+			assertArrayEquals(quiet, process(detector, quiet));
+		}
+		assertFalse(detector.isSilent());
+	}
+
+	/**
+	 * 保持时间过后第一段淡出到0，后面的段清零，说话时从0淡入
+	 */
+	@Test
+	public void gateFadesOutAndIn() {
+		SilenceDetector detector = create(true);
+		process(detector, loud());
+		for (int i = 0; i < 3; i++)
+			process(detector, quiet());
+
+		short[] quiet = quiet();
+		short[] faded = process(detector, quiet);
+		assertTrue(detector.isSilent());
+		for (int i = 0; i < CHUNK; i++) {
+			int expected = quiet[i] * (CHUNK - 1 - i) / CHUNK;
+			assertEquals("sample " + i, expected, faded[i]);
+		}
+		assertEquals(0, faded[CHUNK - 1]);
+
+		assertArrayEquals(new short[CHUNK], process(detector, quiet()));
+		assertEquals(2, detector.getSilentCount());
+
+		short[] loud = loud();
+		short[] resumed = process(detector, loud);
+		assertFalse(detector.isSilent());
+		assertEquals(0, resumed[0]);
+		for (int i = 0; i < FADE_IN; i++)
+			assertEquals("sample " + i, loud[i] * i / FADE_IN, resumed[i]);
+		for (int i = FADE_IN; i < CHUNK; i++)
+			assertEquals("sample " + i, loud[i], resumed[i]);
+
+		//被清零的区间从淡出的那一段开始，到说话为止
+		assertEquals(1, detector.getSilentRegions().size());
+		long[] region = detector.getSilentRegions().get(0);
+		assertEquals(4L * CHUNK * 1000000 / SAMPLE_RATE, region[0]);
+		assertEquals(6L * CHUNK * 1000000 / SAMPLE_RATE, region[1]);
+	}
+
+	@Test
+	public void disabledDetectorOnlyMeasures() {
+		SilenceDetector detector = create(false);
+		process(detector, loud());
+		for (int i = 0; i < 10; i++) {
+			short[] quiet = quiet();
+			assertArrayEquals(quiet, process(detector, quiet));
+		}
+		assertEquals(11, detector.getCheckedCount());
+		assertEquals(0, detector.getSilentCount());
+		assertTrue(detector.getLastLevel() < -50f);
+	}
+}
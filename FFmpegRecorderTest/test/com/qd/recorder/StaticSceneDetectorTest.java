@@ -0,0 +1,123 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 用合成的640x480摄像头画面检查静止判定：背景不变，只有一小块区域在动时不能判定为静止
+ * @author QD
+ *
+ */
+public class StaticSceneDetectorTest {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final float THRESHOLD = 2.5f;
+	private static final long FRAME_US = 1000000L / 30;
+
+	//后置摄像头录制480x480
+	private final YuvRotator rotator = YuvRotator.createCentered(WIDTH, HEIGHT, 90, false, HEIGHT, HEIGHT, false);
+	private final byte[] background = new byte[WIDTH * HEIGHT * 3 / 2];
+	private final Random random = new Random(18);
+
+	public StaticSceneDetectorTest() {
+		//有纹理的背景：平滑的渐变加少量随机纹理
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				background[y * WIDTH + x] = (byte) (60 + x / 8 + y / 8 + random.nextInt(16));
+	}
+
+	/**
+	 * 背景上一块边长size的方形区域，亮度在背景上加上delta，模拟手或嘴的动作
+	 */
+	private byte[] withPatch(int left, int top, int size, int delta) {
+		byte[] frame = background.clone();
+		for (int y = top; y < top + size; y++)
+			for (int x = left; x < left + size; x++)
+				frame[y * WIDTH + x] = (byte) Math.min(255, (frame[y * WIDTH + x] & 0xFF) + delta);
+		return frame;
+	}
+
+	//整帧加上±1的传感器噪声
+	private byte[] withNoise() {
+		byte[] frame = background.clone();
+		for (int i = 0; i < WIDTH * HEIGHT; i++)
+			frame[i] = (byte) ((frame[i] & 0xFF) + random.nextInt(3) - 1);
+		return frame;
+	}
+
+	//原来的判定方法：整帧采样的平均绝对差
+	private float meanSad(byte[] a, byte[] b) {
+		int count = rotator.getLumaSampleCount(StaticSceneDetector.SAMPLE_STEP);
+		byte[] sa = new byte[count], sb = new byte[count];
+		rotator.sampleLuma(a, StaticSceneDetector.SAMPLE_STEP, sa);
+		rotator.sampleLuma(b, StaticSceneDetector.SAMPLE_STEP, sb);
+		long sad = 0;
+		for (int i = 0; i < count; i++)
+			sad += Math.abs((sa[i] & 0xFF) - (sb[i] & 0xFF));
+		return (float) sad / count;
+	}
+
+	@Test
+	public void unchangedFramesAreDuplicated() {
+		StaticSceneDetector detector = new StaticSceneDetector(StaticSceneDetector.Mode.DUPLICATE, THRESHOLD, 1000000);
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, 0, false));
+		for (int i = 1; i < 30; i++)
+			assertEquals(StaticSceneDetector.DUPLICATE, detector.check(rotator, withNoise(), i * FRAME_US, false));
+		assertTrue(detector.getLastSad() < THRESHOLD);
+		assertEquals(29, detector.getDuplicatedCount());
+	}
+
+	/**
+	 * 100x100的区域约占输出画面的4%，整帧的平均差不到阈值，但所在的块远超阈值
+	 */
+	@Test
+	public void smallMovingPatchIsEncoded() {
+		StaticSceneDetector detector = new StaticSceneDetector(StaticSceneDetector.Mode.DUPLICATE, THRESHOLD, 1000000);
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, 0, false));
+		byte[] previous = background;
+		for (int i = 1; i < 30; i++) {
+			byte[] frame = withPatch(200 + i * 4, 150, 100, (i % 2) * 40);
+			assertTrue(meanSad(frame, previous) < THRESHOLD);
+			previous = frame;
+			assertEquals("frame " + i, StaticSceneDetector.ENCODE, detector.check(rotator, frame, i * FRAME_US, false));
+			assertTrue(detector.getLastSad() > THRESHOLD);
+		}
+		assertEquals(0, detector.getStaticCount());
+	}
+
+	@Test
+	public void skipModeEncodesAgainAfterMaxSkip() {
+		StaticSceneDetector detector = new StaticSceneDetector(StaticSceneDetector.Mode.SKIP, THRESHOLD, 100000);
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, 0, false));
+		assertEquals(StaticSceneDetector.SKIP, detector.check(rotator, background, FRAME_US, false));
+		assertEquals(StaticSceneDetector.SKIP, detector.check(rotator, background, 2 * FRAME_US, false));
+		assertEquals(StaticSceneDetector.SKIP, detector.check(rotator, background, 3 * FRAME_US, false));
+		//距离上次编码超过100ms，重复编码一次
+		assertEquals(StaticSceneDetector.DUPLICATE, detector.check(rotator, background, 4 * FRAME_US, false));
+		assertEquals(StaticSceneDetector.SKIP, detector.check(rotator, background, 5 * FRAME_US, false));
+		assertEquals(4, detector.getSkippedCount());
+	}
+
+	@Test
+	public void mustEncodeAndNewRotatorRestartComparison() {
+		StaticSceneDetector detector = new StaticSceneDetector(StaticSceneDetector.Mode.DUPLICATE, THRESHOLD, 1000000);
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, 0, false));
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, FRAME_US, true));
+		YuvRotator front = YuvRotator.createCentered(WIDTH, HEIGHT, 270, true, HEIGHT, HEIGHT, false);
+		assertEquals(StaticSceneDetector.ENCODE, detector.check(front, background, 2 * FRAME_US, false));
+		assertEquals(StaticSceneDetector.DUPLICATE, detector.check(front, background, 3 * FRAME_US, false));
+	}
+
+	@Test
+	public void offModeAlwaysEncodes() {
+		StaticSceneDetector detector = new StaticSceneDetector(StaticSceneDetector.Mode.OFF, THRESHOLD, 1000000);
+		for (int i = 0; i < 5; i++)
+			assertEquals(StaticSceneDetector.ENCODE, detector.check(rotator, background, i * FRAME_US, false));
+		assertEquals(0, detector.getCheckedCount());
+	}
+}
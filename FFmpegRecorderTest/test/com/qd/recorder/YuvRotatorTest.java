@@ -0,0 +1,184 @@
+package com.qd.recorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * YuvRotator和录制界面原来的旋转、裁剪方法（LegacyYuvTransforms）逐字节比较
+ * 原来的方法只输出NV21，NV12和YUV420P的期望结果由NV21重新排列色度得到；
+ * 原来没有单独的镜像，镜像用原来的rotateYUV420Degree270（旋转270度加水平镜像）和其他角度组合出来
+ * @author QD
+ *
+ */
+public class YuvRotatorTest {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int[] FORMATS = {
+			YuvRotator.FORMAT_NV21, YuvRotator.FORMAT_NV12, YuvRotator.FORMAT_YUV420P };
+
+	private final byte[] src = randomFrame(WIDTH, HEIGHT);
+
+	private static byte[] randomFrame(int width, int height) {
+		byte[] frame = new byte[width * height * 3 / 2];
+		new Random(width * 31 + height).nextBytes(frame);
+		return frame;
+	}
+
+	@Test
+	public void rotate0IsCopy() {
+		assertRotation(src, new YuvRotator(WIDTH, HEIGHT, 0, false), WIDTH, HEIGHT);
+	}
+
+	@Test
+	public void rotate90MatchesLegacy() {
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree90(src, WIDTH, HEIGHT),
+				new YuvRotator(WIDTH, HEIGHT, 90, false), HEIGHT, WIDTH);
+	}
+
+	@Test
+	public void rotate180MatchesLegacy() {
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree180(src, WIDTH, HEIGHT),
+				new YuvRotator(WIDTH, HEIGHT, 180, false), WIDTH, HEIGHT);
+	}
+
+	@Test
+	public void rotate270MatchesLegacy() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree90(src, WIDTH, HEIGHT);
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree180(rotated, HEIGHT, WIDTH),
+				new YuvRotator(WIDTH, HEIGHT, 270, false), HEIGHT, WIDTH);
+	}
+
+	@Test
+	public void mirror0MatchesLegacy() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree90(src, WIDTH, HEIGHT);
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree270(rotated, HEIGHT, WIDTH),
+				new YuvRotator(WIDTH, HEIGHT, 0, true), WIDTH, HEIGHT);
+	}
+
+	@Test
+	public void mirror90MatchesLegacy() {
+		byte[] mirrored = LegacyYuvTransforms.rotateYUV420Degree270(src, WIDTH, HEIGHT);
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree180(mirrored, HEIGHT, WIDTH),
+				new YuvRotator(WIDTH, HEIGHT, 90, true), HEIGHT, WIDTH);
+	}
+
+	@Test
+	public void mirror180MatchesLegacy() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree90(src, WIDTH, HEIGHT);
+		byte[] mirrored = LegacyYuvTransforms.rotateYUV420Degree270(rotated, HEIGHT, WIDTH);
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree180(mirrored, WIDTH, HEIGHT),
+				new YuvRotator(WIDTH, HEIGHT, 180, true), WIDTH, HEIGHT);
+	}
+
+	/**
+	 * 前置摄像头：原来的rotateYUV420Degree270
+	 */
+	@Test
+	public void mirror270MatchesLegacy() {
+		assertRotation(LegacyYuvTransforms.rotateYUV420Degree270(src, WIDTH, HEIGHT),
+				new YuvRotator(WIDTH, HEIGHT, 270, true), HEIGHT, WIDTH);
+	}
+
+	/**
+	 * 后置摄像头录制480x480：原来先旋转90度，再从中间裁剪
+	 */
+	@Test
+	public void cropBackCameraMatchesLegacy() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree90(src, WIDTH, HEIGHT);
+		YuvRotator rotator = YuvRotator.createCentered(WIDTH, HEIGHT, 90, false, HEIGHT, HEIGHT, false);
+		assertEquals(80, rotator.getCropY());
+		assertRotation(LegacyYuvTransforms.cropYUV420(rotated, HEIGHT, WIDTH, HEIGHT), rotator, HEIGHT, HEIGHT);
+	}
+
+	@Test
+	public void cropFrontCameraMatchesLegacy() {
+		byte[] rotated = LegacyYuvTransforms.rotateYUV420Degree270(src, WIDTH, HEIGHT);
+		YuvRotator rotator = YuvRotator.createCentered(WIDTH, HEIGHT, 270, true, HEIGHT, HEIGHT, false);
+		assertRotation(LegacyYuvTransforms.cropYUV420(rotated, HEIGHT, WIDTH, HEIGHT), rotator, HEIGHT, HEIGHT);
+	}
+
+	@Test
+	public void cropWithoutRotationMatchesLegacy() {
+		YuvRotator rotator = YuvRotator.createCentered(WIDTH, HEIGHT, 0, false, WIDTH, 360, false);
+		assertRotation(LegacyYuvTransforms.cropYUV420(src, WIDTH, HEIGHT, 360), rotator, WIDTH, 360);
+	}
+
+	/**
+	 * 封面使用的副本：几何参数相同，输出格式独立
+	 */
+	@Test
+	public void copyKeepsGeometryWithOwnFormat() {
+		YuvRotator video = YuvRotator.createCentered(WIDTH, HEIGHT, 270, true, HEIGHT, HEIGHT, true);
+		video.setOutputFormat(YuvRotator.FORMAT_YUV420P);
+		YuvRotator copy = video.copy(YuvRotator.FORMAT_NV21);
+		assertEquals(YuvRotator.FORMAT_NV21, copy.getOutputFormat());
+		assertEquals(YuvRotator.FORMAT_YUV420P, video.getOutputFormat());
+		assertEquals(video.getCropX(), copy.getCropX());
+		assertEquals(video.getCropY(), copy.getCropY());
+
+		byte[] expected = new byte[video.getFrameSize()];
+		video.setOutputFormat(YuvRotator.FORMAT_NV21);
+		video.rotate(src, expected);
+		//录制线程修改视频的输出格式不影响副本
+		video.setOutputFormat(YuvRotator.FORMAT_NV12);
+		assertEquals(YuvRotator.FORMAT_NV21, copy.getOutputFormat());
+		assertRotation(expected, copy, HEIGHT, HEIGHT);
+	}
+
+	/**
+	 * 按NV21、NV12、YUV420P分别检查byte[]和ByteBuffer两种输出
+	 * @param expectedNv21 原来的方法输出的NV21
+	 */
+	private void assertRotation(byte[] expectedNv21, YuvRotator rotator, int outWidth, int outHeight) {
+		assertEquals(outWidth, rotator.getOutWidth());
+		assertEquals(outHeight, rotator.getOutHeight());
+		assertEquals(expectedNv21.length, rotator.getFrameSize());
+		for (int i = 0; i < FORMATS.length; i++) {
+			int format = FORMATS[i];
+			rotator.setOutputFormat(format);
+			byte[] expected = convert(expectedNv21, outWidth, outHeight, format);
+
+			byte[] array = new byte[rotator.getFrameSize()];
+			rotator.rotate(src, array);
+			assertArrayEquals("byte[] format " + format, expected, array);
+
+			//direct buffer，从非0的position开始写
+			ByteBuffer buffer = ByteBuffer.allocateDirect(rotator.getFrameSize() + 16);
+			buffer.position(16);
+			rotator.rotate(src, buffer);
+			assertEquals(16 + rotator.getFrameSize(), buffer.position());
+			byte[] written = new byte[rotator.getFrameSize()];
+			buffer.position(16);
+			buffer.get(written);
+			assertArrayEquals("ByteBuffer format " + format, expected, written);
+		}
+	}
+
+	//NV21重新排列成NV12或YUV420P
+	private static byte[] convert(byte[] nv21, int width, int height, int format) {
+		if (format == YuvRotator.FORMAT_NV21)
+			return nv21;
+		byte[] out = new byte[nv21.length];
+		int lumaSize = width * height;
+		int pairs = lumaSize / 4;
+		System.arraycopy(nv21, 0, out, 0, lumaSize);
+		for (int i = 0; i < pairs; i++) {
+			byte v = nv21[lumaSize + i * 2];
+			byte u = nv21[lumaSize + i * 2 + 1];
+			if (format == YuvRotator.FORMAT_NV12) {
+				out[lumaSize + i * 2] = u;
+				out[lumaSize + i * 2 + 1] = v;
+			} else {
+				out[lumaSize + i] = u;
+				out[lumaSize + pairs + i] = v;
+			}
+		}
+		return out;
+	}
+}